@@ -181,6 +181,34 @@ public class ECSClient {
             } else {
                 printError("Invalid number of parameters!");
             }
+        } else if (tokens[0].equals("cachestats")) {
+            if (tokens.length == 1) {
+                controller.printCacheStatistics();
+            } else {
+                printError("Invalid number of parameters!");
+            }
+
+        } else if (tokens[0].equals("setcache")) {
+            if (tokens.length == 3 || tokens.length == 4) {
+                try {
+                    String nodeName = tokens.length == 4 ? tokens[1] : null;
+                    String cacheStrategy = tokens[tokens.length - 2];
+                    int cacheSize = Integer.parseInt(
+                            tokens[tokens.length - 1]);
+                    System.out.println("Reconfiguring caches...");
+                    if (controller.reconfigureCache(nodeName, cacheStrategy,
+                            cacheSize)) {
+                        System.out.println("Caches reconfigured");
+                    } else {
+                        printError("Unable to reconfigure all caches");
+                    }
+                } catch (NumberFormatException e) {
+                    printError("Invalid integer");
+                }
+            } else {
+                printError("Invalid number of parameters!");
+            }
+
         } else if (tokens[0].equals("help")) {
             printHelp();
         } else {
@@ -203,6 +231,8 @@ public class ECSClient {
         sb.append("\t add a single node to the system\n");
         sb.append("addnodes <count> [cacheStrategy] [cacheSize]");
         sb.append("\t add a given number of nodes to the system\n");
+        sb.append("\t\t\t ");
+        sb.append("cacheStrategy: FIFO | LRU | LFU | TinyLFU | ARC | OffHeap | None \n");
         sb.append("start");
         sb.append("\t signal all servers to start serving\n");
         sb.append("stop");
@@ -211,6 +241,11 @@ public class ECSClient {
         sb.append("\t print server statuses for debug\n");
         sb.append("removenode <index>");
         sb.append("\t remove a server from the system\n");
+        sb.append("cachestats");
+        sb.append("\t print the cache statistics of all active servers\n");
+        sb.append("setcache [name] <cacheStrategy> <cacheSize>");
+        sb.append("\t replace the cache of a server (default: all) ");
+        sb.append("without restarting it\n");
         sb.append("shutdown");
         sb.append("\t stop all server instances and exit\n");
         sb.append("logLevel");
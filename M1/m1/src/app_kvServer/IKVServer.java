@@ -5,12 +5,23 @@ public interface IKVServer {
         None,
         LRU,
         LFU,
-        FIFO;
+        FIFO,
+        TinyLFU,
+        ARC,
+        OffHeap;
 
         public static CacheStrategy fromString(String strategy) {
             switch (strategy) {
                 case "LRU":
                     return CacheStrategy.LRU;
+                case "LFU":
+                    return CacheStrategy.LFU;
+                case "TinyLFU":
+                    return CacheStrategy.TinyLFU;
+                case "ARC":
+                    return CacheStrategy.ARC;
+                case "OffHeap":
+                    return CacheStrategy.OffHeap;
                 case "FIFO":
                     return CacheStrategy.FIFO;
                 case "None":
@@ -22,6 +33,63 @@ public interface IKVServer {
         }
     }
 
+    public enum StorageEngine {
+        Bucket,
+        Bitcask,
+        LSM;
+
+        public static StorageEngine fromString(String engine) {
+            switch (engine) {
+                case "Bucket":
+                    return StorageEngine.Bucket;
+                case "Bitcask":
+                    return StorageEngine.Bitcask;
+                case "LSM":
+                    return StorageEngine.LSM;
+                default:
+                    throw new IllegalArgumentException(
+                            "Illegal storage engine");
+            }
+        }
+    }
+
+    public enum SyncPolicy {
+        None,
+        Interval,
+        Always;
+
+        public static SyncPolicy fromString(String policy) {
+            switch (policy) {
+                case "None":
+                    return SyncPolicy.None;
+                case "Interval":
+                    return SyncPolicy.Interval;
+                case "Always":
+                    return SyncPolicy.Always;
+                default:
+                    throw new IllegalArgumentException(
+                            "Illegal sync policy");
+            }
+        }
+    }
+
+    public enum Compression {
+        None,
+        Deflate;
+
+        public static Compression fromString(String compression) {
+            switch (compression) {
+                case "None":
+                    return Compression.None;
+                case "Deflate":
+                    return Compression.Deflate;
+                default:
+                    throw new IllegalArgumentException(
+                            "Illegal compression");
+            }
+        }
+    }
+
     /**
      * Get the port number of the server
      *
@@ -11,7 +11,9 @@ import server.*;
 import shared.Util;
 import shared.*;
 import shared.messages.KVMessage;
+import shared.messages.KVMessageImpl;
 import shared.messages.KVMessageSerializer;
+import shared.messages.PutBatchArgs;
 
 import java.io.IOException;
 import java.net.BindException;
@@ -21,7 +23,8 @@ import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -41,12 +44,25 @@ public class KVServer extends Thread implements IKVServer {
     private static Logger logger = Logger.getRootLogger();
     private static final String DEFAULT_CACHE_SIZE = "8192";
     private static final String DEFAULT_CACHE_STRATEGY = "FIFO";
+    private static final String DEFAULT_STORAGE_ENGINE = "Bucket";
     private static final String DEFAULT_PORT = "8080";
     private static final String DEFAULT_DATA_PATH = "data";
     private static final String DEFAULT_LOG_LEVEL = "INFO";
 
     public static final long TRANSACTION_TIMEOUT_MILLIS = 5000;
 
+    /**
+     * Duration of the leases granted to the near caches of clients, i.e.
+     * how long a client may serve a value without asking the server; by
+     * default, none are granted.
+     */
+    public static final long DEFAULT_LEASE_MILLIS = 0;
+
+    /**
+     * Number of keys deleted from the storage at once when deleting data.
+     */
+    private static final int DELETE_BATCH_KEYS = 256;
+
     private int port;
     private ServerSocket serverSocket;
     private AtomicBoolean running = new AtomicBoolean(false);
@@ -76,6 +92,10 @@ public class KVServer extends Thread implements IKVServer {
 
     private final TimeoutChecker timeoutChecker;
 
+    private final CacheWarmer cacheWarmer;
+
+    private volatile long leaseMillis = DEFAULT_LEASE_MILLIS;
+
     /**
      * Start KV Server at given port
      *
@@ -88,6 +108,20 @@ public class KVServer extends Thread implements IKVServer {
                     IProtocol protocol,
                     ISerializer<KVMessage> messageSerializer,
                     int port, String name, ZooKeeperService zooKeeperService) {
+        this(storage, protocol, messageSerializer, port, name,
+                zooKeeperService, null);
+    }
+
+    /**
+     * @param cacheWarmer saves the hot keys of the storage and loads them
+     *                    back on start and when the metadata changes; null
+     *                    for none.
+     */
+    public KVServer(IKVStorage storage,
+                    IProtocol protocol,
+                    ISerializer<KVMessage> messageSerializer,
+                    int port, String name, ZooKeeperService zooKeeperService,
+                    CacheWarmer cacheWarmer) {
         this.lockedKeysMutex = new ReentrantLock();
         this.name = name;
         this.storage = storage;
@@ -102,12 +136,25 @@ public class KVServer extends Thread implements IKVServer {
         this.replicator.start();
 
         this.timeoutChecker = new TimeoutChecker(this);
+        this.cacheWarmer = cacheWarmer;
     }
 
     public Replicator getReplicator() {
         return replicator;
     }
 
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /**
+     * @param leaseMillis duration of the near cache leases granted with the
+     *                    values read; 0 to grant none.
+     */
+    public void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+
     /**
      * Initializes and starts the server. Loops until the the server should be
      * closed.
@@ -118,6 +165,12 @@ public class KVServer extends Thread implements IKVServer {
 
         running.set(initializeServer());
         this.timeoutChecker.start();
+        if (cacheWarmer != null && isRunning()) {
+            // Until the metadata is known, the keys of the storage are
+            // those it held before the restart
+            cacheWarmer.requestWarmUp(this::shouldWarmUp);
+            cacheWarmer.start();
+        }
 
         if (serverSocket != null) {
             String node = String
@@ -153,6 +206,11 @@ public class KVServer extends Thread implements IKVServer {
             }
         }
         running.set(false);
+        logger.info("Storage statistics: " + storage.getStatistics());
+        if (cacheWarmer != null) {
+            logger.info("Cache warm-up statistics: " +
+                    cacheWarmer.getStatistics());
+        }
         logger.info("Server stopped.");
     }
 
@@ -223,6 +281,41 @@ public class KVServer extends Thread implements IKVServer {
         return name;
     }
 
+    /**
+     * @return whether this server is the coordinator or a replica of the
+     * key, i.e. may serve reads of it.
+     */
+    public boolean isResponsibleForKeyRead(String key) {
+        if (name == null) {
+            logger.error("Server name is null");
+            return false;
+        }
+        Metadata metadata = this.metadata.get();
+        if (metadata == null) return false;
+
+        ECSNode node = metadata.getServer(RingPosition.of(key));
+        if (node == null) {
+            return false;
+        }
+        if (name.equals(node.getNodeName())) {
+            return true;
+        }
+        // Replicas can serve read request
+        node = metadata.getSuccessor(node);
+        if (name.equals(node.getNodeName())) {
+            return true;
+        }
+        node = metadata.getSuccessor(node);
+        if (name.equals(node.getNodeName())) {
+            return true;
+        }
+        return false;
+    }
+
+    private boolean shouldWarmUp(String key) {
+        return metadata.get() == null || isResponsibleForKeyRead(key);
+    }
+
     public void registerClientConnection(ClientConnection connection) {
         synchronized (clientConnections) {
             clientConnections.add(connection);
@@ -251,6 +344,9 @@ public class KVServer extends Thread implements IKVServer {
         if (!running.get()) return;
 
         replicator.shutdown();
+        if (cacheWarmer != null) {
+            cacheWarmer.shutdown();
+        }
 
         running.set(false);
         try {
@@ -295,8 +391,52 @@ public class KVServer extends Thread implements IKVServer {
                     "path to data folder", false);
             addOption(options, "s", "cacheSize", true,
                     "the capacity of the cache", false);
+            addOption(options, "S", "cacheBytes", true,
+                    "approximate maximum size in bytes of the cached " +
+                            "keys and values; 0 for no limit. Pairs larger " +
+                            "than the limit are not cached, and limits " +
+                            "under about 6.4 MB (16 pairs of the largest " +
+                            "size) make LRU and FIFO caches less " +
+                            "concurrent", false);
+            addOption(options, "A", "cacheArenaBytes", true,
+                    "size of the buffers allocated at once by the " +
+                            "OffHeap cache", false);
             addOption(options, "c", "cacheStrategy", true,
-                    "the type of cache: FIFO | None | LRU", false);
+                    "the type of cache: FIFO | None | LRU | LFU | " +
+                            "TinyLFU | ARC | OffHeap",
+                    false);
+            addOption(options, "k", "warmUpKeys", true,
+                    "number of hot keys saved to warm up the cache after " +
+                            "a restart or a data transfer; 0 to disable " +
+                            "(default: the cache size)", false);
+            addOption(options, "K", "warmUpKeysPerSecond", true,
+                    "rate limit of cache warm-ups; 0 for none", false);
+            addOption(options, "L", "leaseMillis", true,
+                    "duration of the leases of the near caches of clients " +
+                            "on the values read; 0 to disable (default)",
+                    false);
+            addOption(options, "e", "storageEngine", true,
+                    "the storage engine: Bucket | Bitcask | LSM", false);
+            addOption(options, "m", "mmap", false,
+                    "read bucket files through memory mappings", false);
+            addOption(options, "b", "bucketSplitBytes", true,
+                    "split bucket files larger than this (extendible hashing)",
+                    false);
+            addOption(options, "x", "compression", true,
+                    "compress values of bucket files: None | Deflate",
+                    false);
+            addOption(options, "t", "compressionThreshold", true,
+                    "size in bytes of the smallest value to compress",
+                    false);
+            addOption(options, "g", "compactionGarbageRatio", true,
+                    "compact bucket files and Bitcask segments with " +
+                            "more garbage than this fraction; 0 to disable",
+                    false);
+            addOption(options, "r", "compactionBytesPerSecond", true,
+                    "rate limit of compactions; 0 for none", false);
+            addOption(options, "w", "walSync", true,
+                    "log writes ahead, forced: None | Interval | Always",
+                    false);
             addOption(options, "h", "help", false,
                     "see the help menu", false);
             addOption(options, "l", "logLevel", true,
@@ -311,7 +451,20 @@ public class KVServer extends Thread implements IKVServer {
 
             int port;
             int cacheSize;
+            long cacheBytes;
+            long cacheArenaBytes;
+            int warmUpKeys;
+            long warmUpKeysPerSecond;
+            long leaseMillis;
             CacheStrategy cacheStrategy;
+            StorageEngine storageEngine;
+            boolean memoryMappedReads;
+            long bucketSplitBytes;
+            Compression compression;
+            int compressionThreshold;
+            double compactionGarbageRatio;
+            long compactionBytesPerSecond;
+            SyncPolicy syncPolicy;
             HelpFormatter formatter = new HelpFormatter();
             Level logLevel;
             String rootPath;
@@ -350,11 +503,81 @@ public class KVServer extends Thread implements IKVServer {
                             "Invalid cache size: " + cacheSize);
                 }
 
+                cacheBytes = Long.parseLong(cmd.getOptionValue("S", "0"));
+                if (cacheBytes < 0) {
+                    throw new IllegalArgumentException(
+                            "Invalid cache bytes: " + cacheBytes);
+                }
+                cacheArenaBytes = Long.parseLong(cmd.getOptionValue("A",
+                        Long.toString(OffHeapCache.DEFAULT_ARENA_BYTES)));
+                if (cacheArenaBytes <= 0) {
+                    throw new IllegalArgumentException(
+                            "Invalid cache arena bytes: " + cacheArenaBytes);
+                }
+                warmUpKeys = Integer.parseInt(cmd.getOptionValue("k",
+                        Integer.toString(cacheSize)));
+                if (warmUpKeys < 0) {
+                    throw new IllegalArgumentException(
+                            "Invalid warm-up keys: " + warmUpKeys);
+                }
+                warmUpKeysPerSecond = Long.parseLong(cmd.getOptionValue("K",
+                        Long.toString(CacheWarmer.DEFAULT_KEYS_PER_SECOND)));
+                if (warmUpKeysPerSecond < 0) {
+                    throw new IllegalArgumentException(
+                            "Invalid warm-up rate: " + warmUpKeysPerSecond);
+                }
+
+                leaseMillis = Long.parseLong(cmd.getOptionValue("L",
+                        Long.toString(DEFAULT_LEASE_MILLIS)));
+                if (leaseMillis < 0) {
+                    throw new IllegalArgumentException(
+                            "Invalid lease duration: " + leaseMillis);
+                }
+
                 rootPath = cmd.getOptionValue("d", DEFAULT_DATA_PATH);
                 port = Integer.parseInt(cmd.getOptionValue("p", DEFAULT_PORT));
                 cacheStrategy = CacheStrategy
                         .fromString(cmd.getOptionValue("c",
                                 DEFAULT_CACHE_STRATEGY));
+                storageEngine = StorageEngine
+                        .fromString(cmd.getOptionValue("e",
+                                DEFAULT_STORAGE_ENGINE));
+                memoryMappedReads = cmd.hasOption("m");
+                bucketSplitBytes = Long.parseLong(
+                        cmd.getOptionValue("b", "0"));
+                if (bucketSplitBytes < 0) {
+                    throw new IllegalArgumentException(
+                            "Invalid bucket split size: " + bucketSplitBytes);
+                }
+                compression = Compression.fromString(
+                        cmd.getOptionValue("x", "None"));
+                compressionThreshold = Integer.parseInt(cmd.getOptionValue(
+                        "t", Integer.toString(
+                                ValueCompressor.DEFAULT_THRESHOLD_BYTES)));
+                if (compressionThreshold < 0) {
+                    throw new IllegalArgumentException(
+                            "Invalid compression threshold: " +
+                                    compressionThreshold);
+                }
+                compactionGarbageRatio = Double.parseDouble(
+                        cmd.getOptionValue("g", Double.toString(
+                                CompactionService.DEFAULT_MIN_GARBAGE_RATIO)));
+                if (compactionGarbageRatio < 0 ||
+                        compactionGarbageRatio >= 1) {
+                    throw new IllegalArgumentException(
+                            "Invalid compaction garbage ratio: " +
+                                    compactionGarbageRatio);
+                }
+                compactionBytesPerSecond = Long.parseLong(cmd.getOptionValue(
+                        "r", Long.toString(
+                                CompactionService.DEFAULT_BYTES_PER_SECOND)));
+                if (compactionBytesPerSecond < 0) {
+                    throw new IllegalArgumentException(
+                            "Invalid compaction rate: " +
+                                    compactionBytesPerSecond);
+                }
+                syncPolicy = cmd.hasOption("w") ? SyncPolicy
+                        .fromString(cmd.getOptionValue("w")) : null;
 
                 logLevel = Level
                         .toLevel(cmd.getOptionValue("l", DEFAULT_LOG_LEVEL));
@@ -370,30 +593,87 @@ public class KVServer extends Thread implements IKVServer {
 
             new LogSetup(String.format("logs/server_%s.log", name), logLevel);
 
+            String storagePath = Paths.get(rootPath, name).toString();
+
             KeyHashStrategy keyHashStrategy = null;
 
             try {
-                keyHashStrategy = new MD5PrefixKeyHashStrategy(1);
+                if (bucketSplitBytes > 0) {
+                    keyHashStrategy = new ExtendibleKeyHashStrategy(
+                            storagePath, bucketSplitBytes);
+                } else {
+                    keyHashStrategy = new MD5PrefixKeyHashStrategy(1);
+                }
             } catch (NoSuchAlgorithmException e) {
                 System.out.println("Error! MD5 key hash strategy unsupported!");
                 e.printStackTrace();
                 System.exit(1);
             }
 
-            IKVStorage storage = new KVStorage(
-                    Paths.get(rootPath, name).toString(), keyHashStrategy,
-                    cacheSize, cacheStrategy);
+            CacheOptions cacheOptions = new CacheOptions()
+                    .setMaxBytes(cacheBytes)
+                    .setArenaBytes(cacheArenaBytes);
+            IKVStorage storage;
+            if (storageEngine == StorageEngine.Bitcask) {
+                BitcaskStorage bitcaskStorage = new BitcaskStorage(
+                        storagePath, cacheSize, cacheStrategy, cacheOptions,
+                        BitcaskStorage.DEFAULT_MAX_SEGMENT_BYTES);
+                if (compactionGarbageRatio > 0) {
+                    new CompactionService(bitcaskStorage,
+                            compactionGarbageRatio, compactionBytesPerSecond,
+                            CompactionService.DEFAULT_INTERVAL_MILLIS)
+                            .start();
+                }
+                storage = bitcaskStorage;
+            } else if (storageEngine == StorageEngine.LSM) {
+                storage = new LSMStorage(storagePath, cacheSize,
+                        cacheStrategy, cacheOptions,
+                        LSMStorage.DEFAULT_MEMTABLE_BYTES);
+            } else {
+                KVStorage bucketStorage = new KVStorage(storagePath,
+                        keyHashStrategy, cacheSize, cacheStrategy,
+                        cacheOptions, new FileStorageOptions()
+                                .setMemoryMappedReads(memoryMappedReads)
+                                .setCompressor(new ValueCompressor(
+                                        compression, compressionThreshold)));
+                if (compactionGarbageRatio > 0) {
+                    new CompactionService(bucketStorage,
+                            compactionGarbageRatio, compactionBytesPerSecond,
+                            CompactionService.DEFAULT_INTERVAL_MILLIS)
+                            .start();
+                }
+                storage = bucketStorage;
+            }
+            logger.info("Storage engine: " + storageEngine.toString());
+            if (syncPolicy != null) {
+                storage = new WriteAheadLogStorage(storage,
+                        Paths.get(rootPath, name + ".wal").toFile(),
+                        syncPolicy);
+            }
             IProtocol protocol = new Protocol();
             ISerializer<KVMessage> messageSerializer = new KVMessageSerializer();
             ZooKeeperService zooKeeperService = new ZooKeeperService(
                     zooKeeperUrl);
 
-            new KVServer(storage, protocol, messageSerializer, port,
-                    name, zooKeeperService)
-                    .start();
+            // The cache strategy can change while running, so the warmer
+            // is kept even without a cache
+            CacheWarmer cacheWarmer = null;
+            if (warmUpKeys > 0) {
+                cacheWarmer = new CacheWarmer(storage,
+                        Paths.get(rootPath, name + ".hotkeys").toFile(),
+                        warmUpKeys, warmUpKeysPerSecond,
+                        CacheWarmer.DEFAULT_INTERVAL_MILLIS);
+            }
+
+            KVServer server = new KVServer(storage, protocol,
+                    messageSerializer, port, name, zooKeeperService,
+                    cacheWarmer);
+            server.setLeaseMillis(leaseMillis);
+            server.start();
 
         } catch (IOException e) {
-            System.out.println("Error! Unable to initialize logger!");
+            System.out.println(
+                    "Error! Unable to initialize logger or storage!");
             e.printStackTrace();
             System.exit(1);
         } catch (NumberFormatException nfe) {
@@ -478,13 +758,6 @@ public class KVServer extends Thread implements IKVServer {
                               String hashRangeEnd,
                               String address,
                               int port) {
-        List<String> keys = null;
-        try {
-            keys = storage.getAllKeys(hashRangeStart, hashRangeEnd);
-        } catch (IOException e) {
-            logger.error(e);
-            return false;
-        }
         // Make new server connection to successor
         ServerConnection connection = new ServerConnection(protocol,
                 messageSerializer, address, port);
@@ -496,50 +769,26 @@ public class KVServer extends Thread implements IKVServer {
                 logger.error("Failed to connect with target server");
                 return false;
             }
-            for (String key : keys) {
-                String value;
-                try {
-                    value = storage.get(key);
-                } catch (IOException e) {
-                    logger.error("Internal server error: " +
-                            Util.getStackTraceString(e));
-                    return false;
-                }
-                try {
-                    int requestId = connection
-                            .sendRequest(key, value,
-                                    KVMessage.StatusType.ECS_PUT);
-                    if (requestId == -1) {
-                        logger.error(String.format(
-                                "Failed to send put request (key: %s) to target server",
-                                key));
-                        return false;
-                    }
-                    try {
-                        KVMessage resMessage = connection
-                                .receiveMessage(requestId);
-                        KVMessage.StatusType resStatus = resMessage.getStatus();
-                        if (resStatus == KVMessage.StatusType.PUT_SUCCESS ||
-                                resStatus == KVMessage.StatusType.PUT_UPDATE) {
-                            // Success
-                        } else {
-                            logger.error(
-                                    "Failed to send data to next server: response status = " +
-                                            resStatus
-                                                    .toString());
+            // Stream the range from the files, bypassing the cache
+            try (KVCursor cursor = storage.scanRange(hashRangeStart,
+                    hashRangeEnd)) {
+                PutBatchArgs batch = new PutBatchArgs();
+                while (cursor.next()) {
+                    if (!batch.fits(cursor.getKey(), cursor.getValue())) {
+                        if (!sendBatch(connection, batch)) {
                             return false;
                         }
-                    } catch (Exception e) {
-                        logger.error(
-                                "Failed to receive put response from target server");
-                        return false;
+                        batch = new PutBatchArgs();
                     }
-                } catch (Exception e) {
-                    logger.error(String.format(
-                            "Failed to send put request (key: %s) to target server",
-                            key));
+                    batch.put(cursor.getKey(), cursor.getValue());
+                }
+                if (!batch.isEmpty() && !sendBatch(connection, batch)) {
                     return false;
                 }
+            } catch (IOException e) {
+                logger.error("Internal server error: " +
+                        Util.getStackTraceString(e));
+                return false;
             }
 
             logger.info("Successfully sent all data to target server.");
@@ -549,32 +798,108 @@ public class KVServer extends Thread implements IKVServer {
         }
     }
 
-    public boolean deleteData(String hashRangeStart, String hashRangeEnd) {
-        List<String> keys = null;
-        try {
-            keys = storage.getAllKeys(hashRangeStart, hashRangeEnd);
-        } catch (IOException e) {
-            logger.error(e);
+    /**
+     * Replace the cache of the storage by an empty one of the given strategy
+     * and capacity, then warm it up with the hot keys of the old one.
+     *
+     * @return false if the storage has no cache.
+     */
+    public boolean reconfigureCache(CacheStrategy cacheStrategy,
+                                    int cacheSize) {
+        if (cacheSize <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid cache size: " + cacheSize);
+        }
+        ManagedCache cache = storage.getCache();
+        if (cache == null) {
             return false;
         }
-        boolean success = true;
-        for (String key : keys) {
+        if (cacheWarmer != null) {
             try {
-                storage.put(key, null);
-            } catch (Exception e) {
-                logger.error(
-                        String.format("Failed to delete tuple (key %s)", key));
-                success = false;
+                cacheWarmer.save();
+            } catch (IOException e) {
+                logger.error("Failed to save the cached keys", e);
             }
         }
+        cache.reconfigure(cacheStrategy, cacheSize);
+        if (cacheWarmer != null) {
+            cacheWarmer.requestWarmUp(this::shouldWarmUp);
+        }
+        return true;
+    }
+
+    public boolean deleteData(String hashRangeStart, String hashRangeEnd) {
+        boolean success = true;
+        try (KVCursor cursor = storage.scanRange(hashRangeStart,
+                hashRangeEnd)) {
+            boolean more = true;
+            while (more) {
+                Map<String, String> deletes = new LinkedHashMap<>();
+                while (deletes.size() < DELETE_BATCH_KEYS &&
+                        (more = cursor.next())) {
+                    deletes.put(cursor.getKey(), null);
+                }
+                if (deletes.isEmpty()) {
+                    break;
+                }
+                try {
+                    storage.putMany(deletes);
+                } catch (Exception e) {
+                    logger.error(String.format("Failed to delete %d tuples",
+                            deletes.size()), e);
+                    success = false;
+                }
+            }
+        } catch (IOException e) {
+            logger.error(e);
+            return false;
+        }
         logger.info("Tuples deleted.");
         return success;
     }
 
+    /**
+     * Send a batch of writes to another server with an ECS_PUT_BATCH.
+     *
+     * @return if the operation was successful.
+     */
+    private boolean sendBatch(ServerConnection connection,
+                              PutBatchArgs batch) {
+        int requestId;
+        try {
+            requestId = connection.sendRequest(new KVMessageImpl(null, null,
+                    null, KVMessage.StatusType.ECS_PUT_BATCH, batch));
+        } catch (Exception e) {
+            requestId = -1;
+        }
+        if (requestId == -1) {
+            logger.error(String.format(
+                    "Failed to send put batch (%d keys) to target server",
+                    batch.size()));
+            return false;
+        }
+        try {
+            KVMessage resMessage = connection.receiveMessage(requestId);
+            if (resMessage.getStatus() != KVMessage.StatusType.ECS_SUCCESS) {
+                logger.error("Failed to send data to next server: response = " +
+                        resMessage.toString());
+                return false;
+            }
+        } catch (Exception e) {
+            logger.error("Failed to receive put response from target server");
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Update the metadata repository of this server
      */
     public void updateMetadata(Metadata metadata) {
         this.metadata.set(metadata);
+        // Data may have been transferred to this server
+        if (cacheWarmer != null) {
+            cacheWarmer.requestWarmUp(this::shouldWarmUp);
+        }
     }
 }
@@ -0,0 +1,328 @@
+package benchmarker;
+
+import app_kvServer.IKVServer;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import server.Cache;
+import server.CacheFactory;
+import server.CacheOptions;
+import server.IKVStorage;
+import server.KVStorage;
+import server.KVStorageDelta;
+import server.MD5PrefixKeyHashStrategy;
+import shared.Util;
+import shared.messages.KVMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * This program measures the throughput of a local KVStorage with an increasing
+ * number of threads, without going through the network. Each configuration is
+ * run twice: once on the storage as is, and once with every operation
+ * serialized by a single lock (how KVStorage used to be locked), to show how
+ * well the storage scales.
+ * <p>
+ * In cache mode, it instead measures the hit ratio of each cache strategy
+ * on Zipfian reads, alone and interleaved with scans of the key space (like
+ * those of range copies), to show which strategies resist scans.
+ */
+public class StorageBenchmarker {
+
+    public static final float PUT_PROBABILITY = 0.1F;
+
+    private static final long WARM_UP_TIME_MILLIS = 500;
+
+    /**
+     * Exponent of the Zipfian distribution of the reads of the cache mode.
+     */
+    public static final double ZIPF_EXPONENT = 0.99;
+
+    /**
+     * Number of reads between two scans in the cache mode; each scan reads
+     * twice as many keys as the cache holds.
+     */
+    public static final int SCAN_INTERVAL = 10000;
+
+    /**
+     * Draws integers in [0, n) such that i is drawn with a probability
+     * proportional to 1 / (i + 1)^s.
+     */
+    private static class ZipfianGenerator {
+        private final double[] cumulative;
+
+        ZipfianGenerator(int n, double exponent) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; ++i) {
+                sum += 1.0 / Math.pow(i + 1, exponent);
+                cumulative[i] = sum;
+            }
+            for (int i = 0; i < n; ++i) {
+                cumulative[i] /= sum;
+            }
+        }
+
+        int next(Random random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(index < 0 ? -index - 1 : index,
+                    cumulative.length - 1);
+        }
+    }
+
+    /**
+     * Serializes all operations of the wrapped storage with one lock.
+     */
+    private static class GlobalLockStorage implements IKVStorage {
+        private final IKVStorage storage;
+
+        GlobalLockStorage(IKVStorage storage) {
+            this.storage = storage;
+        }
+
+        @Override
+        public synchronized String get(String key) throws IOException {
+            return storage.get(key);
+        }
+
+        @Override
+        public synchronized KVMessage.StatusType put(String key,
+                                                     String value) throws
+                IOException {
+            return storage.put(key, value);
+        }
+
+        @Override
+        public synchronized void clearCache() {
+            storage.clearCache();
+        }
+
+        @Override
+        public synchronized List<String> getAllKeys(String hashRangeStart,
+                                                    String hashRangeEnd) throws
+                IOException {
+            return storage.getAllKeys(hashRangeStart, hashRangeEnd);
+        }
+
+        @Override
+        public synchronized Integer getCurrentDeltaLogicalTime() {
+            return storage.getCurrentDeltaLogicalTime();
+        }
+
+        @Override
+        public synchronized KVStorageDelta startNextDeltaRecording(
+                int logicalTime,
+                String hashRangeStart,
+                String hashRangeEnd) {
+            return storage.startNextDeltaRecording(logicalTime,
+                    hashRangeStart, hashRangeEnd);
+        }
+    }
+
+    private static class BenchmarkerThread extends Thread {
+        private final Random random = new Random();
+
+        private final IKVStorage storage;
+        private final int numKeys;
+        private final long durationMillis;
+
+        private final AtomicLong operations;
+        private final AtomicReference<String> errorMessage;
+
+        BenchmarkerThread(IKVStorage storage,
+                          int numKeys,
+                          long durationMillis,
+                          AtomicLong operations,
+                          AtomicReference<String> errorMessage) {
+            this.storage = storage;
+            this.numKeys = numKeys;
+            this.durationMillis = durationMillis;
+            this.operations = operations;
+            this.errorMessage = errorMessage;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long startTime = System.currentTimeMillis();
+                long measureStartTime = startTime + WARM_UP_TIME_MILLIS;
+                long endTime = measureStartTime + durationMillis;
+                long count = 0;
+                long currentTime;
+                while ((currentTime = System.currentTimeMillis()) < endTime) {
+                    String key = Integer.toString(random.nextInt(numKeys));
+                    if (random.nextFloat() < PUT_PROBABILITY) {
+                        storage.put(key, Integer.toString(random.nextInt()));
+                    } else {
+                        storage.get(key);
+                    }
+                    if (currentTime >= measureStartTime) {
+                        count++;
+                    }
+                }
+                operations.addAndGet(count);
+            } catch (Exception e) {
+                errorMessage.set(Util.getStackTraceString(e));
+            }
+        }
+    }
+
+    public void run(String[] args) throws Exception {
+        if (args.length == 4 && args[0].equals("cache")) {
+            runCacheBenchmark(Integer.parseInt(args[1]),
+                    Integer.parseInt(args[2]), Long.parseLong(args[3]));
+            return;
+        }
+        if (args.length != 4) {
+            printUsage();
+            return;
+        }
+        int numKeys = Integer.parseInt(args[0]);
+        int cacheSize = Integer.parseInt(args[1]);
+        int maxThreads = Integer.parseInt(args[2]);
+        long durationMillis = Long.parseLong(args[3]);
+
+        File rootDir = Files.createTempDirectory("storagebenchmark").toFile();
+        try {
+            KVStorage storage = new KVStorage(rootDir.toString(),
+                    new MD5PrefixKeyHashStrategy(1), cacheSize,
+                    IKVServer.CacheStrategy.LRU);
+            System.out.printf("Populating %d keys in %s...\n", numKeys,
+                    rootDir);
+            for (int i = 0; i < numKeys; ++i) {
+                storage.put(Integer.toString(i), Integer.toString(i));
+            }
+
+            System.out.printf("Cache size: %d, put probability: %.2f\n",
+                    cacheSize, PUT_PROBABILITY);
+            System.out.println("threads\tsingle lock (ops/s)\t" +
+                    "striped (ops/s)\tspeedup");
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                double single = benchmark(new GlobalLockStorage(storage),
+                        threads, numKeys, durationMillis);
+                double striped = benchmark(storage, threads, numKeys,
+                        durationMillis);
+                System.out.printf("%d\t%.0f\t%.0f\t%.2fx\n", threads, single,
+                        striped, striped / single);
+            }
+        } finally {
+            deleteDirectory(rootDir.toPath());
+        }
+    }
+
+    private void runCacheBenchmark(int numKeys,
+                                   int cacheSize,
+                                   long numOperations) {
+        System.out.printf("Keys: %d, cache size: %d, reads: %d, " +
+                        "Zipf exponent: %.2f, scan every %d reads\n",
+                numKeys, cacheSize, numOperations, ZIPF_EXPONENT,
+                SCAN_INTERVAL);
+        System.out.println("strategy\tzipfian (hit ratio)\t" +
+                "zipfian + scans (hit ratio)");
+        ZipfianGenerator generator = new ZipfianGenerator(numKeys,
+                ZIPF_EXPONENT);
+        for (IKVServer.CacheStrategy strategy :
+                IKVServer.CacheStrategy.values()) {
+            if (strategy == IKVServer.CacheStrategy.None) {
+                continue;
+            }
+            double zipfian = measureHitRatio(strategy, generator, numKeys,
+                    cacheSize, numOperations, false);
+            double scans = measureHitRatio(strategy, generator, numKeys,
+                    cacheSize, numOperations, true);
+            System.out.printf("%s\t%.4f\t%.4f\n", strategy, zipfian,
+                    scans);
+        }
+    }
+
+    /**
+     * @return the fraction of the Zipfian reads that hit the cache; the
+     * reads of the scans are not counted.
+     */
+    private double measureHitRatio(IKVServer.CacheStrategy strategy,
+                                   ZipfianGenerator generator,
+                                   int numKeys,
+                                   int cacheSize,
+                                   long numOperations,
+                                   boolean scans) {
+        Cache<String, String> cache = CacheFactory.createStringCache(
+                cacheSize, strategy, new CacheOptions());
+        // The same reads for every strategy
+        Random random = new Random(0);
+        long hits = 0;
+        int scanPosition = 0;
+        for (long i = 0; i < numOperations; ++i) {
+            if (scans && i % SCAN_INTERVAL == SCAN_INTERVAL - 1) {
+                for (int j = 0; j < cacheSize * 2; ++j) {
+                    String key = Integer.toString(scanPosition);
+                    scanPosition = (scanPosition + 1) % numKeys;
+                    if (cache.get(key) == null) {
+                        cache.put(key, key);
+                    }
+                }
+            }
+            String key = Integer.toString(generator.next(random));
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, key);
+            }
+        }
+        return (double) hits / numOperations;
+    }
+
+    /**
+     * @return the total throughput in operations per second.
+     */
+    private double benchmark(IKVStorage storage,
+                             int numThreads,
+                             int numKeys,
+                             long durationMillis) throws Exception {
+        AtomicLong operations = new AtomicLong(0);
+        AtomicReference<String> errorMessage = new AtomicReference<>(null);
+        BenchmarkerThread[] threads = new BenchmarkerThread[numThreads];
+        for (int i = 0; i < numThreads; ++i) {
+            threads[i] = new BenchmarkerThread(storage, numKeys,
+                    durationMillis, operations, errorMessage);
+            threads[i].start();
+        }
+        for (BenchmarkerThread thread : threads) {
+            thread.join();
+        }
+        if (errorMessage.get() != null) {
+            throw new IllegalStateException(
+                    "Benchmark thread failed: " + errorMessage.get());
+        }
+        return operations.get() * 1000.0 / durationMillis;
+    }
+
+    private static void deleteDirectory(Path path) throws IOException {
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Object p : paths.sorted(Comparator.reverseOrder())
+                    .toArray()) {
+                Files.delete((Path) p);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LogSetup("logs/storageBenchmarker.log", Level.ERROR);
+        new StorageBenchmarker().run(args);
+    }
+
+    private void printUsage() {
+        System.out.println(
+                "usage: numKeys cacheSize maxThreads durationMillis");
+        System.out.println(
+                "       cache numKeys cacheSize numOperations");
+    }
+}
@@ -4,10 +4,12 @@ import org.apache.log4j.Logger;
 import shared.ECSNode;
 import shared.Metadata;
 import shared.Protocol;
+import shared.RingPosition;
 import shared.Util;
 import shared.messages.KVMessage;
 import shared.messages.KVMessageImpl;
 import shared.messages.KVMessageSerializer;
+import shared.messages.LeaseArgs;
 
 import java.io.IOException;
 import java.util.*;
@@ -37,11 +39,33 @@ public class KVStore implements KVCommInterface {
     private Map<String, ServerConnection> transactionKeyToConnection = new HashMap<>();
     private Set<ServerConnection> transactionConnections = new HashSet<>();
 
+    /**
+     * Values read, kept for the lease granted by the server; null if
+     * disabled. Bypassed by transactions.
+     */
+    private final NearCache nearCache;
+
     public KVStore(String initialAddress, int initialPort) throws IOException {
+        this(initialAddress, initialPort, 0);
+    }
+
+    /**
+     * @param nearCacheSize capacity of the near cache; 0 to disable it.
+     */
+    public KVStore(String initialAddress, int initialPort,
+                   int nearCacheSize) throws IOException {
         this.initialAddress = initialAddress;
         this.initialPort = initialPort;
         serializer = new KVMessageSerializer();
         protocol = new Protocol();
+        nearCache = nearCacheSize > 0 ? new NearCache(nearCacheSize) : null;
+    }
+
+    /**
+     * @return the near cache; null if disabled.
+     */
+    public NearCache getNearCache() {
+        return nearCache;
     }
 
     public boolean isConnectionValid() {
@@ -79,6 +103,9 @@ public class KVStore implements KVCommInterface {
             throw new IllegalStateException(
                     "Transaction running. Use transactionPut instead.");
         }
+        if (nearCache != null) {
+            nearCache.invalidate(key);
+        }
         return sendRequest(key, value, KVMessage.StatusType.PUT);
     }
 
@@ -88,7 +115,37 @@ public class KVStore implements KVCommInterface {
             throw new IllegalStateException(
                     "Transaction running. Use transactionGet instead.");
         }
-        return sendRequest(key, null, KVMessage.StatusType.GET);
+        if (nearCache == null) {
+            return sendRequest(key, null, KVMessage.StatusType.GET);
+        }
+        String cachedValue = nearCache.get(key);
+        if (cachedValue != null) {
+            return new KVMessageImpl(key, cachedValue,
+                    KVMessage.StatusType.GET_SUCCESS);
+        }
+        Long version = nearCache.getVersion(key);
+        KVMessage message = sendRequest(key, null, KVMessage.StatusType.GET,
+                new LeaseArgs(version, 0));
+        Object arg = message.getECSCommandArg();
+        LeaseArgs lease = arg instanceof LeaseArgs ? (LeaseArgs) arg : null;
+        if (message.getStatus() == KVMessage.StatusType.GET_NOT_MODIFIED) {
+            String value = lease == null ? null : nearCache.renew(key, lease);
+            if (value != null) {
+                return new KVMessageImpl(key, value,
+                        KVMessage.StatusType.GET_SUCCESS);
+            }
+            // Not expected: read the value again without a version
+            nearCache.invalidate(key);
+            return sendRequest(key, null, KVMessage.StatusType.GET,
+                    new LeaseArgs(null, 0));
+        }
+        if (message.getStatus() == KVMessage.StatusType.GET_SUCCESS &&
+                lease != null) {
+            nearCache.put(key, message.getValue(), lease);
+        } else {
+            nearCache.invalidate(key);
+        }
+        return message;
     }
 
     @Override
@@ -97,6 +154,9 @@ public class KVStore implements KVCommInterface {
             throw new IllegalStateException(
                     "Transaction not running. Use put instead.");
         }
+        if (nearCache != null) {
+            nearCache.invalidate(key);
+        }
         return sendTransactionRequest(key, value,
                 KVMessage.StatusType.TRANSACTION_PUT);
     }
@@ -171,6 +231,16 @@ public class KVStore implements KVCommInterface {
                                   String value,
                                   KVMessage.StatusType status) throws
             Exception {
+        return sendRequest(key, value, status, null);
+    }
+
+    /**
+     * @param arg argument of the request; null for none.
+     */
+    private KVMessage sendRequest(String key,
+                                  String value,
+                                  KVMessage.StatusType status,
+                                  Object arg) throws Exception {
         int attemptCount = 0;
         while (attemptCount < MAX_NUM_ATTEMPTS) {
             attemptCount++;
@@ -182,7 +252,8 @@ public class KVStore implements KVCommInterface {
             }
             int id = -1;
             try {
-                id = connection.sendRequest(key, value, status);
+                id = connection.sendRequest(new KVMessageImpl(key, value,
+                        null, status, arg));
             } catch (IOException e) {
                 connection.disconnect();
                 // We re-try the connection; the invalid connection will be removed.
@@ -319,16 +390,20 @@ public class KVStore implements KVCommInterface {
      */
     private ServerConnection getOrCreateServerConnection(String key) throws
             Exception {
-        String ringPosition = Metadata.getRingPosition(key);
+        RingPosition keyPosition = RingPosition.of(key);
+        String ringPosition = null;
         ServerConnection connection = null;
         ECSNode info = null;
         if (cachedMetadata != null) {
-            info = cachedMetadata.getServer(ringPosition);
+            info = cachedMetadata.getServer(keyPosition);
             if (info != null) {
                 ringPosition = info.getPosition();
                 connection = connections.get(ringPosition);
             }
         }
+        if (ringPosition == null) {
+            ringPosition = keyPosition.toString();
+        }
 
         while (true) {
             if (connection != null) {
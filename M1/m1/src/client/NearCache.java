@@ -0,0 +1,145 @@
+package client;
+
+import shared.messages.LeaseArgs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The values last read by a client, kept for the lease the server granted on
+ * them. While its lease lasts, a value is served without asking the server;
+ * a value whose lease expired is kept with its version, so that the server
+ * only has to renew the lease if the value did not change.
+ * <p>
+ * Staleness is bounded by the lease: a value written by another client is
+ * seen at most a lease after the write. Writes of the client itself
+ * invalidate its entries. The least recently used entries are evicted.
+ * <p>
+ * NOTE: Methods are not thread-safe.
+ */
+public class NearCache {
+
+    private static final class Entry {
+        final String value;
+        final long version;
+        long expiresAtNanos;
+
+        Entry(String value, long version, long expiresAtNanos) {
+            this.value = value;
+            this.version = version;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long revalidations = 0;
+
+    /**
+     * @param capacity maximum number of entries.
+     */
+    public NearCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Entry> eldest) {
+                return size() > NearCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the value of the key if its lease has not expired; otherwise
+     * null, counting a miss.
+     */
+    public String get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && System.nanoTime() - entry.expiresAtNanos < 0) {
+            hits++;
+            return entry.value;
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * @return the version of the value of the key whose lease expired, to
+     * revalidate it; null if the key is not cached.
+     */
+    public Long getVersion(String key) {
+        Entry entry = entries.get(key);
+        return entry == null ? null : entry.version;
+    }
+
+    /**
+     * Cache a value read from the server with the lease granted on it.
+     */
+    public void put(String key, String value, LeaseArgs lease) {
+        entries.put(key, new Entry(value, lease.getVersion(),
+                expiresAt(lease)));
+    }
+
+    /**
+     * Extend the lease of a value the server reported unchanged.
+     *
+     * @return the value; null if the key is not cached (any more) or its
+     * version differs.
+     */
+    public String renew(String key, LeaseArgs lease) {
+        Entry entry = entries.get(key);
+        if (entry == null || !Long.valueOf(entry.version)
+                .equals(lease.getVersion())) {
+            return null;
+        }
+        entry.expiresAtNanos = expiresAt(lease);
+        revalidations++;
+        return entry.value;
+    }
+
+    public void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int getSize() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of reads served without asking the server.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of reads sent to the server, including those
+     * answered by a renewal of the lease.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of misses answered by a renewal of the lease
+     * rather than the value.
+     */
+    public long getRevalidations() {
+        return revalidations;
+    }
+
+    private static long expiresAt(LeaseArgs lease) {
+        return System.nanoTime() + lease.getLeaseMillis() * 1_000_000L;
+    }
+}
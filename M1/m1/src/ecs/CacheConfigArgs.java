@@ -0,0 +1,31 @@
+package ecs;
+
+import java.io.Serializable;
+
+public class CacheConfigArgs implements Serializable {
+    private static final long serialVersionUID = 3817265920458372614L;
+
+    private String cacheStrategy;
+    private int cacheSize;
+
+    public CacheConfigArgs(String cacheStrategy, int cacheSize) {
+        this.cacheStrategy = cacheStrategy;
+        this.cacheSize = cacheSize;
+    }
+
+    public String getCacheStrategy() {
+        return cacheStrategy;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheConfigArgs{" +
+                "cacheStrategy='" + cacheStrategy + '\'' +
+                ", cacheSize=" + cacheSize +
+                '}';
+    }
+}
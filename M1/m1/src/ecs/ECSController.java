@@ -2,6 +2,7 @@ package ecs;
 
 import app_kvECS.ZooKeeperListener;
 import app_kvECS.ZooKeeperService;
+import app_kvServer.IKVServer;
 import client.ServerConnection;
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.WatchedEvent;
@@ -104,6 +105,17 @@ public class ECSController implements ZooKeeperListener {
     }
 
     public ECSNode addNode(String cacheStrategy, int cacheSize) {
+        try {
+            IKVServer.CacheStrategy.fromString(cacheStrategy);
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid cache strategy: " + cacheStrategy);
+            return null;
+        }
+        if (cacheSize <= 0) {
+            logger.error("Invalid cache size: " + cacheSize);
+            return null;
+        }
+
         lock.lock();
         try {
             List<ECSNode> availableToAdd = getNodesWithStatus(
@@ -629,6 +641,94 @@ public class ECSController implements ZooKeeperListener {
         System.out.println("  " + getNodeState(node).toString());
     }
 
+    /**
+     * Print the cache strategy and statistics of each active node, in hash
+     * ring order.
+     */
+    public void printCacheStatistics() {
+        lock.lock();
+        try {
+            List<ECSNode> activeNodes = getNodesWithStatus(
+                    ECSNodeState.Status.ACTIVATED);
+            Collections.sort(activeNodes);
+            KVMessage[] responses = requestNodes(new KVMessageImpl(null, null,
+                            KVMessage.StatusType.ECS_GET_CACHE_STATISTICS),
+                    activeNodes, DEFAULT_COMMAND_TIMEOUT_SECONDS);
+            for (int i = 0; i < activeNodes.size(); ++i) {
+                System.out.println("- " + activeNodes.get(i).getNodeName());
+                if (responses[i] == null ||
+                        !(responses[i].getECSCommandArg() instanceof Map)) {
+                    System.out.println("  Statistics unavailable");
+                    continue;
+                }
+                System.out.println("  cacheStrategy: " +
+                        responses[i].getValue());
+                Map<?, ?> statistics = (Map<?, ?>) responses[i]
+                        .getECSCommandArg();
+                for (Map.Entry<?, ?> entry : statistics.entrySet()) {
+                    System.out.println(String.format("  %s: %s",
+                            entry.getKey(), entry.getValue()));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replace the cache of an active node, or of all active nodes, by an
+     * empty one of the given strategy and size, without restarting them.
+     *
+     * @param nodeName the name of the node; null for all active nodes.
+     * @return whether all the nodes replaced their cache.
+     */
+    public boolean reconfigureCache(String nodeName, String cacheStrategy,
+                                    int cacheSize) {
+        try {
+            IKVServer.CacheStrategy.fromString(cacheStrategy);
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid cache strategy: " + cacheStrategy);
+            return false;
+        }
+        if (cacheSize <= 0) {
+            logger.error("Invalid cache size: " + cacheSize);
+            return false;
+        }
+
+        lock.lock();
+        try {
+            List<ECSNode> targets;
+            if (nodeName == null) {
+                targets = getNodesWithStatus(ECSNodeState.Status.ACTIVATED);
+            } else {
+                ECSNodeState state = getNodeState(nodeName);
+                if (state == null) {
+                    logger.error("Node not found: " + nodeName);
+                    return false;
+                }
+                if (state.getStatus().get() !=
+                        ECSNodeState.Status.ACTIVATED) {
+                    logger.error("Node not active: " + nodeName);
+                    return false;
+                }
+                targets = Collections.singletonList(state.getNode());
+            }
+
+            try {
+                sendCommandToNodes(new KVMessageImpl(null, null, null,
+                        KVMessage.StatusType.ECS_RECONFIGURE_CACHE,
+                        new CacheConfigArgs(cacheStrategy, cacheSize)),
+                        targets);
+            } catch (NodeCommandException e) {
+                logger.error("Unable to reconfigure the cache of all nodes");
+                return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private void updateActiveNodesMetadata(Metadata metadata) throws
             NodeCommandException {
         List<ECSNode> nodes = getNodesWithStatus(ECSNodeState.Status.ACTIVATED);
@@ -686,6 +786,30 @@ public class ECSController implements ZooKeeperListener {
                                     List<ECSNode> nodes,
                                     int timeoutSeconds) throws
             NodeCommandException {
+        KVMessage[] responses = requestNodes(message, nodes, timeoutSeconds);
+
+        boolean[] successes = new boolean[nodes.size()];
+        for (int i = 0; i < nodes.size(); ++i) {
+            successes[i] = responses[i] != null;
+        }
+
+        if (!allSuccessful(successes)) {
+            throw new NodeCommandException(
+                    "Unable to successfully send command to all given nodes",
+                    successes);
+        }
+    }
+
+    /**
+     * Send the given message to the given list of nodes, and wait for
+     * responses.
+     *
+     * @return the successful response of each node (in the same order as the
+     * list of nodes), null if the request failed.
+     */
+    private KVMessage[] requestNodes(KVMessage message,
+                                     List<ECSNode> nodes,
+                                     int timeoutSeconds) {
         if (nodes.size() == 1) {
             logger.info(
                     String.format("Sending %s to %s...", message.toString(),
@@ -717,13 +841,12 @@ public class ECSController implements ZooKeeperListener {
 
         int successCount = 0;
 
-        boolean[] successes = new boolean[nodes.size()];
+        KVMessage[] responses = new KVMessage[nodes.size()];
 
         for (int i = 0; i < nodes.size(); ++i) {
             ECSNode node = nodes.get(i);
             ECSNodeState state = getNodeState(node);
             ServerConnection connection = state.getConnection();
-            successes[i] = false;
             // if (connection.isConnectionValid()) {
             if (requestIDs[i] != -1) {
                 try {
@@ -732,7 +855,7 @@ public class ECSController implements ZooKeeperListener {
                     if (resMessage
                             .getStatus() == KVMessage.StatusType.ECS_SUCCESS) {
                         // Success
-                        successes[i] = true;
+                        responses[i] = resMessage;
                         successCount++;
                     } else {
                         logger.error(String.format(
@@ -762,11 +885,7 @@ public class ECSController implements ZooKeeperListener {
         logger.info(String.format("%d/%d requests succeeded.", successCount,
                 nodes.size()));
 
-        if (!allSuccessful(successes)) {
-            throw new NodeCommandException(
-                    "Unable to successfully send command to all given nodes",
-                    successes);
-        }
+        return responses;
     }
 
     public static ArrayList<ECSNode> readConfig(String fileName) {
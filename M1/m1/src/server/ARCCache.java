@@ -0,0 +1,259 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An adaptive replacement cache (ARC): keys seen once are kept in a recency
+ * list (T1) and keys seen at least twice in a frequency list (T2), both
+ * ordered from least to most recently used. The keys last evicted from each
+ * list are remembered without their values in ghost lists (B1 and B2); a miss
+ * on a ghost key grows the share of the list it was evicted from, so the
+ * cache adapts between recency and frequency.
+ * <p>
+ * A scan only reads each key once, so it only cycles through T1 and does not
+ * evict the keys of T2.
+ * <p>
+ * With a maximum weight, keys are also evicted (into the ghost lists) while
+ * the cache is too heavy, from the list chosen as when the cache is full.
+ * <p>
+ * NOTE: Methods are not thread-safe.
+ */
+public class ARCCache<K, V> implements Cache<K, V> {
+
+    private final int capacity;
+    private final long maxWeight;
+    private final Weigher<? super K, ? super V> weigher;
+    private long weight = 0;
+    private long evictions = 0;
+
+    /**
+     * Target size of T1.
+     */
+    private int target = 0;
+
+    private final LinkedHashMap<K, V> recent = new LinkedHashMap<>();
+    private final LinkedHashMap<K, V> frequent = new LinkedHashMap<>();
+    private final LinkedHashSet<K> recentGhosts = new LinkedHashSet<>();
+    private final LinkedHashSet<K> frequentGhosts = new LinkedHashSet<>();
+
+    public ARCCache(int capacity) {
+        this(capacity, UNLIMITED_WEIGHT, Weigher.ENTRIES);
+    }
+
+    /**
+     * @param capacity  maximum number of entries.
+     * @param maxWeight maximum total weight of the entries.
+     * @param weigher   weight of an entry.
+     */
+    public ARCCache(int capacity, long maxWeight,
+                    Weigher<? super K, ? super V> weigher) {
+        this.capacity = capacity;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    @Override
+    public int getSize() {
+        return recent.size() + frequent.size();
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the current target size of the recency list.
+     */
+    public int getTarget() {
+        return target;
+    }
+
+    @Override
+    public V get(K key) {
+        V value = recent.remove(key);
+        if (value == null) {
+            value = frequent.remove(key);
+        }
+        if (value != null) {
+            frequent.put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * @return the keys of the frequency list first, then of the recency list,
+     * the most recently used first in each.
+     */
+    @Override
+    public List<K> getHotKeys(int limit) {
+        List<K> keys = new ArrayList<>();
+        for (LinkedHashMap<K, V> list : Arrays.asList(frequent, recent)) {
+            List<K> listKeys = new ArrayList<>(list.keySet());
+            for (int i = listKeys.size() - 1; i >= 0 && keys.size() < limit;
+                 --i) {
+                keys.add(listKeys.get(i));
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        long entryWeight = weigher.weigh(key, value);
+        V previous = recent.remove(key);
+        if (previous == null) {
+            previous = frequent.remove(key);
+        }
+        if (previous != null) {
+            weight -= weigher.weigh(key, previous);
+        }
+        if (capacity <= 0 || entryWeight > maxWeight) {
+            return;
+        }
+        if (previous != null) {
+            frequent.put(key, value);
+        } else {
+            insert(key, value);
+        }
+        weight += entryWeight;
+
+        // The key is the most recently used of its list, so it is only the
+        // eldest if alone in it
+        while (weight > maxWeight) {
+            boolean fromRecent = !recent.isEmpty() &&
+                    (recent.size() > target || frequent.isEmpty());
+            LinkedHashMap<K, V> list = fromRecent ? recent : frequent;
+            if (list.isEmpty() || list.containsKey(key) && list.size() == 1) {
+                fromRecent = !fromRecent;
+                list = fromRecent ? recent : frequent;
+            }
+            if (list.isEmpty() || list.containsKey(key) && list.size() == 1) {
+                break;
+            }
+            (fromRecent ? recentGhosts : frequentGhosts).add(
+                    removeEldest(list));
+        }
+    }
+
+    /**
+     * Add a key that is not cached, making room for it if necessary.
+     */
+    private void insert(K key, V value) {
+        if (recentGhosts.contains(key)) {
+            // Evicted from T1 too early: favor recency
+            target = Math.min(capacity, target + Math.max(1,
+                    frequentGhosts.size() / recentGhosts.size()));
+            replace(false);
+            recentGhosts.remove(key);
+            frequent.put(key, value);
+            return;
+        }
+        if (frequentGhosts.contains(key)) {
+            // Evicted from T2 too early: favor frequency
+            target = Math.max(0, target - Math.max(1,
+                    recentGhosts.size() / frequentGhosts.size()));
+            replace(true);
+            frequentGhosts.remove(key);
+            frequent.put(key, value);
+            return;
+        }
+
+        if (recent.size() + recentGhosts.size() >= capacity) {
+            if (recent.size() < capacity) {
+                removeEldest(recentGhosts);
+                replace(false);
+            } else {
+                removeEldest(recent);
+            }
+        } else {
+            int total = recent.size() + frequent.size() +
+                    recentGhosts.size() + frequentGhosts.size();
+            if (total >= 2 * capacity) {
+                removeEldest(frequentGhosts);
+            }
+            replace(false);
+        }
+        recent.put(key, value);
+    }
+
+    /**
+     * The key does not become a ghost, since it was not evicted.
+     */
+    @Override
+    public void remove(K key) {
+        V value = recent.remove(key);
+        if (value == null) {
+            value = frequent.remove(key);
+        }
+        if (value != null) {
+            weight -= weigher.weigh(key, value);
+        }
+    }
+
+    @Override
+    public void clear() {
+        recent.clear();
+        frequent.clear();
+        recentGhosts.clear();
+        frequentGhosts.clear();
+        target = 0;
+        weight = 0;
+    }
+
+    /**
+     * Make room for a key if the cache is full, evicting from T1 if it is
+     * over its target and from T2 otherwise.
+     *
+     * @param frequentGhostHit whether the key is in B2.
+     */
+    private void replace(boolean frequentGhostHit) {
+        if (recent.size() + frequent.size() < capacity) {
+            return;
+        }
+        if (!recent.isEmpty() && (recent.size() > target ||
+                (frequentGhostHit && recent.size() == target) ||
+                frequent.isEmpty())) {
+            recentGhosts.add(removeEldest(recent));
+        } else {
+            frequentGhosts.add(removeEldest(frequent));
+        }
+    }
+
+    private K removeEldest(LinkedHashMap<K, V> map) {
+        Iterator<Map.Entry<K, V>> iterator = map.entrySet().iterator();
+        Map.Entry<K, V> entry = iterator.next();
+        weight -= weigher.weigh(entry.getKey(), entry.getValue());
+        iterator.remove();
+        evictions++;
+        return entry.getKey();
+    }
+
+    private static <K> K removeEldest(LinkedHashSet<K> set) {
+        Iterator<K> iterator = set.iterator();
+        K key = iterator.next();
+        iterator.remove();
+        return key;
+    }
+}
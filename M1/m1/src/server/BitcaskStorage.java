@@ -0,0 +1,907 @@
+package server;
+
+import app_kvServer.IKVServer;
+import org.apache.log4j.Logger;
+import shared.RingPosition;
+import shared.messages.KVMessage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * A Bitcask-style storage engine. Every write is appended to the active
+ * segment file, and an in-memory key directory maps each live key to the
+ * location of its latest record. A read is a single positioned read and a
+ * write never rewrites existing data; deletes are appended as tombstones.
+ * <p>
+ * Record layout: crc (4 bytes), key length (4 bytes), value length (4 bytes,
+ * -1 for a tombstone), key bytes, value bytes. The CRC covers everything after
+ * the CRC field. Strings are encoded in UTF-8.
+ * <p>
+ * The bytes of the records overwritten or deleted since are counted per
+ * segment, and the closed segments with the most of them are merged by
+ * {@link CompactionService}: their live records are rewritten into a new file
+ * that replaces the segment, keeping its place in the order of the segments.
+ * Tombstones are not counted; they are kept by a merge while the deleted key
+ * may have a record in an older segment, i.e. unless the segment is the
+ * oldest.
+ */
+public class BitcaskStorage implements IKVStorage, Compactable {
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        long size;
+        /**
+         * Bytes of the records of overwritten or deleted keys; guarded by the
+         * lock.
+         */
+        long deadBytes = 0;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+
+    private static class KeyDirEntry {
+        final Segment segment;
+        final long offset;
+        final int length;
+
+        KeyDirEntry(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final Logger logger = Logger.getRootLogger();
+
+    private static final String NULL_VALUE = Cache.ABSENT_VALUE;
+
+    public static final String SEGMENT_SUFFIX = ".data";
+
+    /**
+     * Suffix of the file a segment is merged into, which replaces it.
+     */
+    public static final String MERGE_SUFFIX = ".merge";
+
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    private static final int HEADER_BYTES = 12;
+    private static final int TOMBSTONE_LENGTH = -1;
+
+    private static final int maximumDeltaSize = 10000;
+
+    private final File root;
+    private final long maxSegmentBytes;
+
+    private final Map<String, KeyDirEntry> keyDir = new HashMap<>();
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment activeSegment;
+
+    private final ManagedCache cache;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private KVStorageDelta delta = null;
+
+    /**
+     * Number of cursors not closed yet. Cursors read the segments of their
+     * snapshot by position, so a merge is not swapped in while any is open.
+     */
+    private final AtomicInteger openCursors = new AtomicInteger(0);
+
+    public BitcaskStorage(String rootPath,
+                          int cacheSize,
+                          IKVServer.CacheStrategy cacheStrategy) throws
+            IOException {
+        this(rootPath, cacheSize, cacheStrategy, DEFAULT_MAX_SEGMENT_BYTES);
+    }
+
+    /**
+     * @param rootPath        directory holding the segment files.
+     * @param cacheSize       specifies how many key-value pairs the server is
+     *                        allowed to keep in-memory
+     * @param cacheStrategy   specifies the cache replacement strategy
+     * @param maxSegmentBytes size after which the active segment is closed
+     *                        and a new one is started.
+     */
+    public BitcaskStorage(String rootPath,
+                          int cacheSize,
+                          IKVServer.CacheStrategy cacheStrategy,
+                          long maxSegmentBytes) throws IOException {
+        this(rootPath, cacheSize, cacheStrategy, new CacheOptions(),
+                maxSegmentBytes);
+    }
+
+    /**
+     * @param cacheOptions options of the cache
+     */
+    public BitcaskStorage(String rootPath,
+                          int cacheSize,
+                          IKVServer.CacheStrategy cacheStrategy,
+                          CacheOptions cacheOptions,
+                          long maxSegmentBytes) throws IOException {
+        this.root = new File(rootPath);
+        if (!root.exists()) {
+            root.mkdirs();
+        }
+        this.maxSegmentBytes = maxSegmentBytes;
+
+        cache = new ManagedCache(cacheSize, cacheStrategy, cacheOptions);
+        logger.info("Cache strategy: " + cacheStrategy.toString());
+
+        // Merges interrupted by a crash are redone later
+        File[] leftovers = root.listFiles(
+                (dir, name) -> name.endsWith(MERGE_SUFFIX));
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                if (!leftover.delete()) {
+                    logger.warn("Failed to delete " + leftover);
+                }
+            }
+        }
+
+        File[] files = root.listFiles(
+                (dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            throw new IOException("Unable to list directory " + rootPath);
+        }
+        Arrays.sort(files, Comparator.comparingInt(BitcaskStorage::segmentId));
+        for (int i = 0; i < files.length; ++i) {
+            Segment segment = new Segment(segmentId(files[i]), files[i]);
+            segments.add(segment);
+            loadSegment(segment, i == files.length - 1);
+        }
+        if (segments.isEmpty()) {
+            rotateSegment();
+        } else {
+            activeSegment = segments.get(segments.size() - 1);
+        }
+        logger.info(String.format("Loaded %d keys from %d segments",
+                keyDir.size(), segments.size()));
+    }
+
+    @Override
+    public String get(String key) throws IOException {
+        lock.readLock().lock();
+        try {
+            String value = cache.get(key);
+            if (value == null) {
+                KeyDirEntry entry = keyDir.get(key);
+                if (entry == null) {
+                    // Misses are answered from memory; don't cache them
+                    return null;
+                }
+                // Concurrent misses on the key share one read of the segment
+                value = cache.load(key, () -> {
+                    String read = readValue(entry);
+                    cache.put(key, read);
+                    return read;
+                });
+                logger.debug("Cache missed for key \"" + key + "\"");
+            }
+            return value == NULL_VALUE ? null : value;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Read the values under one acquisition of the lock, in file order.
+     */
+    @Override
+    public Map<String, String> getMany(Collection<String> keys) throws
+            IOException {
+        Map<String, String> values = new LinkedHashMap<>();
+        lock.readLock().lock();
+        try {
+            List<String> misses = new ArrayList<>();
+            for (String key : keys) {
+                String value = cache.get(key);
+                values.put(key, value == NULL_VALUE ? null : value);
+                if (value == null && keyDir.containsKey(key)) {
+                    misses.add(key);
+                }
+            }
+            misses.sort(Comparator.<String>comparingInt(
+                    key -> keyDir.get(key).segment.id)
+                    .thenComparingLong(key -> keyDir.get(key).offset));
+            for (String key : misses) {
+                String value = readValue(keyDir.get(key));
+                cache.put(key, value);
+                values.put(key, value);
+            }
+            return values;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public KVMessage.StatusType put(String key, String value) throws
+            IOException {
+        lock.writeLock().lock();
+        try {
+            return putLocked(key, value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Apply all puts under one acquisition of the lock.
+     */
+    @Override
+    public Map<String, KVMessage.StatusType> putMany(
+            Map<String, String> entries) throws IOException {
+        Map<String, KVMessage.StatusType> responses = new LinkedHashMap<>();
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                responses.put(entry.getKey(),
+                        putLocked(entry.getKey(), entry.getValue()));
+            }
+            return responses;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * NOTE: Must hold the write lock.
+     */
+    private KVMessage.StatusType putLocked(String key, String value) throws
+            IOException {
+        KeyDirEntry old = keyDir.get(key);
+        boolean exists = old != null;
+        if (exists) {
+            old.segment.deadBytes += old.length;
+        }
+        KVMessage.StatusType response;
+        if (value == null) {
+            if (exists) {
+                append(key, null);
+                keyDir.remove(key);
+                response = KVMessage.StatusType.DELETE_SUCCESS;
+            } else {
+                response = KVMessage.StatusType.DELETE_ERROR;
+            }
+        } else {
+            keyDir.put(key, append(key, value));
+            response = exists ? KVMessage.StatusType.PUT_UPDATE
+                    : KVMessage.StatusType.PUT_SUCCESS;
+        }
+
+        cache.put(key, value == null ? NULL_VALUE : value);
+
+        if (delta != null) {
+            delta.put(key, value);
+            if (delta.getEntryCount() > maximumDeltaSize) {
+                delta = null;
+            }
+        }
+
+        return response;
+    }
+
+    @Override
+    public void clearCache() {
+        cache.clear();
+    }
+
+    @Override
+    public List<String> getHotKeys(int limit) {
+        return cache.getHotKeys(limit);
+    }
+
+    @Override
+    public ManagedCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public List<String> getAllKeys(String hashRangeStart,
+                                   String hashRangeEnd) throws IOException {
+        lock.readLock().lock();
+        try {
+            RingPosition start = RingPosition.fromHex(hashRangeStart);
+            RingPosition end = RingPosition.fromHex(hashRangeEnd);
+            ArrayList<String> keys = new ArrayList<>();
+            for (String key : keyDir.keySet()) {
+                if (RingPosition.of(key).isInRange(start, end)) {
+                    keys.add(key);
+                }
+            }
+            return keys;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Read the segments sequentially, yielding the records the key directory
+     * still points to. The lock is only held to take a snapshot of the
+     * segments and to check each record.
+     */
+    @Override
+    public KVCursor scanRange(String hashRangeStart,
+                              String hashRangeEnd) throws IOException {
+        RingPosition start = RingPosition.fromHex(hashRangeStart);
+        RingPosition end = RingPosition.fromHex(hashRangeEnd);
+        List<Segment> snapshot;
+        long[] sizes;
+        lock.readLock().lock();
+        try {
+            snapshot = new ArrayList<>(segments);
+            sizes = new long[snapshot.size()];
+            for (int i = 0; i < sizes.length; ++i) {
+                sizes[i] = snapshot.get(i).size;
+            }
+            openCursors.incrementAndGet();
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new SegmentCursor(snapshot, sizes, start, end);
+    }
+
+    private class SegmentCursor implements KVCursor {
+        private final List<Segment> snapshot;
+        /**
+         * Sizes of the segments when the cursor was opened.
+         */
+        private final long[] sizes;
+        private final RingPosition start;
+        private final RingPosition end;
+
+        private int segmentIndex = -1;
+        private DataInputStream input = null;
+        private long offset;
+        private long size;
+
+        private String key = null;
+        private String value = null;
+        private boolean closed = false;
+
+        SegmentCursor(List<Segment> snapshot, long[] sizes,
+                      RingPosition start, RingPosition end) {
+            this.snapshot = snapshot;
+            this.sizes = sizes;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (true) {
+                if (input == null || offset + HEADER_BYTES > size) {
+                    if (!openNextSegment()) {
+                        key = null;
+                        value = null;
+                        return false;
+                    }
+                    continue;
+                }
+                input.readInt(); // crc
+                int keyLength = input.readInt();
+                int valueLength = input.readInt();
+                if (keyLength < 0 || valueLength < TOMBSTONE_LENGTH ||
+                        offset + HEADER_BYTES + keyLength +
+                                Math.max(valueLength, 0) > size) {
+                    // The corrupted rest of a segment, ignored when loaded
+                    size = offset;
+                    continue;
+                }
+                byte[] keyBytes = new byte[keyLength];
+                input.readFully(keyBytes);
+                byte[] valueBytes = new byte[Math.max(valueLength, 0)];
+                input.readFully(valueBytes);
+                long recordOffset = offset;
+                offset += HEADER_BYTES + keyLength + valueBytes.length;
+
+                if (valueLength == TOMBSTONE_LENGTH) {
+                    continue;
+                }
+                String recordKey = new String(keyBytes,
+                        StandardCharsets.UTF_8);
+                if (!RingPosition.of(recordKey).isInRange(start, end) ||
+                        !isLive(recordKey, recordOffset)) {
+                    continue;
+                }
+                key = recordKey;
+                value = new String(valueBytes, StandardCharsets.UTF_8);
+                return true;
+            }
+        }
+
+        private boolean isLive(String recordKey, long recordOffset) {
+            Segment segment = snapshot.get(segmentIndex);
+            lock.readLock().lock();
+            try {
+                KeyDirEntry entry = keyDir.get(recordKey);
+                return entry != null && entry.segment == segment &&
+                        entry.offset == recordOffset;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private boolean openNextSegment() throws IOException {
+            closeInput();
+            if (++segmentIndex >= snapshot.size()) {
+                return false;
+            }
+            Segment segment = snapshot.get(segmentIndex);
+            size = sizes[segmentIndex];
+            offset = 0;
+            input = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(segment.file), 1 << 16));
+            return true;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeInput();
+            if (!closed) {
+                closed = true;
+                openCursors.decrementAndGet();
+            }
+        }
+
+        private void closeInput() throws IOException {
+            if (input != null) {
+                input.close();
+                input = null;
+            }
+        }
+    }
+
+    /**
+     * Only closed segments are merged, since the active one is appended to.
+     */
+    @Override
+    public List<String> getCompactionCandidates(double minGarbageRatio) {
+        List<Segment> candidates = new ArrayList<>();
+        Map<Segment, Double> ratios = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            for (Segment segment : segments) {
+                if (segment == activeSegment || segment.size == 0) {
+                    continue;
+                }
+                double ratio = (double) segment.deadBytes / segment.size;
+                if (ratio > 0 && ratio >= minGarbageRatio) {
+                    candidates.add(segment);
+                    ratios.put(segment, ratio);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        // Most garbage first
+        candidates.sort(Comparator.comparingDouble(
+                (Segment segment) -> ratios.get(segment)).reversed());
+        List<String> names = new ArrayList<>();
+        for (Segment segment : candidates) {
+            names.add(segment.file.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Merge a closed segment. Its live records are copied without holding
+     * the lock, so that reads and writes continue; the lock is only held to
+     * check each record and to swap the new file in.
+     */
+    @Override
+    public long compact(String name, IOThrottle throttle) throws
+            IOException, InterruptedException {
+        Segment segment = null;
+        boolean oldest;
+        lock.readLock().lock();
+        try {
+            for (Segment candidate : segments) {
+                if (candidate.file.getName().equals(name)) {
+                    segment = candidate;
+                }
+            }
+            if (segment == null || segment == activeSegment) {
+                return 0;
+            }
+            // Segments are only ever added after the active one
+            oldest = segments.get(0) == segment;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        File mergeFile = new File(root, name + MERGE_SUFFIX);
+        boolean finished = false;
+        try {
+            List<String> keys = new ArrayList<>();
+            List<long[]> locations = new ArrayList<>();
+            long mergedSize = copyLiveRecords(segment, oldest, mergeFile,
+                    throttle, keys, locations);
+
+            lock.writeLock().lock();
+            try {
+                if (openCursors.get() > 0) {
+                    logger.info(String.format(
+                            "Postponing merge of %s: cursors are open",
+                            name));
+                    return 0;
+                }
+                long reclaimed = swapSegment(segment, mergeFile, mergedSize,
+                        keys, locations);
+                finished = true;
+                return reclaimed;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            if (!finished) {
+                Files.deleteIfExists(mergeFile.toPath());
+            }
+        }
+    }
+
+    /**
+     * Copy the records of a closed segment still needed into the merge file,
+     * in file order, at the rate allowed by the throttle: the records the key
+     * directory points to, and the tombstones of deleted keys unless the
+     * segment is the oldest.
+     *
+     * @param keys      receives the keys of the copied values.
+     * @param locations receives the offset in the segment, the offset in the
+     *                  merge file and the length of each copied value.
+     * @return the size of the merge file.
+     */
+    private long copyLiveRecords(Segment segment, boolean oldest,
+                                 File mergeFile, IOThrottle throttle,
+                                 List<String> keys,
+                                 List<long[]> locations) throws IOException,
+            InterruptedException {
+        long size = segment.size;
+        long offset = 0;
+        long mergedSize = 0;
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(segment.file),
+                        1 << 16));
+             FileOutputStream file = new FileOutputStream(mergeFile)) {
+            BufferedOutputStream output = new BufferedOutputStream(file,
+                    1 << 16);
+            while (offset + HEADER_BYTES <= size) {
+                int storedCrc = input.readInt();
+                int keyLength = input.readInt();
+                int valueLength = input.readInt();
+                if (keyLength < 0 || valueLength < TOMBSTONE_LENGTH ||
+                        offset + HEADER_BYTES + keyLength +
+                                Math.max(valueLength, 0) > size) {
+                    // The corrupted rest of a segment, ignored when loaded
+                    break;
+                }
+                int length = HEADER_BYTES + keyLength +
+                        Math.max(valueLength, 0);
+                ByteBuffer record = ByteBuffer.allocate(length);
+                record.putInt(storedCrc);
+                record.putInt(keyLength);
+                record.putInt(valueLength);
+                input.readFully(record.array(), HEADER_BYTES,
+                        length - HEADER_BYTES);
+                String key = new String(record.array(), HEADER_BYTES,
+                        keyLength, StandardCharsets.UTF_8);
+
+                boolean needed;
+                lock.readLock().lock();
+                try {
+                    KeyDirEntry entry = keyDir.get(key);
+                    if (valueLength == TOMBSTONE_LENGTH) {
+                        needed = !oldest && entry == null;
+                    } else {
+                        needed = entry != null && entry.segment == segment &&
+                                entry.offset == offset;
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+                if (needed) {
+                    throttle.acquire(length);
+                    output.write(record.array());
+                    if (valueLength != TOMBSTONE_LENGTH) {
+                        keys.add(key);
+                        locations.add(new long[]{offset, mergedSize, length});
+                    }
+                    mergedSize += length;
+                }
+                offset += length;
+            }
+            output.flush();
+            file.getChannel().force(true);
+        }
+        return mergedSize;
+    }
+
+    /**
+     * Replace a segment by its merge file, or delete it if nothing was kept,
+     * and point the key directory to the copies.
+     * <p>
+     * NOTE: Must hold the write lock.
+     *
+     * @return the number of bytes reclaimed.
+     */
+    private long swapSegment(Segment segment, File mergeFile,
+                             long mergedSize, List<String> keys,
+                             List<long[]> locations) throws IOException {
+        long size = segment.size;
+        segment.channel.close();
+        int index = segments.indexOf(segment);
+        if (mergedSize == 0) {
+            segments.remove(index);
+            Files.delete(segment.file.toPath());
+            Files.delete(mergeFile.toPath());
+            return size;
+        }
+
+        Files.move(mergeFile.toPath(), segment.file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        Segment merged = new Segment(segment.id, segment.file);
+        segments.set(index, merged);
+        for (int i = 0; i < keys.size(); ++i) {
+            String key = keys.get(i);
+            long[] location = locations.get(i);
+            KeyDirEntry entry = keyDir.get(key);
+            if (entry != null && entry.segment == segment &&
+                    entry.offset == location[0]) {
+                keyDir.put(key, new KeyDirEntry(merged, location[1],
+                        (int) location[2]));
+            } else {
+                // Overwritten or deleted while copying
+                merged.deadBytes += location[2];
+            }
+        }
+        return size - mergedSize;
+    }
+
+    @Override
+    public Integer getCurrentDeltaLogicalTime() {
+        lock.writeLock().lock();
+        try {
+            if (delta == null) {
+                return null;
+            } else {
+                return delta.getLogicalTime();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public KVStorageDelta startNextDeltaRecording(int logicalTime,
+                                                  String hashRangeStart,
+                                                  String hashRangeEnd) {
+        lock.writeLock().lock();
+        try {
+            KVStorageDelta lastDelta = delta;
+            delta = new KVStorageDelta(logicalTime, hashRangeStart,
+                    hashRangeEnd);
+            return lastDelta;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        lock.readLock().lock();
+        try {
+            // Rotated segments are not forced when they are closed
+            for (Segment segment : segments) {
+                segment.channel.force(false);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Close all segment files. The storage must not be used afterwards.
+     */
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments) {
+                segment.channel.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static int segmentId(File file) {
+        String name = file.getName();
+        return Integer.parseInt(
+                name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private void rotateSegment() throws IOException {
+        int id = activeSegment == null ? 0 : activeSegment.id + 1;
+        File file = new File(root,
+                String.format("%010d%s", id, SEGMENT_SUFFIX));
+        activeSegment = new Segment(id, file);
+        segments.add(activeSegment);
+    }
+
+    /**
+     * Rebuild the key directory from the records of a segment. A torn record
+     * at the end of the last segment (e.g. after a crash) is truncated.
+     */
+    private void loadSegment(Segment segment, boolean isLast) throws
+            IOException {
+        long offset = 0;
+        // NOTE: The stream is not closed, since that would close the channel.
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(segment.channel.position(0)),
+                1 << 16));
+        CRC32 crc = new CRC32();
+        while (offset < segment.size) {
+            int length;
+            try {
+                int storedCrc = input.readInt();
+                int keyLength = input.readInt();
+                int valueLength = input.readInt();
+                if (keyLength < 0 || valueLength < TOMBSTONE_LENGTH ||
+                        offset + HEADER_BYTES + keyLength +
+                                Math.max(valueLength, 0) > segment.size) {
+                    break;
+                }
+                byte[] keyBytes = new byte[keyLength];
+                input.readFully(keyBytes);
+                byte[] valueBytes = new byte[Math.max(valueLength, 0)];
+                input.readFully(valueBytes);
+
+                crc.reset();
+                updateCrc(crc, keyLength, valueLength);
+                crc.update(keyBytes);
+                crc.update(valueBytes);
+                if ((int) crc.getValue() != storedCrc) {
+                    break;
+                }
+
+                length = HEADER_BYTES + keyLength + valueBytes.length;
+                String key = new String(keyBytes, StandardCharsets.UTF_8);
+                KeyDirEntry old;
+                if (valueLength == TOMBSTONE_LENGTH) {
+                    old = keyDir.remove(key);
+                } else {
+                    old = keyDir.put(key, new KeyDirEntry(segment, offset,
+                            length));
+                }
+                if (old != null) {
+                    old.segment.deadBytes += old.length;
+                }
+            } catch (EOFException e) {
+                break;
+            }
+            offset += length;
+        }
+
+        if (offset < segment.size) {
+            if (isLast) {
+                logger.warn(String.format(
+                        "Truncating torn record at offset %d of %s", offset,
+                        segment.file.getName()));
+                segment.channel.truncate(offset);
+                segment.size = offset;
+            } else {
+                logger.error(String.format(
+                        "Corrupted record at offset %d of %s; ignoring the rest of the segment",
+                        offset, segment.file.getName()));
+            }
+        }
+    }
+
+    private KeyDirEntry append(String key, String value) throws IOException {
+        if (activeSegment.size >= maxSegmentBytes) {
+            rotateSegment();
+        }
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value == null ? new byte[0]
+                : value.getBytes(StandardCharsets.UTF_8);
+        int valueLength = value == null ? TOMBSTONE_LENGTH : valueBytes.length;
+        int length = HEADER_BYTES + keyBytes.length + valueBytes.length;
+
+        CRC32 crc = new CRC32();
+        updateCrc(crc, keyBytes.length, valueLength);
+        crc.update(keyBytes);
+        crc.update(valueBytes);
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt((int) crc.getValue());
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(valueLength);
+        buffer.put(keyBytes);
+        buffer.put(valueBytes);
+        buffer.flip();
+
+        long offset = activeSegment.size;
+        while (buffer.hasRemaining()) {
+            activeSegment.channel.write(buffer,
+                    offset + buffer.position());
+        }
+        activeSegment.size += length;
+        return new KeyDirEntry(activeSegment, offset, length);
+    }
+
+    private String readValue(KeyDirEntry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        while (buffer.hasRemaining()) {
+            int read = entry.segment.channel.read(buffer,
+                    entry.offset + buffer.position());
+            if (read < 0) {
+                throw new IOException(String.format(
+                        "Unexpected end of segment %s",
+                        entry.segment.file.getName()));
+            }
+        }
+        buffer.flip();
+        buffer.getInt(); // crc
+        int keyLength = buffer.getInt();
+        int valueLength = buffer.getInt();
+        if (valueLength < 0) {
+            return null;
+        }
+        return new String(buffer.array(), HEADER_BYTES + keyLength,
+                valueLength, StandardCharsets.UTF_8);
+    }
+
+    private static void updateCrc(CRC32 crc, int keyLength, int valueLength) {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(keyLength);
+        header.putInt(valueLength);
+        crc.update(header.array());
+    }
+}
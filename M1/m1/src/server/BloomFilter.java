@@ -0,0 +1,118 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Bloom filter of strings: mightContain never returns false for an added
+ * string, and returns true for other strings with a small probability.
+ * <p>
+ * NOTE: add must not be called concurrently with any other method.
+ */
+public class BloomFilter {
+
+    private final long[] bits;
+    private final int numBits;
+    private final int numHashes;
+    private int insertions;
+
+    private BloomFilter(long[] bits, int numBits, int numHashes,
+                        int insertions) {
+        this.bits = bits;
+        this.numBits = numBits;
+        this.numHashes = numHashes;
+        this.insertions = insertions;
+    }
+
+    /**
+     * @param expectedInsertions the number of strings the filter is sized
+     *                           for.
+     * @param falsePositiveRate  the desired false positive rate once that
+     *                           many strings have been added.
+     */
+    public static BloomFilter create(int expectedInsertions,
+                                     double falsePositiveRate) {
+        int n = Math.max(expectedInsertions, 1);
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) /
+                (ln2 * ln2));
+        int numBits = (int) Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+        int numHashes = Math.max(1, (int) Math.round(
+                (double) numBits / n * ln2));
+        return new BloomFilter(new long[(numBits + 63) / 64], numBits,
+                numHashes, 0);
+    }
+
+    public void add(String s) {
+        long hash = hash(s);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; ++i) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+        insertions++;
+    }
+
+    public boolean mightContain(String s) {
+        long hash = hash(s);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; ++i) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of strings added (counting duplicates).
+     */
+    public int getInsertions() {
+        return insertions;
+    }
+
+    public void writeTo(DataOutputStream output) throws IOException {
+        output.writeInt(numBits);
+        output.writeInt(numHashes);
+        output.writeInt(insertions);
+        for (long word : bits) {
+            output.writeLong(word);
+        }
+    }
+
+    public static BloomFilter readFrom(DataInputStream input) throws
+            IOException {
+        int numBits = input.readInt();
+        int numHashes = input.readInt();
+        int insertions = input.readInt();
+        if (numBits <= 0 || numHashes <= 0 || insertions < 0) {
+            throw new IOException("Invalid Bloom filter");
+        }
+        long[] bits = new long[(numBits + 63) / 64];
+        for (int i = 0; i < bits.length; ++i) {
+            bits[i] = input.readLong();
+        }
+        return new BloomFilter(bits, numBits, numHashes, insertions);
+    }
+
+    /**
+     * 64-bit FNV-1a of the UTF-8 bytes, followed by a final mix so that both
+     * halves are well distributed.
+     */
+    private static long hash(String s) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,129 @@
+package server;
+
+import shared.Util;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * One-shot tool converting the bucket files of data directories from the old
+ * CSV format (one escaped "key,value" line per record) to the binary format
+ * of {@link KVFileStorage}. Files already in the binary format are left
+ * untouched. No server may be running on the directories.
+ */
+public class BucketFormatMigrator {
+
+    private static final String TEMP_SUFFIX = ".migrating";
+
+    private BucketFormatMigrator() {
+    }
+
+    /**
+     * Convert all bucket files under the given directory.
+     *
+     * @return the number of files converted.
+     */
+    public static int migrateDirectory(Path root) throws IOException {
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(root)) {
+            files = paths.filter(Files::isRegularFile)
+                    .filter(path -> KVFileStorage.isBucketFile(
+                            path.getFileName().toString()) ||
+                            isLeftover(path))
+                    .collect(Collectors.toList());
+        }
+
+        int count = 0;
+        for (Path file : files) {
+            if (isLeftover(file)) {
+                // Left over from an interrupted run
+                Files.delete(file);
+            } else if (migrateFile(file)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Convert one bucket file, replacing it atomically.
+     *
+     * @return false if the file was already in the binary format.
+     */
+    public static boolean migrateFile(Path file) throws IOException {
+        if (isBinaryFormat(file)) {
+            return false;
+        }
+
+        Path tempFile = Paths.get(file.toString() + TEMP_SUFFIX);
+        Files.deleteIfExists(tempFile);
+        KVFileStorage storage = new KVFileStorage(tempFile.toString());
+        try (RandomAccessFile reader = new RandomAccessFile(file.toFile(),
+                "r")) {
+            String line = reader.readLine();
+            while (line != null) {
+                List<String> data = Util.csvSplitLine(line);
+                if (data.size() >= 2) {
+                    storage.write(data.get(0), data.get(1));
+                }
+                line = reader.readLine();
+            }
+        }
+
+        // The Bloom filter of the temporary file covers the new file as well
+        Path tempFilter = Paths.get(tempFile.toString() +
+                KVFileStorage.BLOOM_FILTER_SUFFIX);
+        Path filter = Paths.get(file.toString() +
+                KVFileStorage.BLOOM_FILTER_SUFFIX);
+        Files.deleteIfExists(filter);
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        if (Files.exists(tempFilter)) {
+            Files.move(tempFilter, filter, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the file was left over by an interrupted run: a
+     * temporary bucket file or one of its Bloom filter files.
+     */
+    private static boolean isLeftover(Path file) {
+        return file.getFileName().toString().contains(TEMP_SUFFIX);
+    }
+
+    private static boolean isBinaryFormat(Path file) throws IOException {
+        long length = Files.size(file);
+        if (length == 0) {
+            return true;
+        }
+        if (length < KVFileStorage.MAGIC_BYTES) {
+            return false;
+        }
+        try (DataInputStream input = new DataInputStream(
+                new FileInputStream(file.toFile()))) {
+            return input.readInt() == KVFileStorage.MAGIC;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("usage: dataDirectory...");
+            return;
+        }
+        for (String directory : args) {
+            int count = migrateDirectory(Paths.get(directory));
+            System.out.printf("%s: converted %d bucket files\n", directory,
+                    count);
+        }
+    }
+}
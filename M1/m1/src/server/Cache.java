@@ -1,9 +1,29 @@
 package server;
 
+import java.util.List;
+
 /**
  * NOTE: Methods may not be thread-safe.
  */
 public interface Cache<K, V> {
+    /**
+     * Estimated heap size of the objects of an entry other than the
+     * contents of its key and value.
+     */
+    long ENTRY_OVERHEAD_BYTES = 96;
+
+    /**
+     * Maximum weight of a cache without a limit on the weight.
+     */
+    long UNLIMITED_WEIGHT = Long.MAX_VALUE;
+
+    /**
+     * Value cached by the storages for keys known to be absent. It is
+     * compared by identity, so caches storing copies of the values return
+     * this instance for it.
+     */
+    String ABSENT_VALUE = new String();
+
     /**
      * @return current size of thr cache
      */
@@ -14,9 +34,42 @@ public interface Cache<K, V> {
      */
     int getCapacity();
 
+    /**
+     * @return the total weight of the entries, as computed by the weigher of
+     * the cache (by default, the number of entries).
+     */
+    long getWeight();
+
+    /**
+     * @return the maximum total weight of the entries, or
+     * {@link #UNLIMITED_WEIGHT}. An entry heavier than this is not cached.
+     */
+    long getMaxWeight();
+
+    /**
+     * @return the number of entries evicted so far to make room or to stay
+     * within the maximum weight, including new entries not admitted.
+     */
+    long getEvictions();
+
     V get(K key);
 
+    /**
+     * Get the keys most worth keeping, e.g. to load them again after a
+     * restart. Does not count as a use of the keys.
+     *
+     * @return at most the given number of keys, the most worth keeping (e.g.
+     * the most recently used) first.
+     */
+    List<K> getHotKeys(int limit);
+
     void put(K key, V value);
 
+    /**
+     * Drop the entry of the key, if any, e.g. when its current value is not
+     * known. Does not count as an eviction.
+     */
+    void remove(K key);
+
     void clear();
 }
@@ -0,0 +1,96 @@
+package server;
+
+import app_kvServer.IKVServer;
+import shared.Protocol;
+
+public class CacheFactory {
+
+    /**
+     * The frequencies of an LFU cache are halved every this many accesses
+     * per entry of capacity.
+     */
+    public static final int LFU_AGING_FACTOR = 10;
+
+    /**
+     * Weight in bytes of the largest entry of strings a request can carry.
+     */
+    public static final long MAX_STRING_ENTRY_BYTES =
+            Cache.ENTRY_OVERHEAD_BYTES + 2L * Protocol.MAX_BODY_BYTES;
+
+    private CacheFactory() {
+    }
+
+    /**
+     * Create a thread-safe cache for the given replacement strategy.
+     *
+     * @param cacheSize     specifies how many key-value pairs the cache is
+     *                      allowed to keep in-memory
+     * @param cacheStrategy specifies the cache replacement strategy
+     */
+    public static <K, V> Cache<K, V> createCache(int cacheSize,
+                                                 IKVServer.CacheStrategy cacheStrategy) {
+        return createCache(cacheSize, cacheStrategy, Cache.UNLIMITED_WEIGHT,
+                Weigher.ENTRIES);
+    }
+
+    /**
+     * Create a thread-safe cache of strings, limited both in number of
+     * entries and in bytes. Unlike {@link #createCache}, supports the
+     * off-heap strategy.
+     *
+     * @param cacheOptions the maximum size in bytes of the entries and the
+     *                     arena size of an off-heap cache
+     */
+    public static Cache<String, String> createStringCache(int cacheSize,
+                                                          IKVServer.CacheStrategy cacheStrategy,
+                                                          CacheOptions cacheOptions) {
+        long maxBytes = cacheOptions.getMaxBytes();
+        if (cacheStrategy == IKVServer.CacheStrategy.OffHeap) {
+            return new SynchronizedCache<>(new OffHeapCache(cacheSize,
+                    maxBytes > 0 ? maxBytes : OffHeapCache.DEFAULT_MAX_BYTES,
+                    cacheOptions.getArenaBytes()));
+        }
+        if (maxBytes > 0 && (cacheStrategy == IKVServer.CacheStrategy.FIFO ||
+                cacheStrategy == IKVServer.CacheStrategy.LRU)) {
+            // Keep the segments large enough for any value
+            return new SegmentedCache<>(cacheSize,
+                    cacheStrategy == IKVServer.CacheStrategy.LRU, maxBytes,
+                    Weigher.STRING_BYTES, MAX_STRING_ENTRY_BYTES);
+        }
+        return createCache(cacheSize, cacheStrategy,
+                maxBytes > 0 ? maxBytes : Cache.UNLIMITED_WEIGHT,
+                Weigher.STRING_BYTES);
+    }
+
+    /**
+     * @param maxWeight maximum total weight of the entries
+     * @param weigher   weight of an entry
+     */
+    public static <K, V> Cache<K, V> createCache(int cacheSize,
+                                                 IKVServer.CacheStrategy cacheStrategy,
+                                                 long maxWeight,
+                                                 Weigher<? super K, ? super V> weigher) {
+        if (cacheStrategy == IKVServer.CacheStrategy.FIFO) {
+            return new SegmentedCache<>(cacheSize, false, maxWeight, weigher);
+        } else if (cacheStrategy == IKVServer.CacheStrategy.LRU) {
+            return new SegmentedCache<>(cacheSize, true, maxWeight, weigher);
+        } else if (cacheStrategy == IKVServer.CacheStrategy.LFU) {
+            return new SynchronizedCache<>(new LFUCache<>(cacheSize,
+                    (long) cacheSize * LFU_AGING_FACTOR, maxWeight, weigher));
+        } else if (cacheStrategy == IKVServer.CacheStrategy.TinyLFU) {
+            return new SynchronizedCache<>(new TinyLFUCache<>(cacheSize,
+                    maxWeight, weigher));
+        } else if (cacheStrategy == IKVServer.CacheStrategy.ARC) {
+            return new SynchronizedCache<>(new ARCCache<>(cacheSize,
+                    maxWeight, weigher));
+        } else if (cacheStrategy == IKVServer.CacheStrategy.OffHeap) {
+            throw new IllegalArgumentException(
+                    "The off-heap cache only holds strings");
+        } else if (cacheStrategy == IKVServer.CacheStrategy.None) {
+            return new DummyCache<>();
+        } else {
+            throw new IllegalArgumentException(
+                    "Unsupported cache strategy: " + cacheStrategy.toString());
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package server;
+
+/**
+ * Options of the cache of a storage, besides its strategy and number of
+ * entries. Setters return this object so that they can be chained.
+ */
+public class CacheOptions {
+
+    private long maxBytes = 0;
+
+    private long arenaBytes = OffHeapCache.DEFAULT_ARENA_BYTES;
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Limit the approximate size in bytes of the cached keys and values; 0
+     * for no limit other than the number of entries (for the off-heap cache,
+     * {@link OffHeapCache#DEFAULT_MAX_BYTES}).
+     */
+    public CacheOptions setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    public long getArenaBytes() {
+        return arenaBytes;
+    }
+
+    /**
+     * Size of the direct buffers allocated at once by the off-heap cache.
+     */
+    public CacheOptions setArenaBytes(long arenaBytes) {
+        this.arenaBytes = arenaBytes;
+        return this;
+    }
+}
@@ -0,0 +1,251 @@
+package server;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Keeps the cache of a storage warm across restarts and data transfers:
+ * every interval, the hottest keys of the cache are saved to a small file,
+ * and on request they are loaded back in the background by reading them
+ * through the storage, throttled to a number of keys per second.
+ * <p>
+ * Keys are read coldest first, so that the hottest keys end up the most
+ * recently used. A new request cancels the warm-up in progress, if any.
+ */
+public class CacheWarmer extends Thread {
+
+    private static final Logger logger = Logger.getRootLogger();
+
+    public static final long DEFAULT_KEYS_PER_SECOND = 1000;
+    public static final long DEFAULT_INTERVAL_MILLIS = 60_000;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final IKVStorage storage;
+    private final File file;
+    private final int maxKeys;
+    /**
+     * Counts keys rather than bytes.
+     */
+    private final IOThrottle throttle;
+    private final long intervalMillis;
+
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    /**
+     * NOTE: The warmer is woken through this rather than interrupted, since
+     * an interrupt would close the channels of the files being read.
+     */
+    private final Object signal = new Object();
+    /**
+     * Keys to load of the pending warm-up; null if none. Guarded by signal.
+     */
+    private Predicate<String> pendingFilter = null;
+    private final AtomicLong warmUpRequests = new AtomicLong(0);
+    /**
+     * Whether a warm-up was cut short by a shutdown, in which case the
+     * cache is not saved, not to lose the keys not loaded yet.
+     */
+    private volatile boolean interrupted = false;
+
+    private final AtomicLong snapshots = new AtomicLong(0);
+    private final AtomicLong warmedKeys = new AtomicLong(0);
+
+    public CacheWarmer(IKVStorage storage, File file, int maxKeys) {
+        this(storage, file, maxKeys, DEFAULT_KEYS_PER_SECOND,
+                DEFAULT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param storage        the storage whose cache to warm.
+     * @param file           the file the keys are saved to.
+     * @param maxKeys        maximum number of keys saved.
+     * @param keysPerSecond  rate limit of the warm-ups; 0 for none.
+     * @param intervalMillis time between saves of the keys.
+     */
+    public CacheWarmer(IKVStorage storage, File file, int maxKeys,
+                       long keysPerSecond, long intervalMillis) {
+        super("CacheWarmer");
+        setDaemon(true);
+        this.storage = storage;
+        this.file = file;
+        this.maxKeys = maxKeys;
+        this.throttle = new IOThrottle(keysPerSecond);
+        this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void run() {
+        while (running.get()) {
+            Predicate<String> filter;
+            synchronized (signal) {
+                if (pendingFilter == null) {
+                    try {
+                        signal.wait(intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running.get()) {
+                    return;
+                }
+                filter = pendingFilter;
+                pendingFilter = null;
+            }
+
+            try {
+                if (filter != null) {
+                    warmUp(filter);
+                } else {
+                    save();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.error("Failed to warm up or save the cache", e);
+            }
+        }
+    }
+
+    /**
+     * Warm up the cache in the background with the saved keys accepted by
+     * the filter, which is evaluated when the keys are loaded.
+     */
+    public void requestWarmUp(Predicate<String> filter) {
+        synchronized (signal) {
+            pendingFilter = filter;
+            warmUpRequests.incrementAndGet();
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * Load the saved keys accepted by the filter, in the calling thread.
+     *
+     * @return the number of keys loaded.
+     */
+    public int warmUp(Predicate<String> filter) throws IOException,
+            InterruptedException {
+        long request = warmUpRequests.get();
+        List<String> keys = load();
+        int loaded = 0;
+        for (int i = keys.size() - 1; i >= 0; --i) {
+            if (!running.get()) {
+                interrupted = true;
+                break;
+            }
+            if (warmUpRequests.get() != request) {
+                break;
+            }
+            String key = keys.get(i);
+            if (filter.test(key)) {
+                throttle.acquire(1);
+                storage.get(key);
+                ++loaded;
+            }
+        }
+        warmedKeys.addAndGet(loaded);
+        logger.info(String.format("Warmed up the cache with %d of %d keys",
+                loaded, keys.size()));
+        return loaded;
+    }
+
+    /**
+     * Save the hottest keys of the cache, replacing the file atomically.
+     * Called by the warmer and when the cache is replaced. An empty cache
+     * (e.g. while there is no cache) does not replace the saved keys.
+     */
+    public synchronized void save() throws IOException {
+        List<String> keys = storage.getHotKeys(maxKeys);
+        if (keys.isEmpty()) {
+            return;
+        }
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            output.writeInt(keys.size());
+            for (String key : keys) {
+                output.writeUTF(key);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        snapshots.incrementAndGet();
+        logger.debug(String.format("Saved %d cached keys", keys.size()));
+    }
+
+    /**
+     * @return the saved keys, the hottest first; empty if none were saved.
+     */
+    public List<String> load() throws IOException {
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+        List<String> keys = new ArrayList<>();
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            int count = input.readInt();
+            for (int i = 0; i < count; ++i) {
+                keys.add(input.readUTF());
+            }
+        } catch (EOFException e) {
+            logger.warn("Truncated cache key file: " + file);
+        }
+        return keys;
+    }
+
+    /**
+     * Stop the warmer after the key being loaded, if any, and save the keys
+     * of the cache unless a warm-up is pending or was cut short.
+     */
+    public void shutdown() {
+        running.set(false);
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        boolean pending;
+        synchronized (signal) {
+            pending = pendingFilter != null;
+        }
+        if (!interrupted && !pending) {
+            try {
+                save();
+            } catch (IOException e) {
+                logger.error("Failed to save the cached keys", e);
+            }
+        }
+    }
+
+    public Map<String, Number> getStatistics() {
+        Map<String, Number> statistics = new LinkedHashMap<>();
+        statistics.put("cacheSnapshots", snapshots.get());
+        statistics.put("cacheWarmedKeys", warmedKeys.get());
+        statistics.put("cacheWarmThrottledMillis",
+                throttle.getThrottledMillis());
+        return statistics;
+    }
+}
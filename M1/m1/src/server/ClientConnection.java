@@ -1,11 +1,15 @@
 package server;
 
+import app_kvServer.IKVServer;
 import app_kvServer.KVServer;
+import ecs.CacheConfigArgs;
 import ecs.MoveDataArgs;
 import org.apache.log4j.Logger;
 import shared.*;
 import shared.messages.KVMessage;
 import shared.messages.KVMessageImpl;
+import shared.messages.LeaseArgs;
+import shared.messages.PutBatchArgs;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -13,6 +17,7 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -185,36 +190,35 @@ public class ClientConnection implements Runnable {
         Metadata metadata = server.metadata.get();
         if (metadata == null) return false;
 
-        ECSNode node = metadata.getServer(Metadata.getRingPosition(key));
+        ECSNode node = metadata.getServer(RingPosition.of(key));
         return node != null && nodeName.equals(node.getNodeName());
     }
 
     private boolean isResponsibleForKeyRead(String key) {
-        String nodeName = server.getNodeName();
-        if (nodeName == null) {
-            logger.error("Server name is null");
-            return false;
-        }
-        Metadata metadata = server.metadata.get();
-        if (metadata == null) return false;
+        return server.isResponsibleForKeyRead(key);
+    }
 
-        ECSNode node = metadata.getServer(Metadata.getRingPosition(key));
-        if (node == null) {
-            return false;
-        }
-        if (nodeName.equals(node.getNodeName())) {
-            return true;
-        }
-        // Replicas can serve read request
-        node = metadata.getSuccessor(node);
-        if (nodeName.equals(node.getNodeName())) {
-            return true;
+    /**
+     * Grant a near cache lease with the value, if the request asks for one
+     * and leases are enabled; if the request gives the version of the value,
+     * the value is not sent again.
+     */
+    private KVMessage handleGetSuccess(String key, String value,
+                                       KVMessage requestMessage) {
+        long leaseMillis = server.getLeaseMillis();
+        Object arg = requestMessage.getECSCommandArg();
+        if (leaseMillis <= 0 || !(arg instanceof LeaseArgs)) {
+            return new KVMessageImpl(key, value,
+                    KVMessage.StatusType.GET_SUCCESS);
         }
-        node = metadata.getSuccessor(node);
-        if (nodeName.equals(node.getNodeName())) {
-            return true;
+        long version = LeaseArgs.versionOf(value);
+        LeaseArgs lease = new LeaseArgs(version, leaseMillis);
+        if (Long.valueOf(version).equals(((LeaseArgs) arg).getVersion())) {
+            return new KVMessageImpl(key, null, null,
+                    KVMessage.StatusType.GET_NOT_MODIFIED, lease);
         }
-        return false;
+        return new KVMessageImpl(key, value, null,
+                KVMessage.StatusType.GET_SUCCESS, lease);
     }
 
     private KVMessage handleNotResponsible() {
@@ -268,8 +272,8 @@ public class ClientConnection implements Runnable {
                         responseMessage = new KVMessageImpl(key, null,
                                 KVMessage.StatusType.GET_ERROR);
                     } else {
-                        responseMessage = new KVMessageImpl(key, value,
-                                KVMessage.StatusType.GET_SUCCESS);
+                        responseMessage = handleGetSuccess(key, value,
+                                requestMessage);
                     }
                     break;
                 }
@@ -388,6 +392,61 @@ public class ClientConnection implements Runnable {
                 break;
             }
 
+            case ECS_PUT_BATCH: {
+                if (inTransaction.get()) {
+                    responseMessage = new KVMessageImpl(null,
+                            "Transaction started. Use TRANSACTION_PUT instead",
+                            KVMessage.StatusType.FAILED);
+                    break;
+                }
+
+                Object arg = requestMessage.getECSCommandArg();
+                if (!(arg instanceof PutBatchArgs)) {
+                    responseMessage = new KVMessageImpl(null, "Invalid batch",
+                            KVMessage.StatusType.FAILED);
+                    break;
+                }
+                Map<String, String> values = ((PutBatchArgs) arg).getValues();
+
+                String lockedKey = null;
+                for (String key : values.keySet()) {
+                    if (this.server.isKeyLocked(key, this)) {
+                        lockedKey = key;
+                        break;
+                    }
+                }
+                if (lockedKey != null) {
+                    responseMessage = new KVMessageImpl(null,
+                            "Key locked by another transaction: " + lockedKey,
+                            KVMessage.StatusType.SERVER_WRITE_LOCK);
+                    break;
+                }
+
+                Map<String, KVMessage.StatusType> putResponseTypes;
+                try {
+                    putResponseTypes = storage.putMany(values);
+                } catch (IOException e) {
+                    responseMessage = new KVMessageImpl(null,
+                            "Internal server error: " +
+                                    Util.getStackTraceString(e),
+                            KVMessage.StatusType.FAILED);
+                    break;
+                }
+                responseMessage = new KVMessageImpl(null, null,
+                        KVMessage.StatusType.ECS_SUCCESS);
+                for (Map.Entry<String, KVMessage.StatusType> entry :
+                        putResponseTypes.entrySet()) {
+                    if (!PUT_SUCCESS_STATUS.contains(entry.getValue())) {
+                        responseMessage = new KVMessageImpl(entry.getKey(),
+                                "Invalid response for PUT operation: " +
+                                        entry.getValue().name(),
+                                KVMessage.StatusType.FAILED);
+                        break;
+                    }
+                }
+                break;
+            }
+
             case TRANSACTION_PUT: {
                 if (!inTransaction.get()) {
                     responseMessage = new KVMessageImpl(null,
@@ -582,6 +641,46 @@ public class ClientConnection implements Runnable {
                 break;
             }
 
+            case ECS_GET_CACHE_STATISTICS: {
+                ManagedCache cache = storage.getCache();
+                if (cache == null) {
+                    responseMessage = new KVMessageImpl(null,
+                            "Storage has no cache",
+                            KVMessage.StatusType.FAILED);
+                } else {
+                    responseMessage = new KVMessageImpl(null,
+                            cache.getCacheStrategy().toString(), null,
+                            KVMessage.StatusType.ECS_SUCCESS,
+                            new LinkedHashMap<>(cache.getStatistics()));
+                }
+                break;
+            }
+
+            case ECS_RECONFIGURE_CACHE: {
+                try {
+                    CacheConfigArgs arg = (CacheConfigArgs) requestMessage
+                            .getECSCommandArg();
+                    boolean success = server.reconfigureCache(
+                            IKVServer.CacheStrategy.fromString(
+                                    arg.getCacheStrategy()),
+                            arg.getCacheSize());
+                    if (success) {
+                        responseMessage = new KVMessageImpl(null, null,
+                                KVMessage.StatusType.ECS_SUCCESS);
+                    } else {
+                        responseMessage = new KVMessageImpl(null,
+                                "Storage has no cache",
+                                KVMessage.StatusType.FAILED);
+                    }
+                } catch (Exception e) {
+                    responseMessage = new KVMessageImpl(null,
+                            "Internal server error: " + Util
+                                    .getStackTraceString(e),
+                            KVMessage.StatusType.FAILED);
+                }
+                break;
+            }
+
             case TRANSACTION_BEGIN: {
                 try {
                     if (!inTransaction.getAndSet(true)) {
@@ -607,30 +706,36 @@ public class ClientConnection implements Runnable {
                 try {
                     if (inTransaction.getAndSet(false)) {
                         boolean successful = true;
+                        Map<String, String> values = new LinkedHashMap<>();
                         for (Map.Entry<String, KVStorageDelta.Value> entry : transactionBuffer
                                 .getEntrySet()) {
+                            values.put(entry.getKey(), entry.getValue().get());
+                        }
 
-                            String key = entry.getKey();
-                            KVStorageDelta.Value value = entry.getValue();
-                            KVMessage.StatusType putResponseType;
-                            try {
-                                putResponseType = storage.put(key, value.get());
-                            } catch (IOException e) {
-                                responseMessage = new KVMessageImpl(null,
-                                        "Internal server error: " +
-                                                Util.getStackTraceString(e),
-                                        KVMessage.StatusType.FAILED);
-                                successful = false;
-                                break;
-                            }
+                        Map<String, KVMessage.StatusType> putResponseTypes;
+                        try {
+                            putResponseTypes = storage.putMany(values);
+                        } catch (IOException e) {
+                            responseMessage = new KVMessageImpl(null,
+                                    "Internal server error: " +
+                                            Util.getStackTraceString(e),
+                                    KVMessage.StatusType.FAILED);
+                            putResponseTypes = null;
+                            successful = false;
+                        }
 
-                            if (!PUT_SUCCESS_STATUS.contains(putResponseType)) {
-                                responseMessage = new KVMessageImpl(null,
-                                        "Invalid response for PUT operation: " +
-                                                putResponseType.name(),
-                                        KVMessage.StatusType.FAILED);
-                                successful = false;
-                                break;
+                        if (successful) {
+                            for (KVMessage.StatusType putResponseType :
+                                    putResponseTypes.values()) {
+                                if (!PUT_SUCCESS_STATUS
+                                        .contains(putResponseType)) {
+                                    responseMessage = new KVMessageImpl(null,
+                                            "Invalid response for PUT operation: " +
+                                                    putResponseType.name(),
+                                            KVMessage.StatusType.FAILED);
+                                    successful = false;
+                                    break;
+                                }
                             }
                         }
 
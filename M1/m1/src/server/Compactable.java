@@ -0,0 +1,29 @@
+package server;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A storage whose files accumulate garbage (records of overwritten or deleted
+ * keys), which {@link CompactionService} reclaims by rewriting the files.
+ */
+public interface Compactable {
+    /**
+     * @param minGarbageRatio the smallest fraction of garbage bytes of a file
+     *                        worth compacting.
+     * @return the names of the files to compact, most garbage first.
+     */
+    List<String> getCompactionCandidates(double minGarbageRatio);
+
+    /**
+     * Rewrite the file with its live records only, and swap it in
+     * atomically. Reads and writes continue while the file is copied; writes
+     * of the file only wait for the swap.
+     *
+     * @param throttle limits the rate of the copy.
+     * @return the number of bytes reclaimed, or 0 if the file was not
+     * compacted (e.g. it was removed in the meantime).
+     */
+    long compact(String name, IOThrottle throttle) throws IOException,
+            InterruptedException;
+}
@@ -0,0 +1,130 @@
+package server;
+
+import org.apache.log4j.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compacts the files of a storage in the background: every interval, the
+ * files whose fraction of garbage passed a threshold are rewritten one at a
+ * time, with the copy throttled to a number of bytes per second.
+ */
+public class CompactionService extends Thread {
+
+    private static final Logger logger = Logger.getRootLogger();
+
+    public static final double DEFAULT_MIN_GARBAGE_RATIO = 0.5;
+    public static final long DEFAULT_BYTES_PER_SECOND = 8L * 1024 * 1024;
+    public static final long DEFAULT_INTERVAL_MILLIS = 10_000;
+
+    private final Compactable storage;
+    private final double minGarbageRatio;
+    private final IOThrottle throttle;
+    private final long intervalMillis;
+
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    /**
+     * NOTE: The service is woken through this rather than interrupted, since
+     * an interrupt would close the channels of the files being copied.
+     */
+    private final Object signal = new Object();
+
+    private final AtomicLong compactions = new AtomicLong(0);
+    private final AtomicLong reclaimedBytes = new AtomicLong(0);
+
+    public CompactionService(Compactable storage) {
+        this(storage, DEFAULT_MIN_GARBAGE_RATIO, DEFAULT_BYTES_PER_SECOND,
+                DEFAULT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param storage         the storage to compact.
+     * @param minGarbageRatio fraction of garbage after which a file is
+     *                        compacted.
+     * @param bytesPerSecond  rate limit of the copies; 0 for none.
+     * @param intervalMillis  time between checks of the files.
+     */
+    public CompactionService(Compactable storage,
+                             double minGarbageRatio,
+                             long bytesPerSecond,
+                             long intervalMillis) {
+        super("CompactionService");
+        setDaemon(true);
+        this.storage = storage;
+        this.minGarbageRatio = minGarbageRatio;
+        this.throttle = new IOThrottle(bytesPerSecond);
+        this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void run() {
+        while (running.get()) {
+            try {
+                compactAll();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.error("Background compaction failed", e);
+            }
+
+            synchronized (signal) {
+                if (!running.get()) {
+                    return;
+                }
+                try {
+                    signal.wait(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compact all files past the garbage threshold, in the calling thread.
+     */
+    public void compactAll() throws Exception {
+        List<String> candidates = storage.getCompactionCandidates(
+                minGarbageRatio);
+        for (String name : candidates) {
+            if (!running.get()) {
+                return;
+            }
+            long reclaimed = storage.compact(name, throttle);
+            if (reclaimed > 0) {
+                compactions.incrementAndGet();
+                reclaimedBytes.addAndGet(reclaimed);
+                logger.info(String.format("Compacted %s: reclaimed %d bytes",
+                        name, reclaimed));
+            }
+        }
+    }
+
+    /**
+     * Stop the service after the file being compacted, if any.
+     */
+    public void shutdown() {
+        running.set(false);
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Map<String, Number> getStatistics() {
+        Map<String, Number> statistics = new LinkedHashMap<>();
+        statistics.put("compactions", compactions.get());
+        statistics.put("compactionReclaimedBytes", reclaimedBytes.get());
+        statistics.put("compactionThrottledMillis",
+                throttle.getThrottledMillis());
+        return statistics;
+    }
+}
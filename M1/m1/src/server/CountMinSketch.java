@@ -0,0 +1,105 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Estimates how often keys were seen recently, in a fixed amount of memory:
+ * each key maps to one counter per row, and its estimate is the smallest of
+ * them. Counters saturate at 15, and all of them are halved after a number
+ * of additions proportional to the width, so that the estimates follow
+ * changes of popularity.
+ * <p>
+ * NOTE: Methods are not thread-safe.
+ */
+public class CountMinSketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+
+    /**
+     * Number of additions per counter of a row between two resets.
+     */
+    public static final int RESET_FACTOR = 10;
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private final byte[] counters;
+    private final int width;
+    private final long resetPeriod;
+    private long additions = 0;
+
+    /**
+     * @param expectedKeys number of keys whose frequency matters, e.g. the
+     *                     capacity of a cache.
+     */
+    public CountMinSketch(int expectedKeys) {
+        int size = 16;
+        while (size < expectedKeys && size < (1 << 26)) {
+            size <<= 1;
+        }
+        width = size;
+        counters = new byte[DEPTH * width];
+        resetPeriod = (long) RESET_FACTOR * width;
+    }
+
+    /**
+     * Count one occurrence of the key. Only the smallest counters of the key
+     * are incremented, which keeps the estimates of other keys sharing the
+     * larger ones accurate.
+     */
+    public void increment(Object key) {
+        int hash = key.hashCode();
+        int[] indexes = new int[DEPTH];
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; ++i) {
+            indexes[i] = index(hash, i);
+            min = Math.min(min, counters[indexes[i]]);
+        }
+        if (min == MAX_COUNT) {
+            return;
+        }
+        for (int index : indexes) {
+            if (counters[index] == min) {
+                ++counters[index];
+            }
+        }
+        if (++additions >= resetPeriod) {
+            reset();
+        }
+    }
+
+    /**
+     * @return the estimated number of recent occurrences of the key.
+     */
+    public int frequency(Object key) {
+        int hash = key.hashCode();
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; ++i) {
+            min = Math.min(min, counters[index(hash, i)]);
+        }
+        return min;
+    }
+
+    public void clear() {
+        Arrays.fill(counters, (byte) 0);
+        additions = 0;
+    }
+
+    /**
+     * Halve all counters.
+     */
+    private void reset() {
+        for (int i = 0; i < counters.length; ++i) {
+            counters[i] = (byte) (counters[i] >>> 1);
+        }
+        additions /= 2;
+    }
+
+    private int index(int hash, int row) {
+        long mixed = (hash + SEEDS[row]) * SEEDS[row];
+        mixed ^= mixed >>> 32;
+        return row * width + ((int) mixed & (width - 1));
+    }
+}
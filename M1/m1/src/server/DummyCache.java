@@ -1,5 +1,8 @@
 package server;
 
+import java.util.Collections;
+import java.util.List;
+
 public class DummyCache<K, V> implements Cache<K, V> {
     @Override
     public int getSize() {
@@ -11,15 +14,39 @@ public class DummyCache<K, V> implements Cache<K, V> {
         return 0;
     }
 
+    @Override
+    public long getWeight() {
+        return 0;
+    }
+
+    @Override
+    public long getMaxWeight() {
+        return 0;
+    }
+
+    @Override
+    public long getEvictions() {
+        return 0;
+    }
+
     @Override
     public V get(K key) {
         return null;
     }
 
+    @Override
+    public List<K> getHotKeys(int limit) {
+        return Collections.emptyList();
+    }
+
     @Override
     public void put(K key, V value) {
     }
 
+    @Override
+    public void remove(K key) {
+    }
+
     @Override
     public void clear() {
     }
@@ -0,0 +1,290 @@
+package server;
+
+import org.apache.log4j.Logger;
+import shared.RingPosition;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Extendible hashing of keys to buckets. A bucket holds the keys whose MD5
+ * hash (i.e. ring position) starts with a given sequence of bits; its hash
+ * value is {@link #BUCKET_PREFIX} followed by the bits, e.g. "x" for the
+ * single bucket of an empty node, or "x01" for the keys starting with bits
+ * 01. A bucket whose file grows past the maximum size is split into the
+ * buckets of its bits followed by 0 and by 1, so that small nodes keep few
+ * files and the files of large nodes stay bounded in size.
+ * <p>
+ * The list of buckets is saved in {@link #DIRECTORY_FILE_NAME} in the data
+ * directory. Lookups go through a directory of 2^depth entries indexed by the
+ * first depth bits of the hash, where depth is that of the deepest bucket.
+ */
+public class ExtendibleKeyHashStrategy implements SplittingKeyHashStrategy {
+
+    /**
+     * An immutable directory, replaced as a whole when a bucket is split.
+     */
+    private static class Directory {
+        final int depth;
+        final String[] buckets;
+
+        Directory(int depth, String[] buckets) {
+            this.depth = depth;
+            this.buckets = buckets;
+        }
+    }
+
+    private static final Logger logger = Logger.getRootLogger();
+
+    public static final String BUCKET_PREFIX = "x";
+
+    public static final String DIRECTORY_FILE_NAME = "buckets.directory";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    public static final long DEFAULT_MAX_BUCKET_BYTES = 4L * 1024 * 1024;
+
+    /**
+     * Maximum number of bits of a bucket, which bounds the size of the
+     * directory.
+     */
+    public static final int MAX_DEPTH = 20;
+
+    /**
+     * MessageDigest is not thread-safe, so each thread gets its own.
+     */
+    private final ThreadLocal<MessageDigest> hashGenerator;
+
+    private final Path directoryFile;
+    private final long maxBucketBytes;
+
+    private volatile Directory directory;
+
+    /**
+     * @param rootPath       data directory holding the bucket files.
+     * @param maxBucketBytes file size after which a bucket is split.
+     */
+    public ExtendibleKeyHashStrategy(String rootPath,
+                                     long maxBucketBytes) throws
+            IOException, NoSuchAlgorithmException {
+        // Fail early if MD5 is unavailable
+        MessageDigest.getInstance("MD5");
+        hashGenerator = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        this.maxBucketBytes = maxBucketBytes;
+
+        File root = new File(rootPath);
+        if (!root.exists()) {
+            root.mkdirs();
+        }
+        directoryFile = Paths.get(rootPath, DIRECTORY_FILE_NAME);
+        Files.deleteIfExists(Paths.get(directoryFile + TEMP_SUFFIX));
+
+        List<String> buckets = new ArrayList<>();
+        if (Files.exists(directoryFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(
+                    directoryFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        buckets.add(line);
+                    }
+                }
+            }
+        } else {
+            buckets.add(BUCKET_PREFIX);
+        }
+        directory = buildDirectory(buckets);
+        deleteOrphanedFiles(root, new LinkedHashSet<>(buckets));
+        logger.info(String.format("Loaded %d buckets of depth up to %d",
+                buckets.size(), directory.depth));
+    }
+
+    @Override
+    public String hashKey(String key) {
+        Directory current = directory;
+        return current.buckets[index(digest(key), current.depth)];
+    }
+
+    @Override
+    public boolean isBucketInRange(String hash,
+                                   String hashRangeStart,
+                                   String hashRangeEnd) {
+        if (!hash.startsWith(BUCKET_PREFIX)) {
+            return false;
+        }
+        int depth = hash.length() - BUCKET_PREFIX.length();
+        // Lowest and highest ring positions of the bucket; depth <= 64, so
+        // the bits only make up the high half
+        long prefix = depth == 0 ? 0 : Long.parseLong(
+                hash.substring(BUCKET_PREFIX.length()), 2) << (64 - depth);
+        long suffix = depth == 0 ? -1L : -1L >>> depth;
+        RingPosition low = new RingPosition(prefix, 0);
+        RingPosition high = new RingPosition(prefix | suffix, -1L);
+        RingPosition start = RingPosition.fromHex(hashRangeStart);
+        RingPosition end = RingPosition.fromHex(hashRangeEnd);
+
+        if (start.compareTo(end) > 0) {
+            return high.compareTo(start) > 0 || low.compareTo(end) <= 0;
+        } else {
+            return high.compareTo(start) > 0 && low.compareTo(end) <= 0;
+        }
+    }
+
+    @Override
+    public long getMaxBucketBytes() {
+        return maxBucketBytes;
+    }
+
+    @Override
+    public boolean isBucket(String hash) {
+        Directory current = directory;
+        int depth = hash.length() - BUCKET_PREFIX.length();
+        if (!hash.startsWith(BUCKET_PREFIX) || depth > current.depth) {
+            return false;
+        }
+        int bits = depth == 0 ? 0 : Integer.parseInt(
+                hash.substring(BUCKET_PREFIX.length()), 2);
+        return hash.equals(current.buckets[bits << (current.depth - depth)]);
+    }
+
+    @Override
+    public String[] getSplitBuckets(String hash) {
+        if (hash.length() - BUCKET_PREFIX.length() >= MAX_DEPTH) {
+            return null;
+        }
+        return new String[]{hash + "0", hash + "1"};
+    }
+
+    @Override
+    public int getSplitIndex(String hash, String key) {
+        int bit = hash.length() - BUCKET_PREFIX.length();
+        byte[] digest = digest(key);
+        return (digest[bit >>> 3] >>> (7 - (bit & 7))) & 1;
+    }
+
+    @Override
+    public synchronized void split(String hash) throws IOException {
+        String[] children = getSplitBuckets(hash);
+        if (children == null || !isBucket(hash)) {
+            throw new IllegalArgumentException(
+                    "Unable to split bucket " + hash);
+        }
+
+        List<String> buckets = new ArrayList<>(getBuckets());
+        buckets.remove(hash);
+        buckets.addAll(Arrays.asList(children));
+        saveDirectory(buckets);
+        directory = buildDirectory(buckets);
+    }
+
+    /**
+     * @return the hash values of all buckets.
+     */
+    public List<String> getBuckets() {
+        return new ArrayList<>(new LinkedHashSet<>(
+                Arrays.asList(directory.buckets)));
+    }
+
+    private byte[] digest(String key) {
+        return hashGenerator.get().digest(key.getBytes());
+    }
+
+    /**
+     * @return the first depth bits of the digest.
+     */
+    private static int index(byte[] digest, int depth) {
+        if (depth == 0) {
+            return 0;
+        }
+        int prefix = ((digest[0] & 0xff) << 24) | ((digest[1] & 0xff) << 16) |
+                ((digest[2] & 0xff) << 8) | (digest[3] & 0xff);
+        return prefix >>> (32 - depth);
+    }
+
+    private static Directory buildDirectory(List<String> buckets) {
+        int depth = 0;
+        for (String bucket : buckets) {
+            depth = Math.max(depth, bucket.length() - BUCKET_PREFIX.length());
+        }
+        String[] entries = new String[1 << depth];
+        for (String bucket : buckets) {
+            int bucketDepth = bucket.length() - BUCKET_PREFIX.length();
+            int bits = bucketDepth == 0 ? 0 : Integer.parseInt(
+                    bucket.substring(BUCKET_PREFIX.length()), 2);
+            int first = bits << (depth - bucketDepth);
+            int last = (bits + 1) << (depth - bucketDepth);
+            Arrays.fill(entries, first, last, bucket);
+        }
+        for (String entry : entries) {
+            if (entry == null) {
+                throw new IllegalStateException(
+                        "Bucket directory does not cover all keys");
+            }
+        }
+        return new Directory(depth, entries);
+    }
+
+    /**
+     * Replace the directory file atomically.
+     */
+    private void saveDirectory(List<String> buckets) throws IOException {
+        Path tempFile = Paths.get(directoryFile + TEMP_SUFFIX);
+        try (FileOutputStream file = new FileOutputStream(
+                tempFile.toFile())) {
+            BufferedWriter writer = new BufferedWriter(
+                    new OutputStreamWriter(file, StandardCharsets.UTF_8));
+            for (String bucket : buckets) {
+                writer.write(bucket);
+                writer.newLine();
+            }
+            writer.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(tempFile, directoryFile,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Delete the files of buckets which are not in the directory, left over
+     * from a split interrupted before or after the directory was saved.
+     */
+    private static void deleteOrphanedFiles(File root,
+                                            Set<String> buckets) throws
+            IOException {
+        File[] files = root.listFiles((dir, name) ->
+                KVFileStorage.isBucketFile(name) &&
+                        name.startsWith(BUCKET_PREFIX) &&
+                        !buckets.contains(name));
+        if (files == null) {
+            throw new IOException("Unable to list directory " + root);
+        }
+        for (File file : files) {
+            logger.info("Deleting orphaned bucket file " + file);
+            Files.delete(file.toPath());
+            Files.deleteIfExists(Paths.get(
+                    file + KVFileStorage.BLOOM_FILTER_SUFFIX));
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package server;
+
+/**
+ * Options of the bucket files of {@link KVFileStorage}. Setters return this
+ * object so that they can be chained.
+ */
+public class FileStorageOptions {
+
+    private boolean memoryMappedReads = false;
+
+    private ValueCompressor compressor = new ValueCompressor();
+
+    public boolean isMemoryMappedReads() {
+        return memoryMappedReads;
+    }
+
+    /**
+     * Read records through a read-only memory mapping of the file, instead
+     * of opening the file for every read. Best when the data fits in the
+     * page cache.
+     */
+    public FileStorageOptions setMemoryMappedReads(boolean memoryMappedReads) {
+        this.memoryMappedReads = memoryMappedReads;
+        return this;
+    }
+
+    public ValueCompressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * Compress the values of new records. The compressor is shared by all
+     * files using these options, and collects their statistics.
+     */
+    public FileStorageOptions setCompressor(ValueCompressor compressor) {
+        this.compressor = compressor;
+        return this;
+    }
+}
@@ -3,6 +3,8 @@ package server;
 import shared.messages.KVMessage;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * NOTE: Methods may not be thread-safe.
@@ -12,4 +14,52 @@ public interface IKVFileStorage {
 
     public KVMessage.StatusType write(String key, String value) throws
             IOException;
+
+    /**
+     * Read several keys with the file opened once.
+     *
+     * @return the value of each key found; absent keys are left out.
+     */
+    public Map<String, String> readMany(Collection<String> keys) throws
+            IOException;
+
+    /**
+     * Write several key-value pairs (a null value deletes the key), appending
+     * the new records at once.
+     *
+     * @return the status of each write.
+     */
+    public Map<String, KVMessage.StatusType> writeMany(
+            Map<String, String> entries) throws IOException;
+
+    /**
+     * Open a cursor over the live records whose ring position is in the
+     * given range, read sequentially from the part of the file written so
+     * far. The cursor may be used after the caller's lock on the file is
+     * released; records appended later are not seen.
+     */
+    public KVCursor scan(String hashRangeStart,
+                         String hashRangeEnd) throws IOException;
+
+    /**
+     * @return false if the key is definitely not stored; true if it may be.
+     */
+    public boolean mightContain(String key) throws IOException;
+
+    /**
+     * @return the number of reads and deletes of absent keys answered by the
+     * Bloom filter without disk access.
+     */
+    public long getBloomFilterNegatives();
+
+    /**
+     * @return the number of reads and deletes of absent keys the Bloom filter
+     * did not rule out.
+     */
+    public long getBloomFilterFalsePositives();
+
+    /**
+     * Force the written records to disk.
+     */
+    public void sync() throws IOException;
 }
@@ -3,7 +3,11 @@ package server;
 import shared.messages.KVMessage;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * NOTE: Methods must be thread-safe.
@@ -13,11 +17,72 @@ public interface IKVStorage {
 
     KVMessage.StatusType put(String key, String value) throws IOException;
 
+    /**
+     * Get the values of several keys; engines read each file once for all
+     * the keys it holds.
+     *
+     * @return the value of each key (null if absent), in the given order.
+     */
+    default Map<String, String> getMany(Collection<String> keys) throws
+            IOException {
+        Map<String, String> values = new LinkedHashMap<>();
+        for (String key : keys) {
+            values.put(key, get(key));
+        }
+        return values;
+    }
+
+    /**
+     * Put several key-value pairs (a null value deletes the key); engines
+     * apply all writes to a file at once.
+     *
+     * @return the status of each put, in the given order.
+     */
+    default Map<String, KVMessage.StatusType> putMany(
+            Map<String, String> entries) throws IOException {
+        Map<String, KVMessage.StatusType> responses = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            responses.put(entry.getKey(),
+                    put(entry.getKey(), entry.getValue()));
+        }
+        return responses;
+    }
+
     void clearCache();
 
+    /**
+     * @return at most the given number of cached keys, the most worth
+     * keeping first; see {@link Cache#getHotKeys}. Empty if the storage has
+     * no cache.
+     */
+    default List<String> getHotKeys(int limit) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return the cache of the storage, e.g. to report its statistics or to
+     * replace it while in use; null if the storage has no cache.
+     */
+    default ManagedCache getCache() {
+        return null;
+    }
+
     List<String> getAllKeys(String hashRangeStart,
                             String hashRangeEnd) throws IOException;
 
+    /**
+     * Open a cursor over the live key-value pairs whose ring position is in
+     * the given range. Engines stream the pairs from their files in one pass,
+     * with bounded memory and without going through the cache.
+     * <p>
+     * The default lists the keys and reads them in small batches.
+     */
+    default KVCursor scanRange(String hashRangeStart,
+                               String hashRangeEnd) throws IOException {
+        return new KeyListCursor(this,
+                getAllKeys(hashRangeStart, hashRangeEnd));
+    }
+
     /**
      * @return The logical time of when the current delta started recording;
      * null if no delta is currently being recorded.
@@ -34,4 +99,17 @@ public interface IKVStorage {
     KVStorageDelta startNextDeltaRecording(int logicalTime,
                                            String hashRangeStart,
                                            String hashRangeEnd);
+
+    /**
+     * @return metrics of the storage by name, e.g. for logging.
+     */
+    default Map<String, Number> getStatistics() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Make all completed writes durable, i.e. force them to disk.
+     */
+    default void sync() throws IOException {
+    }
 }
@@ -0,0 +1,64 @@
+package server;
+
+/**
+ * Limits the rate of background I/O to a number of bytes per second, so that
+ * it leaves most of the disk bandwidth to foreground requests. Up to one
+ * second worth of bytes may be used in a burst after an idle period.
+ * <p>
+ * NOTE: Methods are thread-safe; concurrent callers share the rate.
+ */
+public class IOThrottle {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long bytesPerSecond;
+
+    /**
+     * Time at which the bytes acquired so far are paid for.
+     */
+    private long nextFreeNanos = System.nanoTime();
+
+    private long throttledNanos = 0;
+
+    /**
+     * @param bytesPerSecond the rate; 0 for no limit.
+     */
+    public IOThrottle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Wait until the given number of bytes may be read or written.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // Unused time beyond the burst is lost
+            nextFreeNanos = Math.max(nextFreeNanos, now - NANOS_PER_SECOND);
+            nextFreeNanos += bytes * NANOS_PER_SECOND / bytesPerSecond;
+            waitNanos = nextFreeNanos - now;
+            if (waitNanos > 0) {
+                throttledNanos += waitNanos;
+            }
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1_000_000,
+                    (int) (waitNanos % 1_000_000));
+        }
+    }
+
+    /**
+     * @return the total time callers were made to wait, in milliseconds.
+     */
+    public synchronized long getThrottledMillis() {
+        return throttledNanos / 1_000_000;
+    }
+}
@@ -0,0 +1,31 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A forward-only cursor over key-value pairs, e.g. the live records of a
+ * hash range. Holds files open until closed.
+ * <p>
+ * NOTE: A cursor is used by one thread. Writes made while it is open may or
+ * may not be seen, and a key written during the scan may be skipped; callers
+ * moving data block writes or record them in a delta.
+ */
+public interface KVCursor extends Closeable {
+    /**
+     * Move to the next pair.
+     *
+     * @return false if there are no more pairs.
+     */
+    boolean next() throws IOException;
+
+    /**
+     * @return the key of the current pair.
+     */
+    String getKey();
+
+    /**
+     * @return the value of the current pair; never null.
+     */
+    String getValue();
+}
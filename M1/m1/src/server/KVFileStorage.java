@@ -1,149 +1,1237 @@
 package server;
 
-import shared.Metadata;
-import shared.Util;
+import org.apache.log4j.Logger;
+import shared.RingPosition;
 import shared.messages.KVMessage;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+import java.util.zip.CRC32;
 
+/**
+ * A bucket file in a binary format. The file starts with {@link #MAGIC},
+ * followed by records of the form: flags (1 byte), CRC32 of the rest of the
+ * record (4 bytes), key length (4 bytes), value length (4 bytes), then the key
+ * and the value in UTF-8. A delete sets the {@link #FLAG_TOMBSTONE} bit of the
+ * record in place; an update appends a new record, then marks the old one
+ * deleted. If the update fails in between, the newer of the live records of
+ * a key wins, and the older is marked deleted by the next write.
+ * <p>
+ * Bits 1 to 3 of the flags hold the id of the codec the value is compressed
+ * with (see {@link ValueCompressor}), 0 for none; the value length is that of
+ * the stored bytes. A non-zero codec id is covered by the CRC.
+ * <p>
+ * A Bloom filter of the keys is kept beside the file (with suffix {@link
+ * #BLOOM_FILTER_SUFFIX}), so that reads and deletes of absent keys usually
+ * need no disk access. The saved filter records the length of the file it
+ * covers; records appended after that are added when the filter is loaded.
+ * <p>
+ * With {@link FileStorageOptions#setMemoryMappedReads}, records are read from
+ * a read-only mapping of the file, which is remapped when a record beyond its
+ * end is read (i.e. after appends).
+ * <p>
+ * The object owns its file: the index and the filter are only checked
+ * against the file when they are built, and when the file is reopened to be
+ * remapped, not on every read. Changes made through another object are
+ * therefore not seen.
+ * <p>
+ * NOTE: read and readKeys may be called concurrently; write must be called
+ * exclusively (i.e. not concurrently with any other method).
+ */
 public class KVFileStorage implements IKVFileStorage {
 
+    /**
+     * Location of a record in the file.
+     */
+    private static class IndexEntry {
+        final long offset;
+        final int length;
+
+        IndexEntry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private interface RecordConsumer {
+        void accept(String key, long offset, int length);
+    }
+
+    /**
+     * Reads the records of the file one at a time, through a buffer, up to
+     * a given length of the file.
+     */
+    private class RecordReader implements Closeable {
+        private final FileInputStream file;
+        private final DataInputStream input;
+        private final long length;
+        private final byte[] header = new byte[HEADER_BYTES];
+        /**
+         * Offset of the last record returned.
+         */
+        private long offset = -1;
+        /**
+         * Offset after the last record returned.
+         */
+        private long end;
+
+        /**
+         * @param from   the offset of the first record to read, or 0.
+         * @param length the length of the file.
+         */
+        RecordReader(long from, long length) throws IOException {
+            this.length = length;
+            file = new FileInputStream(filename);
+            try {
+                DataInputStream magic = new DataInputStream(file);
+                if (length < MAGIC_BYTES || magic.readInt() != MAGIC) {
+                    throw new IOException("Unrecognized bucket file format: " +
+                            filename + " (files of the old CSV format must " +
+                            "be converted with server.BucketFormatMigrator)");
+                }
+                end = Math.max(from, MAGIC_BYTES);
+                file.getChannel().position(end);
+                input = new DataInputStream(
+                        new BufferedInputStream(file, 1 << 16));
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the next valid record (live or deleted), or null at the end
+         * of the valid part of the file.
+         */
+        byte[] next() throws IOException {
+            if (end + HEADER_BYTES > length) {
+                return null;
+            }
+            input.readFully(header);
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+            int keyLength = headerBuffer.getInt(5);
+            int valueLength = headerBuffer.getInt(9);
+            if (keyLength < 0 || valueLength < 0 || end + HEADER_BYTES +
+                    keyLength + valueLength > length) {
+                return null;
+            }
+            byte[] record = new byte[HEADER_BYTES + keyLength + valueLength];
+            System.arraycopy(header, 0, record, 0, HEADER_BYTES);
+            input.readFully(record, HEADER_BYTES, keyLength + valueLength);
+            if (!isValid(record)) {
+                return null;
+            }
+            offset = end;
+            end += record.length;
+            return record;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        long getEnd() {
+            return end;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * A cursor over the live records of a hash range, read sequentially from
+     * the part of the file written when it was opened.
+     */
+    private class RangeCursor implements KVCursor {
+        private final RecordReader reader;
+        private final RingPosition start;
+        private final RingPosition end;
+        private String key = null;
+        private String value = null;
+
+        RangeCursor(RecordReader reader, RingPosition start,
+                    RingPosition end) {
+            this.reader = reader;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (reader == null) {
+                return false;
+            }
+            byte[] record;
+            while ((record = reader.next()) != null) {
+                // Deletes set the flag in place, outside of the CRC
+                if (isDeleted(record)) {
+                    continue;
+                }
+                String recordKey = decodeKey(record);
+                if (RingPosition.of(recordKey).isInRange(start, end)) {
+                    key = recordKey;
+                    value = decodeValue(record);
+                    return true;
+                }
+            }
+            key = null;
+            value = null;
+            return false;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    private static final Logger logger = Logger.getRootLogger();
+
+    /**
+     * The first bytes of a bucket file: "KVB" and a line break, which can not
+     * start a file of the old CSV format (a line without a comma).
+     */
+    public static final int MAGIC = 0x4b56420a;
+    public static final int MAGIC_BYTES = 4;
+
+    private static final byte FLAG_TOMBSTONE = 0x01;
+    private static final int CODEC_SHIFT = 1;
+    private static final int CODEC_MASK = 0x07;
+
+    private static final int HEADER_BYTES = 1 + 4 + 4 + 4;
+    /**
+     * Offset of the part of a record covered by the CRC.
+     */
+    private static final int CRC_START = 1 + 4;
+
+    public static final String BLOOM_FILTER_SUFFIX = ".bloom";
+    private static final String TEMP_SUFFIX = ".tmp";
+    public static final String COMPACTION_SUFFIX = ".compact";
+
+    private static final double BLOOM_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    private static final int MIN_BLOOM_FILTER_CAPACITY = 1024;
+
+    /**
+     * The filter is saved after this many keys were added since it was last
+     * saved.
+     */
+    private static final int BLOOM_FILTER_SAVE_INTERVAL = 1024;
+
     String filename;
 
+    private final FileStorageOptions options;
+
+    /**
+     * Mapping of the beginning of the file; null if not mapped yet. Readers
+     * use duplicates, so that they do not share a position.
+     */
+    private volatile MappedByteBuffer mapping = null;
+
+    /**
+     * Map from key to the location of its live record; built lazily on first
+     * access and kept up to date by write. null if not built yet.
+     */
+    private volatile Map<String, IndexEntry> index = null;
+
+    /**
+     * Length of the file the index covers.
+     */
+    private volatile long indexedLength = 0;
+    /**
+     * Identity (e.g. inode) of the file the index was built for; a file
+     * replaced by someone else is indexed again when it is remapped.
+     */
+    private volatile Object indexedFileKey = null;
+
+    /**
+     * Length of the valid records when the index was built. Anything after
+     * it is a torn record (e.g. from a crash), which is cut off by the next
+     * append.
+     */
+    private long validLength = 0;
+
+    /**
+     * Live records replaced by a newer record of their key, left by an update
+     * that failed before marking them deleted; they are marked deleted by
+     * the next write.
+     */
+    private volatile List<IndexEntry> replacedRecords = new ArrayList<>();
+
+    /**
+     * Total length of the live records, i.e. those in the index; the rest of
+     * the valid part of the file (after the magic number) is garbage.
+     */
+    private volatile long liveBytes = 0;
+
+    /**
+     * Contains every key of the file (and possibly deleted ones); null if not
+     * loaded yet.
+     */
+    private volatile BloomFilter filter = null;
+    /**
+     * Number of keys the filter is sized for; it is rebuilt bigger when more
+     * keys are added.
+     */
+    private int filterCapacity = 0;
+    /**
+     * Length of the file the filter covers.
+     */
+    private volatile long filterLength = 0;
+    private int unsavedFilterInsertions = 0;
+
+    private final AtomicLong filterNegatives = new AtomicLong(0);
+    private final AtomicLong filterFalsePositives = new AtomicLong(0);
+
     public KVFileStorage(String filename) {
+        this(filename, new FileStorageOptions());
+    }
+
+    public KVFileStorage(String filename, FileStorageOptions options) {
         this.filename = filename;
+        this.options = options;
+    }
+
+    /**
+     * A name of a file in a data directory that is a bucket, as opposed to
+     * the other files kept beside the buckets (whose names contain a dot).
+     */
+    public static boolean isBucketFile(String name) {
+        return name.indexOf('.') < 0;
     }
 
     public String read(String key) throws IOException {
-        if (!new File(filename).exists()) return null;
+        if (!mightContain(key)) {
+            filterNegatives.incrementAndGet();
+            return null;
+        }
+
+        byte[] record = null;
+        ByteBuffer mapped = null;
+        if (options.isMemoryMappedReads()) {
+            IndexEntry entry = getIndex().get(key);
+            if (entry != null) {
+                mapped = getMapping(entry.offset + entry.length);
+                if (mapped != null) {
+                    record = readRecord(mapped, entry);
+                }
+            }
+        }
+        if (mapped == null) {
+            try (RandomAccessFile reader = new RandomAccessFile(filename,
+                    "r")) {
+                IndexEntry entry = getIndex().get(key);
+                record = entry == null ? null : readRecord(reader, entry);
+            }
+        }
 
-        try (RandomAccessFile reader = new RandomAccessFile(filename,
-                "r")) {
-            String line = reader.readLine();
-            while (line != null) {
-                List<String> data = Util.csvSplitLine(line);
+        if (record == null || isDeleted(record)) {
+            filterFalsePositives.incrementAndGet();
+            return null;
+        }
+        return decodeValue(record);
+    }
+
+    @Override
+    public Map<String, String> readMany(Collection<String> keys) throws
+            IOException {
+        Map<String, String> values = new HashMap<>();
+        List<String> candidates = new ArrayList<>();
+        for (String key : keys) {
+            if (mightContain(key)) {
+                candidates.add(key);
+            } else {
+                filterNegatives.incrementAndGet();
+            }
+        }
+        if (candidates.isEmpty()) {
+            return values;
+        }
+        if (options.isMemoryMappedReads()) {
+            for (String key : candidates) {
+                String value = read(key);
+                if (value != null) {
+                    values.put(key, value);
+                }
+            }
+            return values;
+        }
+
+        try (RandomAccessFile reader = new RandomAccessFile(filename, "r")) {
+            Map<String, IndexEntry> current = getIndex();
+            // Read in file order, so that the reads are sequential
+            candidates.sort(Comparator.comparingLong(key -> {
+                IndexEntry entry = current.get(key);
+                return entry == null ? Long.MAX_VALUE : entry.offset;
+            }));
+            for (String key : candidates) {
+                IndexEntry entry = current.get(key);
+                byte[] record = entry == null ? null
+                        : readRecord(reader, entry);
+                if (record == null || isDeleted(record)) {
+                    filterFalsePositives.incrementAndGet();
+                } else {
+                    values.put(key, decodeValue(record));
+                }
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public boolean mightContain(String key) throws IOException {
+        return getFilter().mightContain(key);
+    }
+
+    @Override
+    public long getBloomFilterNegatives() {
+        return filterNegatives.get();
+    }
+
+    @Override
+    public long getBloomFilterFalsePositives() {
+        return filterFalsePositives.get();
+    }
 
-                if (data.size() < 2) {
-                    line = reader.readLine();
+    @Override
+    public void sync() throws IOException {
+        if (!new File(filename).exists()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(filename),
+                StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * A split of the file in progress: the live records at the time it
+     * started, copied into new files.
+     */
+    public static class Split {
+        private final Map<String, IndexEntry> snapshot;
+        private final String[] filenames;
+        /**
+         * Location in its new file of each copied record.
+         */
+        private final Map<String, IndexEntry> copied = new HashMap<>();
+        private final long[] lengths;
+
+        private Split(Map<String, IndexEntry> snapshot, String[] filenames) {
+            this.snapshot = snapshot;
+            this.filenames = filenames;
+            this.lengths = new long[filenames.length];
+            Arrays.fill(lengths, MAGIC_BYTES);
+        }
+    }
+
+    /**
+     * Start splitting the file by taking a snapshot of its live records.
+     * <p>
+     * NOTE: Must not be called concurrently with writes.
+     *
+     * @param filenames names of the files to create; existing ones are
+     *                  replaced.
+     */
+    public Split startSplit(String[] filenames) throws IOException {
+        return new Split(new HashMap<>(getIndex()), filenames);
+    }
+
+    /**
+     * Copy the records of the snapshot into the new files, choosing the file
+     * of each record with the selector. Their Bloom filters are built when
+     * they are first read.
+     * <p>
+     * NOTE: May be called concurrently with reads and writes, since records
+     * are never moved and only their flags change.
+     *
+     * @param selector maps a key to the index of its file in the file names.
+     */
+    public void copyInto(Split split,
+                         ToIntFunction<String> selector) throws IOException {
+        String[] filenames = split.filenames;
+        FileOutputStream[] files = new FileOutputStream[filenames.length];
+        DataOutputStream[] outputs = new DataOutputStream[filenames.length];
+        try (RandomAccessFile reader = new RandomAccessFile(filename, "r")) {
+            for (int i = 0; i < filenames.length; ++i) {
+                files[i] = new FileOutputStream(filenames[i]);
+                outputs[i] = new DataOutputStream(
+                        new BufferedOutputStream(files[i], 1 << 16));
+                outputs[i].writeInt(MAGIC);
+            }
+            // Read in file order, so that the reads are sequential
+            List<Map.Entry<String, IndexEntry>> entries =
+                    new ArrayList<>(split.snapshot.entrySet());
+            entries.sort(Comparator.comparingLong(e -> e.getValue().offset));
+            for (Map.Entry<String, IndexEntry> entry : entries) {
+                byte[] record = readRecord(reader, entry.getValue());
+                if (isDeleted(record)) {
                     continue;
                 }
-                if (data.get(0).equals(key)) {
-                    reader.close();
-                    return data.get(1);
+                int i = selector.applyAsInt(entry.getKey());
+                outputs[i].write(record);
+                split.copied.put(entry.getKey(), new IndexEntry(
+                        split.lengths[i], record.length));
+                split.lengths[i] += record.length;
+            }
+            for (DataOutputStream output : outputs) {
+                output.flush();
+            }
+        } finally {
+            for (DataOutputStream output : outputs) {
+                if (output != null) {
+                    output.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Bring the new files up to date with the writes made since the split
+     * started, and force them to disk. The file itself is left as is.
+     * <p>
+     * NOTE: Must be called exclusively.
+     */
+    public void finishSplit(Split split,
+                            ToIntFunction<String> selector) throws
+            IOException {
+        Map<String, IndexEntry> current = getIndex();
+        RandomAccessFile[] writers =
+                new RandomAccessFile[split.filenames.length];
+        try (RandomAccessFile reader = new RandomAccessFile(filename, "r")) {
+            for (int i = 0; i < writers.length; ++i) {
+                writers[i] = new RandomAccessFile(split.filenames[i], "rw");
+            }
+            for (Map.Entry<String, IndexEntry> entry : current.entrySet()) {
+                String key = entry.getKey();
+                IndexEntry old = split.snapshot.get(key);
+                if (split.copied.containsKey(key) &&
+                        old.offset == entry.getValue().offset) {
+                    continue;
                 }
-                line = reader.readLine();
+                // Written since the split started
+                byte[] record = readRecord(reader, entry.getValue());
+                int i = selector.applyAsInt(key);
+                writers[i].seek(split.lengths[i]);
+                writers[i].write(record);
+                split.lengths[i] += record.length;
             }
 
-            return null;
+            // Delete the copies of keys overwritten or deleted since
+            for (Map.Entry<String, IndexEntry> entry :
+                    split.copied.entrySet()) {
+                String key = entry.getKey();
+                IndexEntry now = current.get(key);
+                if (now == null ||
+                        now.offset != split.snapshot.get(key).offset) {
+                    markDeleted(writers[selector.applyAsInt(key)],
+                            entry.getValue());
+                }
+            }
+            for (RandomAccessFile writer : writers) {
+                writer.getChannel().force(true);
+            }
+        } finally {
+            for (RandomAccessFile writer : writers) {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
         }
     }
 
-    public ArrayList<String> readKeys(String hashRangeStart,
-                                      String hashRangeEnd) throws IOException {
-        if (!new File(filename).exists()) return null;
+    /**
+     * Give up a split, deleting the new files.
+     */
+    public static void abortSplit(Split split) throws IOException {
+        for (String name : split.filenames) {
+            Files.deleteIfExists(Paths.get(name));
+        }
+    }
+
+    /**
+     * Delete the file and its Bloom filter. The object must not be used
+     * afterwards.
+     * <p>
+     * NOTE: Must be called exclusively.
+     */
+    public void delete() throws IOException {
+        mapping = null;
+        Files.deleteIfExists(Paths.get(filename));
+        Files.deleteIfExists(Paths.get(filename + BLOOM_FILTER_SUFFIX));
+    }
+
+    /**
+     * @return the fraction of the file taken by records of overwritten or
+     * deleted keys; 0 if the file was not indexed yet.
+     */
+    public double getGarbageRatio() {
+        long length = indexedLength;
+        if (index == null || length <= MAGIC_BYTES) {
+            return 0;
+        }
+        return Math.max(0.0,
+                (double) (length - MAGIC_BYTES - liveBytes) / length);
+    }
+
+    /**
+     * A compaction of the file in progress: the live records at the time it
+     * started, copied into a temporary file.
+     */
+    public static class Compaction {
+        private final Map<String, IndexEntry> snapshot;
+        private final long length;
+        private final File tempFile;
+        /**
+         * Location in the temporary file of the copied records.
+         */
+        private final Map<String, IndexEntry> copied = new HashMap<>();
+        private long copiedLength = MAGIC_BYTES;
+
+        private Compaction(Map<String, IndexEntry> snapshot, long length,
+                           File tempFile) {
+            this.snapshot = snapshot;
+            this.length = length;
+            this.tempFile = tempFile;
+        }
+    }
 
-        try (RandomAccessFile reader = new RandomAccessFile(filename,
-                "r")) {
-            ArrayList<String> keys = new ArrayList<>();
-            String line = reader.readLine();
-            while (line != null) {
-                List<String> data = Util.csvSplitLine(line);
+    /**
+     * Start compacting the file by taking a snapshot of its live records.
+     * <p>
+     * NOTE: Must not be called concurrently with writes.
+     *
+     * @return null if the file is empty.
+     */
+    public Compaction startCompaction() throws IOException {
+        File file = new File(filename);
+        long length = file.exists() ? file.length() : 0;
+        if (length == 0) {
+            return null;
+        }
+        Map<String, IndexEntry> snapshot = new HashMap<>(getIndex());
+        return new Compaction(snapshot, length,
+                new File(filename + COMPACTION_SUFFIX));
+    }
 
-                if (data.size() < 2) {
-                    line = reader.readLine();
+    /**
+     * Copy the records of the snapshot into the temporary file, in file
+     * order, at the rate allowed by the throttle.
+     * <p>
+     * NOTE: May be called concurrently with reads and writes, since records
+     * are never moved and only their flags change.
+     */
+    public void copyLiveRecords(Compaction compaction,
+                                IOThrottle throttle) throws IOException,
+            InterruptedException {
+        List<Map.Entry<String, IndexEntry>> entries =
+                new ArrayList<>(compaction.snapshot.entrySet());
+        entries.sort(Comparator.comparingLong(e -> e.getValue().offset));
+        try (RandomAccessFile reader = new RandomAccessFile(filename, "r");
+             FileOutputStream file = new FileOutputStream(
+                     compaction.tempFile)) {
+            DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(file, 1 << 16));
+            output.writeInt(MAGIC);
+            for (Map.Entry<String, IndexEntry> entry : entries) {
+                byte[] record = readRecord(reader, entry.getValue());
+                if (isDeleted(record)) {
                     continue;
                 }
-                String key = data.get(0);
-                String keyHash = Metadata.getRingPosition(key);
-                if (hashRangeStart.compareTo(hashRangeEnd) > 0) {
-                    if (keyHash.compareTo(hashRangeStart) > 0 || keyHash
-                            .compareTo(hashRangeEnd) <= 0) {
-                        keys.add(key);
-                    }
+                throttle.acquire(record.length);
+                output.write(record);
+                compaction.copied.put(entry.getKey(), new IndexEntry(
+                        compaction.copiedLength, record.length));
+                compaction.copiedLength += record.length;
+            }
+            output.flush();
+        }
+    }
+
+    /**
+     * Bring the temporary file up to date with the writes made since the
+     * compaction started, and swap it in for the file.
+     * <p>
+     * NOTE: Must be called exclusively.
+     *
+     * @return the number of bytes reclaimed.
+     */
+    public long finishCompaction(Compaction compaction) throws IOException {
+        File file = new File(filename);
+        long length = file.length();
+        Map<String, IndexEntry> current = getIndex();
+        Map<String, IndexEntry> newIndex = new HashMap<>();
+        long newLength = compaction.copiedLength;
+        long live = 0;
+
+        try (RandomAccessFile reader = new RandomAccessFile(filename, "r");
+             RandomAccessFile writer = new RandomAccessFile(
+                     compaction.tempFile, "rw")) {
+            writer.seek(newLength);
+            for (Map.Entry<String, IndexEntry> entry : current.entrySet()) {
+                String key = entry.getKey();
+                IndexEntry old = compaction.snapshot.get(key);
+                IndexEntry copy = compaction.copied.get(key);
+                if (copy != null && old.offset == entry.getValue().offset) {
+                    newIndex.put(key, copy);
                 } else {
-                    if (keyHash.compareTo(hashRangeStart) > 0 && keyHash
-                            .compareTo(hashRangeEnd) <= 0) {
+                    // Written since the compaction started
+                    byte[] record = readRecord(reader, entry.getValue());
+                    writer.write(record);
+                    newIndex.put(key, new IndexEntry(newLength,
+                            record.length));
+                    newLength += record.length;
+                }
+                live += entry.getValue().length;
+            }
 
-                        keys.add(key);
-                    }
+            // Delete the copies of keys overwritten or deleted since
+            for (Map.Entry<String, IndexEntry> entry :
+                    compaction.copied.entrySet()) {
+                if (newIndex.get(entry.getKey()) != entry.getValue()) {
+                    markDeleted(writer, entry.getValue());
                 }
-                line = reader.readLine();
             }
+            writer.getChannel().force(true);
+        }
 
-            reader.close();
-            return keys;
+        Files.move(compaction.tempFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        mapping = null;
+        replacedRecords = new ArrayList<>();
+        validLength = newLength;
+        liveBytes = live;
+        indexedLength = newLength;
+        indexedFileKey = getFileKey();
+        index = newIndex;
+        // The filter no longer needs the deleted keys
+        rebuildFilter(newIndex, newLength);
+        return length - newLength;
+    }
+
+    /**
+     * Give up a compaction, deleting its temporary file.
+     */
+    public static void abortCompaction(Compaction compaction) throws
+            IOException {
+        Files.deleteIfExists(compaction.tempFile.toPath());
+    }
+
+    public ArrayList<String> readKeys(String hashRangeStart,
+                                      String hashRangeEnd) throws IOException {
+        RingPosition start = RingPosition.fromHex(hashRangeStart);
+        RingPosition end = RingPosition.fromHex(hashRangeEnd);
+        ArrayList<String> keys = new ArrayList<>();
+        for (String key : getIndex().keySet()) {
+            if (RingPosition.of(key).isInRange(start, end)) {
+                keys.add(key);
+            }
         }
+        return keys;
+    }
+
+    @Override
+    public KVCursor scan(String hashRangeStart,
+                         String hashRangeEnd) throws IOException {
+        RingPosition start = RingPosition.fromHex(hashRangeStart);
+        RingPosition end = RingPosition.fromHex(hashRangeEnd);
+        File file = new File(filename);
+        long length = file.exists() ? file.length() : 0;
+        return new RangeCursor(length == 0 ? null
+                : new RecordReader(0, length), start, end);
     }
 
     public KVMessage.StatusType write(String key, String value) throws
             IOException {
+        return writeMany(Collections.singletonMap(key, value)).get(key);
+    }
+
+    @Override
+    public Map<String, KVMessage.StatusType> writeMany(
+            Map<String, String> entries) throws IOException {
+        Map<String, KVMessage.StatusType> responses = new HashMap<>();
+        Map<String, String> remaining = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (entry.getValue() == null && !mightContain(entry.getKey())) {
+                filterNegatives.incrementAndGet();
+                responses.put(entry.getKey(),
+                        KVMessage.StatusType.DELETE_ERROR);
+            } else {
+                remaining.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (remaining.isEmpty()) {
+            return responses;
+        }
+
         try (RandomAccessFile writer = new RandomAccessFile(filename,
                 "rw")) {
-            long offset = writer.getFilePointer();
-            String line = writer.readLine();
+            Map<String, IndexEntry> index = getIndex();
+            long appendOffset = Math.max(validLength, MAGIC_BYTES);
+            ByteArrayOutputStream appended = new ByteArrayOutputStream();
+            Map<String, IndexEntry> appendedEntries = new LinkedHashMap<>();
+            Map<String, IndexEntry> deleted = new LinkedHashMap<>();
 
-            while (line != null) {
+            for (Map.Entry<String, String> pair : remaining.entrySet()) {
+                String key = pair.getKey();
+                String value = pair.getValue();
+                IndexEntry entry = index.get(key);
 
-                List<String> data = Util.csvSplitLine(line);
+                if (entry != null) {
+                    byte[] record = readRecord(writer, entry);
+                    if (isDeleted(record)) {
+                        // Deleted through another object
+                        index.remove(key);
+                        liveBytes -= entry.length;
+                        entry = null;
+                    } else if (value != null && decodeValue(record)
+                            .equals(value)) {
+                        // if the value doesn't change, do nothing
+                        responses.put(key, KVMessage.StatusType.PUT_UPDATE);
+                        continue;
+                    }
+                }
 
-                if (data.size() < 2) {
-                    offset = writer.getFilePointer();
-                    line = writer.readLine();
+                if (entry == null && value == null) {
+                    filterFalsePositives.incrementAndGet();
+                    responses.put(key, KVMessage.StatusType.DELETE_ERROR);
                     continue;
                 }
 
-                if (data.get(0).equals(key)) {
+                if (value != null) {
+                    byte[] record = encodeRecord(key, value);
+                    appendedEntries.put(key, new IndexEntry(
+                            appendOffset + appended.size(), record.length));
+                    appended.write(record);
+                } else {
+                    deleted.put(key, entry);
+                }
+
+                if (value == null) {
+                    responses.put(key, KVMessage.StatusType.DELETE_SUCCESS);
+                } else {
+                    responses.put(key, entry == null
+                            ? KVMessage.StatusType.PUT_SUCCESS
+                            : KVMessage.StatusType.PUT_UPDATE);
+                }
+            }
 
-                    // if the value doesn't change, do nothing
-                    if (data.get(1).equals(value)) {
-                        return KVMessage.StatusType.PUT_UPDATE;
+            // The new records are written before the old ones are marked
+            // deleted, so that a failure in between loses no value
+            if (appended.size() > 0) {
+                if (validLength == 0) {
+                    writer.seek(0);
+                    writer.writeInt(MAGIC);
+                }
+                // All new records in one write
+                writer.seek(appendOffset);
+                writer.write(appended.toByteArray());
+                // Cut off a torn record, if any
+                writer.setLength(writer.getFilePointer());
+                List<IndexEntry> replaced = new ArrayList<>(replacedRecords);
+                for (Map.Entry<String, IndexEntry> entry :
+                        appendedEntries.entrySet()) {
+                    IndexEntry old = index.put(entry.getKey(),
+                            entry.getValue());
+                    if (old != null) {
+                        liveBytes -= old.length;
+                        replaced.add(old);
                     }
-                    // read the key value pairs after target line into memory
-                    int remainingLength = (int) (writer.length() - writer
-                            .getFilePointer());
-                    byte[] remaining = new byte[remainingLength];
-                    writer.readFully(remaining);
+                    liveBytes += entry.getValue().length;
+                }
+                replacedRecords = replaced;
+                validLength = writer.length();
+                indexedLength = validLength;
+                for (String key : appendedEntries.keySet()) {
+                    addToFilter(key, index);
+                }
+            }
 
-                    // set the file pointer before the target line
-                    writer.seek(offset);
+            for (IndexEntry entry : replacedRecords) {
+                markDeleted(writer, entry);
+            }
+            replacedRecords = new ArrayList<>();
+            for (Map.Entry<String, IndexEntry> entry : deleted.entrySet()) {
+                markDeleted(writer, entry.getValue());
+                index.remove(entry.getKey());
+                liveBytes -= entry.getValue().length;
+            }
+        }
+        return responses;
+    }
 
-                    // If value is null, delete the key value pair.
-                    // If value is not null, update the key value pair
-                    writeLine(key, value, writer);
+    /**
+     * Set the tombstone bit of a record, keeping the codec bits.
+     */
+    private static void markDeleted(RandomAccessFile writer,
+                                    IndexEntry entry) throws IOException {
+        writer.seek(entry.offset);
+        byte flags = writer.readByte();
+        writer.seek(entry.offset);
+        writer.writeByte(flags | FLAG_TOMBSTONE);
+    }
 
+    private byte[] encodeRecord(String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        ValueCompressor compressor = options.getCompressor();
+        byte[] compressed = compressor.compress(valueBytes);
+        int codec = ValueCompressor.CODEC_NONE;
+        if (compressed != null) {
+            valueBytes = compressed;
+            codec = compressor.getCodec();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(
+                HEADER_BYTES + keyBytes.length + valueBytes.length);
+        buffer.put((byte) (codec << CODEC_SHIFT));
+        buffer.putInt(0); // crc, filled in below
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(valueBytes.length);
+        buffer.put(keyBytes);
+        buffer.put(valueBytes);
+        buffer.putInt(1, computeCrc(buffer.array()));
+        return buffer.array();
+    }
 
-                    // write back the remaining key value pairs in the file
-                    writer.write(remaining);
-                    writer.setLength(writer.getFilePointer());
+    private static int computeCrc(byte[] record) {
+        CRC32 crc = new CRC32();
+        int codec = codecOf(record);
+        if (codec != ValueCompressor.CODEC_NONE) {
+            crc.update(codec);
+        }
+        crc.update(record, CRC_START, record.length - CRC_START);
+        return (int) crc.getValue();
+    }
 
-                    return value == null ? KVMessage.StatusType.DELETE_SUCCESS
-                            : KVMessage.StatusType.PUT_UPDATE;
+    private static boolean isValid(byte[] record) {
+        return ByteBuffer.wrap(record).getInt(1) == computeCrc(record);
+    }
+
+    private static boolean isDeleted(byte[] record) {
+        return (record[0] & FLAG_TOMBSTONE) != 0;
+    }
+
+    private static String decodeKey(byte[] record) {
+        int keyLength = ByteBuffer.wrap(record).getInt(5);
+        return new String(record, HEADER_BYTES, keyLength,
+                StandardCharsets.UTF_8);
+    }
+
+    private static int codecOf(byte[] record) {
+        return (record[0] >>> CODEC_SHIFT) & CODEC_MASK;
+    }
+
+    private String decodeValue(byte[] record) throws IOException {
+        int keyLength = ByteBuffer.wrap(record).getInt(5);
+        int offset = HEADER_BYTES + keyLength;
+        int length = record.length - offset;
+        int codec = codecOf(record);
+        if (codec == ValueCompressor.CODEC_NONE) {
+            return new String(record, offset, length, StandardCharsets.UTF_8);
+        }
+        return new String(options.getCompressor().decompress(codec, record,
+                offset, length), StandardCharsets.UTF_8);
+    }
+
+    private byte[] readRecord(RandomAccessFile reader,
+                              IndexEntry entry) throws IOException {
+        byte[] record = new byte[entry.length];
+        reader.seek(entry.offset);
+        reader.readFully(record);
+        return checkRecord(record, entry);
+    }
+
+    private byte[] readRecord(ByteBuffer mapped,
+                              IndexEntry entry) throws IOException {
+        byte[] record = new byte[entry.length];
+        ByteBuffer view = mapped.duplicate();
+        view.position((int) entry.offset);
+        view.get(record);
+        return checkRecord(record, entry);
+    }
+
+    private byte[] checkRecord(byte[] record,
+                               IndexEntry entry) throws IOException {
+        if (!isValid(record)) {
+            throw new IOException(String.format(
+                    "Corrupted record at offset %d of %s", entry.offset,
+                    filename));
+        }
+        return record;
+    }
+
+    /**
+     * Read the live records of the file sequentially.
+     *
+     * @param from   the offset of the first record to read, or 0.
+     * @param length the length of the file.
+     * @return the length of the valid part of the file.
+     */
+    private long scanRecords(long from, long length,
+                             RecordConsumer consumer) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        try (RecordReader reader = new RecordReader(from, length)) {
+            byte[] record;
+            while ((record = reader.next()) != null) {
+                if (!isDeleted(record)) {
+                    consumer.accept(decodeKey(record), reader.getOffset(),
+                            record.length);
+                }
+            }
+            if (reader.getEnd() < length) {
+                logger.warn(String.format(
+                        "Ignoring torn record at offset %d of %s",
+                        reader.getEnd(), filename));
+            }
+            return reader.getEnd();
+        }
+    }
+
+    /**
+     * Return the index of the file, building it first if it does not exist.
+     * Concurrent readers share a single build.
+     */
+    private Map<String, IndexEntry> getIndex() throws IOException {
+        Map<String, IndexEntry> current = index;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            current = index;
+            if (current != null) {
+                return current;
+            }
+            return buildIndex(new File(filename).length());
+        }
+    }
+
+    /**
+     * @return the identity of the file (e.g. device and inode), or null if
+     * it does not exist or the file system has none.
+     */
+    private Object getFileKey() throws IOException {
+        try {
+            return Files.readAttributes(Paths.get(filename),
+                    BasicFileAttributes.class).fileKey();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return a mapping of the file that covers at least the given length,
+     * remapping the file if the current mapping is too short. The index is
+     * built again if the file reopened is not the one indexed.
+     *
+     * @return null if the file is too large to be mapped at once, or was
+     * indexed again.
+     */
+    private ByteBuffer getMapping(long length) throws IOException {
+        MappedByteBuffer current = mapping;
+        if (current != null && current.capacity() >= length) {
+            return current;
+        }
+        synchronized (this) {
+            current = mapping;
+            if (current != null && current.capacity() >= length) {
+                return current;
+            }
+            try (FileChannel channel = FileChannel.open(Paths.get(filename),
+                    StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < indexedLength || !Objects.equals(getFileKey(),
+                        indexedFileKey)) {
+                    // Shrunk or replaced by someone else
+                    buildIndex(size);
+                    return null;
+                }
+                if (size > Integer.MAX_VALUE || size < length) {
+                    return null;
                 }
+                // The mapping stays valid after the channel is closed
+                mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                return mapping;
+            }
+        }
+    }
+
+    /**
+     * NOTE: Must hold the lock of this object (or be called exclusively).
+     */
+    private Map<String, IndexEntry> buildIndex(long length) throws
+            IOException {
+        Object fileKey = getFileKey();
+        // The file may have been replaced
+        mapping = null;
+        HashMap<String, IndexEntry> newIndex = new HashMap<>();
+        List<IndexEntry> replaced = new ArrayList<>();
+        validLength = scanRecords(0, length, (key, offset, recordLength) -> {
+            // The newer record of a key wins
+            IndexEntry old = newIndex.put(key,
+                    new IndexEntry(offset, recordLength));
+            if (old != null) {
+                replaced.add(old);
+            }
+        });
+        replacedRecords = replaced;
+
+        long live = 0;
+        for (IndexEntry entry : newIndex.values()) {
+            live += entry.length;
+        }
+        liveBytes = live;
+
+        // NOTE: The length is published first, since readers check index
+        indexedLength = length;
+        indexedFileKey = fileKey;
+        index = newIndex;
 
-                offset = writer.getFilePointer();
-                line = writer.readLine();
+        // A full scan is a good time to rebuild the filter with a fitting size
+        rebuildFilter(newIndex, length);
+        return newIndex;
+    }
+
+    /**
+     * Return the Bloom filter of the file, loading it first if necessary.
+     */
+    private BloomFilter getFilter() throws IOException {
+        BloomFilter current = filter;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (filter == null) {
+                loadFilter(new File(filename).length());
             }
+            return filter;
+        }
+    }
 
-            writeLine(key, value, writer);
-            return value == null ? KVMessage.StatusType.DELETE_ERROR
-                    : KVMessage.StatusType.PUT_SUCCESS;
+    /**
+     * NOTE: Must hold the lock of this object.
+     */
+    private void loadFilter(long length) throws IOException {
+        File filterFile = new File(filename + BLOOM_FILTER_SUFFIX);
+        if (filterFile.exists()) {
+            try (DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(filterFile),
+                            1 << 16))) {
+                long coveredLength = input.readLong();
+                int capacity = input.readInt();
+                BloomFilter loaded = BloomFilter.readFrom(input);
+                if (coveredLength <= length) {
+                    // Add the keys appended since the filter was saved
+                    scanRecords(coveredLength, length,
+                            (key, offset, recordLength) -> loaded.add(key));
+                    filterCapacity = capacity;
+                    filterLength = length;
+                    filter = loaded;
+                    return;
+                }
+            } catch (IOException e) {
+                logger.warn("Ignoring invalid Bloom filter " + filterFile, e);
+            }
         }
+        buildIndex(length);
     }
 
-    private void writeLine(String key, String value,
-                           RandomAccessFile writer) throws IOException {
-        if (value != null) {
-            key = Util.escapeCSVString(key);
-            value = Util.escapeCSVString(value);
-            writer.writeBytes(key);
-            writer.writeByte(',');
-            writer.writeBytes(value);
-            writer.writeByte('\n');
+    /**
+     * NOTE: Must hold the lock of this object (or be called exclusively).
+     */
+    private void rebuildFilter(Map<String, IndexEntry> index,
+                               long length) throws IOException {
+        int capacity = Math.max(MIN_BLOOM_FILTER_CAPACITY, index.size() * 2);
+        BloomFilter newFilter = BloomFilter.create(capacity,
+                BLOOM_FILTER_FALSE_POSITIVE_RATE);
+        for (String key : index.keySet()) {
+            newFilter.add(key);
+        }
+        filterCapacity = capacity;
+        filterLength = length;
+        filter = newFilter;
+        saveFilter();
+    }
+
+    /**
+     * Called by writeMany after a record of the key was appended.
+     */
+    private void addToFilter(String key,
+                             Map<String, IndexEntry> index) throws
+            IOException {
+        filter.add(key);
+        filterLength = validLength;
+        if (filter.getInsertions() > filterCapacity) {
+            rebuildFilter(index, validLength);
+        } else if (++unsavedFilterInsertions >= BLOOM_FILTER_SAVE_INTERVAL) {
+            saveFilter();
+        }
+    }
+
+    private void saveFilter() throws IOException {
+        if (filterLength == 0) {
+            // Not worth a file for a bucket not written yet
+            return;
+        }
+        File filterFile = new File(filename + BLOOM_FILTER_SUFFIX);
+        File tempFile = new File(filterFile.getPath() + TEMP_SUFFIX);
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile),
+                        1 << 16))) {
+            output.writeLong(filterLength);
+            output.writeInt(filterCapacity);
+            filter.writeTo(output);
         }
+        Files.move(tempFile.toPath(), filterFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        unsavedFilterInsertions = 0;
     }
 
 }
@@ -10,32 +10,71 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ToIntFunction;
 import java.util.stream.Stream;
 
-public class KVStorage implements IKVStorage {
+public class KVStorage implements IKVStorage, Compactable {
 
     private static final Logger logger = Logger.getRootLogger();
 
-    private static final String NULL_VALUE = new String();
+    private static final String NULL_VALUE = Cache.ABSENT_VALUE;
 
     private final ConcurrentHashMap<String, IKVFileStorage> files = new ConcurrentHashMap<>();
 
     private final KeyHashStrategy keyHashStrategy;
     private final String rootPath;
+    private final FileStorageOptions fileStorageOptions;
 
-    private final Cache<String, String> cache;
+    private final ManagedCache cache;
 
-    private final Lock lock;
+    /**
+     * One lock per bucket (i.e. per value of {@link KeyHashStrategy#hashKey}),
+     * so that operations on different buckets do not block each other and
+     * reads of the same bucket run in parallel.
+     */
+    private final ConcurrentHashMap<String, ReadWriteLock> bucketLocks =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Held in shared mode by writes and in exclusive mode while the delta is
+     * replaced, so that every write is recorded in exactly one delta. Its
+     * monitor serializes the recording of concurrent writes.
+     */
+    private final ReadWriteLock deltaLock = new ReentrantReadWriteLock();
+
+    /**
+     * Held in shared mode by all operations and in exclusive mode while a
+     * bucket is split (see {@link SplittingKeyHashStrategy}), so that the
+     * bucket of a key does not change during an operation.
+     */
+    private final ReadWriteLock directoryLock = new ReentrantReadWriteLock();
 
     private KVStorageDelta delta = null;
 
     private static final int maximumDeltaSize = 10000;
 
+    /**
+     * Buckets being split or compacted. Both copy the records of the file
+     * without holding its lock, so they must not overlap; the one that comes
+     * second is skipped and tried again later.
+     */
+    private final Set<String> maintainedBuckets =
+            ConcurrentHashMap.newKeySet();
+
     /**
      * @param rootPath
      * @param keyHashStrategy
@@ -48,7 +87,29 @@ public class KVStorage implements IKVStorage {
      */
     public KVStorage(String rootPath, KeyHashStrategy keyHashStrategy,
                      int cacheSize, IKVServer.CacheStrategy cacheStrategy) {
+        this(rootPath, keyHashStrategy, cacheSize, cacheStrategy,
+                new FileStorageOptions());
+    }
+
+    /**
+     * @param fileStorageOptions options of the bucket files
+     */
+    public KVStorage(String rootPath, KeyHashStrategy keyHashStrategy,
+                     int cacheSize, IKVServer.CacheStrategy cacheStrategy,
+                     FileStorageOptions fileStorageOptions) {
+        this(rootPath, keyHashStrategy, cacheSize, cacheStrategy,
+                new CacheOptions(), fileStorageOptions);
+    }
+
+    /**
+     * @param cacheOptions options of the cache
+     */
+    public KVStorage(String rootPath, KeyHashStrategy keyHashStrategy,
+                     int cacheSize, IKVServer.CacheStrategy cacheStrategy,
+                     CacheOptions cacheOptions,
+                     FileStorageOptions fileStorageOptions) {
         this.rootPath = rootPath;
+        this.fileStorageOptions = fileStorageOptions;
 
         // Make directories
         File file = new File(this.rootPath);
@@ -56,136 +117,635 @@ public class KVStorage implements IKVStorage {
             file.mkdirs();
         }
 
+        // Compactions interrupted by a crash are redone later
+        File[] leftovers = file.listFiles((dir, name) -> name.endsWith(
+                KVFileStorage.COMPACTION_SUFFIX));
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                if (!leftover.delete()) {
+                    logger.warn("Failed to delete " + leftover);
+                }
+            }
+        }
+
         this.keyHashStrategy = keyHashStrategy;
 
         // set up cache
-        if (cacheStrategy == IKVServer.CacheStrategy.FIFO) {
-            cache = new FIFOCache<>(cacheSize);
-        } else if (cacheStrategy == IKVServer.CacheStrategy.LRU) {
-            cache = new LRUCache<>(cacheSize);
-        } else if (cacheStrategy == IKVServer.CacheStrategy.None) {
-            cache = new DummyCache<>();
-        } else {
-            throw new IllegalArgumentException(
-                    "Unsupported cache strategy: " + cacheStrategy.toString());
-        }
+        cache = new ManagedCache(cacheSize, cacheStrategy, cacheOptions);
         logger.info("Cache strategy: " + cacheStrategy.toString());
-
-        lock = new ReentrantLock();
     }
 
     @Override
     public String get(String key) throws IOException {
-        lock.lock();
+        directoryLock.readLock().lock();
+        String hash = keyHashStrategy.hashKey(key);
+        ReadWriteLock lock = getBucketLock(hash);
+        lock.readLock().lock();
         try {
             String value = cache.get(key);
             if (value == null) {
-                IKVFileStorage fileStorage = getFileStorage(key);
-                value = fileStorage.read(key);
-
-                cache.put(key, value == null ? NULL_VALUE : value);
+                IKVFileStorage fileStorage = getFileStorage(hash);
+                // Concurrent misses on the key share one read of the file
+                value = cache.load(key, () -> {
+                    String read = fileStorage.read(key);
+
+                    // Misses ruled out by the Bloom filter are cheap, so they
+                    // do not take up cache capacity
+                    if (read != null || fileStorage.mightContain(key)) {
+                        cache.put(key, read == null ? NULL_VALUE : read);
+                    }
+                    return read == null ? NULL_VALUE : read;
+                });
                 logger.debug("Cache missed for key \"" + key + "\"");
             }
             return value == NULL_VALUE ? null : value;
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
+            directoryLock.readLock().unlock();
         }
     }
 
     @Override
     public KVMessage.StatusType put(String key, String value) throws
             IOException {
-        lock.lock();
+        KVMessage.StatusType response;
+        boolean full = false;
+        deltaLock.readLock().lock();
+        directoryLock.readLock().lock();
+        String hash = keyHashStrategy.hashKey(key);
+        ReadWriteLock lock = getBucketLock(hash);
+        lock.writeLock().lock();
         try {
-            IKVFileStorage fileStorage = getFileStorage(key);
-            KVMessage.StatusType response = fileStorage.write(key, value);
+            IKVFileStorage fileStorage = getFileStorage(hash);
+            try {
+                response = fileStorage.write(key, value);
+            } catch (IOException e) {
+                forgetFailedWrites(Collections.singleton(key));
+                throw e;
+            }
+            full = isFull(hash);
 
             cache.put(key, value == null ? NULL_VALUE : value);
 
-            if (delta != null) {
-                delta.put(key, value);
-                if (delta.getEntryCount() > maximumDeltaSize) {
-                    delta = null;
+            synchronized (deltaLock) {
+                if (delta != null) {
+                    delta.put(key, value);
+                    if (delta.getEntryCount() > maximumDeltaSize) {
+                        delta = null;
+                    }
                 }
             }
+        } finally {
+            lock.writeLock().unlock();
+            directoryLock.readLock().unlock();
+            deltaLock.readLock().unlock();
+        }
+
+        if (full) {
+            splitBucket(hash);
+        }
+        return response;
+    }
 
-            return response;
+    @Override
+    public Map<String, String> getMany(Collection<String> keys) throws
+            IOException {
+        Map<String, String> values = new LinkedHashMap<>();
+        directoryLock.readLock().lock();
+        try {
+            // Cache misses grouped by bucket, so that each file is read once
+            Map<String, List<String>> misses = new TreeMap<>();
+            for (String key : keys) {
+                String value = cache.get(key);
+                values.put(key, value == NULL_VALUE ? null : value);
+                if (value == null) {
+                    misses.computeIfAbsent(keyHashStrategy.hashKey(key),
+                            k -> new ArrayList<>()).add(key);
+                }
+            }
+
+            for (Map.Entry<String, List<String>> bucket : misses.entrySet()) {
+                ReadWriteLock lock = getBucketLock(bucket.getKey());
+                lock.readLock().lock();
+                try {
+                    IKVFileStorage fileStorage = getFileStorage(
+                            bucket.getKey());
+                    Map<String, String> found = fileStorage.readMany(
+                            bucket.getValue());
+                    for (String key : bucket.getValue()) {
+                        String value = found.get(key);
+                        values.put(key, value);
+                        if (value != null || fileStorage.mightContain(key)) {
+                            cache.put(key, value == null ? NULL_VALUE : value);
+                        }
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+            return values;
         } finally {
-            lock.unlock();
+            directoryLock.readLock().unlock();
         }
     }
 
     @Override
-    public void clearCache() {
-        lock.lock();
+    public Map<String, KVMessage.StatusType> putMany(
+            Map<String, String> entries) throws IOException {
+        Map<String, KVMessage.StatusType> responses = new LinkedHashMap<>();
+        List<String> fullBuckets = new ArrayList<>();
+        deltaLock.readLock().lock();
+        directoryLock.readLock().lock();
+        try {
+            Map<String, Map<String, String>> buckets = new TreeMap<>();
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                responses.put(entry.getKey(), null);
+                buckets.computeIfAbsent(
+                        keyHashStrategy.hashKey(entry.getKey()),
+                        k -> new LinkedHashMap<>())
+                        .put(entry.getKey(), entry.getValue());
+            }
+
+            for (Map.Entry<String, Map<String, String>> bucket :
+                    buckets.entrySet()) {
+                String hash = bucket.getKey();
+                ReadWriteLock lock = getBucketLock(hash);
+                lock.writeLock().lock();
+                try {
+                    try {
+                        responses.putAll(getFileStorage(hash)
+                                .writeMany(bucket.getValue()));
+                    } catch (IOException e) {
+                        forgetFailedWrites(bucket.getValue().keySet());
+                        throw e;
+                    }
+                    if (isFull(hash)) {
+                        fullBuckets.add(hash);
+                    }
+
+                    for (Map.Entry<String, String> entry :
+                            bucket.getValue().entrySet()) {
+                        String value = entry.getValue();
+                        cache.put(entry.getKey(),
+                                value == null ? NULL_VALUE : value);
+                    }
+
+                    synchronized (deltaLock) {
+                        for (Map.Entry<String, String> entry :
+                                bucket.getValue().entrySet()) {
+                            if (delta != null) {
+                                delta.put(entry.getKey(), entry.getValue());
+                                if (delta.getEntryCount() >
+                                        maximumDeltaSize) {
+                                    delta = null;
+                                }
+                            }
+                        }
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        } finally {
+            directoryLock.readLock().unlock();
+            deltaLock.readLock().unlock();
+        }
+
+        for (String hash : fullBuckets) {
+            splitBucket(hash);
+        }
+        return responses;
+    }
+
+    /**
+     * Drop what is known of keys whose write failed, since the write may have
+     * been applied in part (e.g. a new record appended): their cache entries,
+     * and the delta, which can no longer tell what changed.
+     * <p>
+     * NOTE: Must hold the write locks of the buckets of the keys.
+     */
+    private void forgetFailedWrites(Collection<String> keys) {
+        for (String key : keys) {
+            cache.remove(key);
+        }
+        synchronized (deltaLock) {
+            delta = null;
+        }
+    }
+
+    /**
+     * @return whether the bucket is to be split, i.e. its file passed the
+     * size of a {@link SplittingKeyHashStrategy}.
+     */
+    private boolean isFull(String hash) {
+        return keyHashStrategy instanceof SplittingKeyHashStrategy &&
+                Paths.get(rootPath, hash).toFile().length() >
+                        ((SplittingKeyHashStrategy) keyHashStrategy)
+                                .getMaxBucketBytes();
+    }
+
+    /**
+     * Split a full bucket in two, moving its records into the new buckets.
+     * Like a compaction, the records are copied without holding the bucket
+     * lock; all operations only wait while the records written meanwhile are
+     * copied and the directory is updated.
+     */
+    private void splitBucket(String hash) throws IOException {
+        SplittingKeyHashStrategy strategy =
+                (SplittingKeyHashStrategy) keyHashStrategy;
+        if (!maintainedBuckets.add(hash)) {
+            // A later write tries again
+            return;
+        }
         try {
-            cache.clear();
+            KVFileStorage fileStorage;
+            String[] buckets;
+            KVFileStorage.Split split;
+            directoryLock.readLock().lock();
+            ReadWriteLock lock = getBucketLock(hash);
+            lock.readLock().lock();
+            try {
+                // Another put may have split it already
+                File file = Paths.get(rootPath, hash).toFile();
+                if (!strategy.isBucket(hash) ||
+                        file.length() <= strategy.getMaxBucketBytes()) {
+                    return;
+                }
+                buckets = strategy.getSplitBuckets(hash);
+                if (buckets == null) {
+                    return;
+                }
+                fileStorage = (KVFileStorage) getFileStorage(hash);
+                String[] filenames = new String[buckets.length];
+                for (int i = 0; i < buckets.length; ++i) {
+                    filenames[i] = Paths.get(rootPath, buckets[i]).toString();
+                }
+                split = fileStorage.startSplit(filenames);
+            } finally {
+                lock.readLock().unlock();
+                directoryLock.readLock().unlock();
+            }
+
+            ToIntFunction<String> selector =
+                    key -> strategy.getSplitIndex(hash, key);
+            boolean finished = false;
+            try {
+                fileStorage.copyInto(split, selector);
+
+                directoryLock.writeLock().lock();
+                try {
+                    fileStorage.finishSplit(split, selector);
+                    for (String bucket : buckets) {
+                        files.remove(bucket);
+                    }
+                    strategy.split(hash);
+                    finished = true;
+                    fileStorage.delete();
+                    files.remove(hash);
+                    bucketLocks.remove(hash);
+                } finally {
+                    directoryLock.writeLock().unlock();
+                }
+            } finally {
+                if (!finished) {
+                    KVFileStorage.abortSplit(split);
+                }
+            }
+            logger.info(String.format("Split bucket %s into %s", hash,
+                    String.join(", ", buckets)));
         } finally {
-            lock.unlock();
+            maintainedBuckets.remove(hash);
         }
     }
 
-    private IKVFileStorage getFileStorage(String key) {
-        String hash = keyHashStrategy.hashKey(key);
+    /**
+     * Only buckets opened since the start are considered, since the garbage
+     * of a file is only known once it is indexed.
+     */
+    @Override
+    public List<String> getCompactionCandidates(double minGarbageRatio) {
+        List<Map.Entry<String, Double>> ratios = new ArrayList<>();
+        for (Map.Entry<String, IKVFileStorage> entry : files.entrySet()) {
+            double ratio = ((KVFileStorage) entry.getValue())
+                    .getGarbageRatio();
+            if (ratio > 0 && ratio >= minGarbageRatio) {
+                ratios.add(new AbstractMap.SimpleEntry<>(entry.getKey(),
+                        ratio));
+            }
+        }
+        // Most garbage first
+        ratios.sort(Map.Entry.<String, Double>comparingByValue().reversed());
+        List<String> candidates = new ArrayList<>();
+        for (Map.Entry<String, Double> entry : ratios) {
+            candidates.add(entry.getKey());
+        }
+        return candidates;
+    }
+
+    /**
+     * Compact the file of a bucket. The live records are copied without
+     * holding the bucket lock, so that operations on the bucket continue;
+     * only the records written meanwhile are copied while it is held, before
+     * the new file replaces the old one.
+     */
+    @Override
+    public long compact(String hash, IOThrottle throttle) throws
+            IOException, InterruptedException {
+        if (!maintainedBuckets.add(hash)) {
+            return 0;
+        }
+        try {
+            return compactBucket(hash, throttle);
+        } finally {
+            maintainedBuckets.remove(hash);
+        }
+    }
+
+    private long compactBucket(String hash, IOThrottle throttle) throws
+            IOException, InterruptedException {
+        KVFileStorage fileStorage;
+        KVFileStorage.Compaction compaction;
+        directoryLock.readLock().lock();
+        ReadWriteLock lock = getBucketLock(hash);
+        lock.readLock().lock();
+        try {
+            fileStorage = (KVFileStorage) files.get(hash);
+            if (fileStorage == null || !isCurrentBucket(hash)) {
+                return 0;
+            }
+            compaction = fileStorage.startCompaction();
+            if (compaction == null) {
+                return 0;
+            }
+        } finally {
+            lock.readLock().unlock();
+            directoryLock.readLock().unlock();
+        }
+
+        boolean finished = false;
+        try {
+            fileStorage.copyLiveRecords(compaction, throttle);
+
+            directoryLock.readLock().lock();
+            lock = getBucketLock(hash);
+            lock.writeLock().lock();
+            try {
+                // The bucket may have been split meanwhile
+                if (files.get(hash) != fileStorage ||
+                        !isCurrentBucket(hash)) {
+                    return 0;
+                }
+                long reclaimed = fileStorage.finishCompaction(compaction);
+                finished = true;
+                return reclaimed;
+            } finally {
+                lock.writeLock().unlock();
+                directoryLock.readLock().unlock();
+            }
+        } finally {
+            if (!finished) {
+                KVFileStorage.abortCompaction(compaction);
+            }
+        }
+    }
+
+    /**
+     * NOTE: Must hold the directory lock.
+     */
+    private boolean isCurrentBucket(String hash) {
+        return (!(keyHashStrategy instanceof SplittingKeyHashStrategy) ||
+                ((SplittingKeyHashStrategy) keyHashStrategy).isBucket(hash))
+                && Paths.get(rootPath, hash).toFile().exists();
+    }
+
+    @Override
+    public void clearCache() {
+        cache.clear();
+    }
+
+    @Override
+    public List<String> getHotKeys(int limit) {
+        return cache.getHotKeys(limit);
+    }
+
+    @Override
+    public ManagedCache getCache() {
+        return cache;
+    }
+
+    private ReadWriteLock getBucketLock(String hash) {
+        return bucketLocks.computeIfAbsent(hash,
+                k -> new ReentrantReadWriteLock());
+    }
+
+    private IKVFileStorage getFileStorage(String hash) {
         return files.computeIfAbsent(hash, k -> new KVFileStorage(
-                Paths.get(rootPath, hash).toString()));
+                Paths.get(rootPath, hash).toString(), fileStorageOptions));
     }
 
     public List<String> getAllKeys(String hashRangeStart,
                                    String hashRangeEnd) throws IOException {
-        lock.lock();
-        try (Stream<Path> paths = Files.walk(Paths.get(this.rootPath))) {
+        directoryLock.readLock().lock();
+        try {
+            Object[] files = listBuckets(hashRangeStart, hashRangeEnd);
 
-            Object[] files = paths.filter(Files::isRegularFile)
-                    .filter(path -> {
-                        String fName = path.getFileName().toString();
-                        int prefixLength = fName.length();
-                        String startPrefix = hashRangeStart
-                                .substring(0, prefixLength);
-                        String endPrefix = hashRangeEnd
-                                .substring(0, prefixLength);
-
-                        if (hashRangeStart.compareTo(hashRangeEnd) > 0) {
-                            if (fName.compareTo(startPrefix) >= 0 || fName
-                                    .compareTo(endPrefix) <= 0) {
-                                return true;
-                            }
-                        } else {
-                            if (fName.compareTo(startPrefix) >= 0 && fName
-                                    .compareTo(endPrefix) <= 0) {
-                                return true;
+            ArrayList<String> keys = new ArrayList<>();
+
+            // Only lock the bucket being read
+            for (Object f : files) {
+                String hash = ((Path) f).getFileName().toString();
+                ReadWriteLock lock = getBucketLock(hash);
+                lock.readLock().lock();
+                try {
+                    KVFileStorage storage =
+                            (KVFileStorage) getFileStorage(hash);
+                    Util.concatenateArrayLists(keys,
+                            storage.readKeys(hashRangeStart, hashRangeEnd));
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+            return keys;
+        } finally {
+            directoryLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stream the bucket files of the range one at a time. Each bucket is only
+     * locked while its file is opened, so writes are not blocked by a slow
+     * consumer.
+     */
+    @Override
+    public KVCursor scanRange(String hashRangeStart,
+                              String hashRangeEnd) throws IOException {
+        Deque<String> buckets = new ArrayDeque<>();
+        directoryLock.readLock().lock();
+        try {
+            for (Object f : listBuckets(hashRangeStart, hashRangeEnd)) {
+                buckets.add(((Path) f).getFileName().toString());
+            }
+        } finally {
+            directoryLock.readLock().unlock();
+        }
+        return new BucketCursor(buckets, hashRangeStart, hashRangeEnd);
+    }
+
+    /**
+     * A cursor over the buckets of a range, which opens the file of the next
+     * bucket when the current one is exhausted.
+     */
+    private class BucketCursor implements KVCursor {
+        private final Deque<String> buckets;
+        private final String hashRangeStart;
+        private final String hashRangeEnd;
+        private KVCursor current = null;
+
+        BucketCursor(Deque<String> buckets, String hashRangeStart,
+                     String hashRangeEnd) {
+            this.buckets = buckets;
+            this.hashRangeStart = hashRangeStart;
+            this.hashRangeEnd = hashRangeEnd;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (current == null || !current.next()) {
+                if (current != null) {
+                    current.close();
+                    current = null;
+                }
+                if (buckets.isEmpty()) {
+                    return false;
+                }
+                current = openBucket(buckets.poll());
+            }
+            return true;
+        }
+
+        /**
+         * @return a cursor over the file of the bucket, or null if the bucket
+         * was split since the buckets were listed, in which case the buckets
+         * it was split into are scanned instead.
+         */
+        private KVCursor openBucket(String hash) throws IOException {
+            directoryLock.readLock().lock();
+            try {
+                if (keyHashStrategy instanceof SplittingKeyHashStrategy) {
+                    SplittingKeyHashStrategy strategy =
+                            (SplittingKeyHashStrategy) keyHashStrategy;
+                    if (!strategy.isBucket(hash)) {
+                        String[] children = strategy.getSplitBuckets(hash);
+                        for (int i = children.length - 1; i >= 0; --i) {
+                            if (keyHashStrategy.isBucketInRange(children[i],
+                                    hashRangeStart, hashRangeEnd)) {
+                                buckets.addFirst(children[i]);
                             }
                         }
-                        return false;
-                    }).toArray();
+                        return null;
+                    }
+                }
+                ReadWriteLock lock = getBucketLock(hash);
+                lock.readLock().lock();
+                try {
+                    return getFileStorage(hash).scan(hashRangeStart,
+                            hashRangeEnd);
+                } finally {
+                    lock.readLock().unlock();
+                }
+            } finally {
+                directoryLock.readLock().unlock();
+            }
+        }
 
-            ArrayList<String> keys = new ArrayList<>();
+        @Override
+        public String getKey() {
+            return current.getKey();
+        }
 
-            for (Object f : files) {
-                KVFileStorage storage = new KVFileStorage(
-                        ((Path) f).toString());
-                Util.concatenateArrayLists(keys,
-                        storage.readKeys(hashRangeStart, hashRangeEnd));
+        @Override
+        public String getValue() {
+            return current.getValue();
+        }
 
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
             }
-            return keys;
+            buckets.clear();
+        }
+    }
+
+    /**
+     * NOTE: Must hold the directory lock.
+     *
+     * @return the paths of the bucket files that may hold keys of the range.
+     */
+    private Object[] listBuckets(String hashRangeStart,
+                                 String hashRangeEnd) throws IOException {
+        try (Stream<Path> paths = Files.walk(Paths.get(this.rootPath))) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(path -> KVFileStorage.isBucketFile(
+                            path.getFileName().toString()))
+                    .filter(path -> keyHashStrategy.isBucketInRange(
+                            path.getFileName().toString(), hashRangeStart,
+                            hashRangeEnd))
+                    .sorted()
+                    .toArray();
+        }
+    }
 
+    @Override
+    public void sync() throws IOException {
+        directoryLock.readLock().lock();
+        try {
+            for (Map.Entry<String, IKVFileStorage> entry : files.entrySet()) {
+                ReadWriteLock lock = getBucketLock(entry.getKey());
+                lock.readLock().lock();
+                try {
+                    entry.getValue().sync();
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
         } finally {
-            lock.unlock();
+            directoryLock.readLock().unlock();
         }
     }
 
+    @Override
+    public Map<String, Number> getStatistics() {
+        long negatives = 0;
+        long falsePositives = 0;
+        for (IKVFileStorage fileStorage : files.values()) {
+            negatives += fileStorage.getBloomFilterNegatives();
+            falsePositives += fileStorage.getBloomFilterFalsePositives();
+        }
+        Map<String, Number> statistics = new LinkedHashMap<>();
+        statistics.put("bloomFilterNegatives", negatives);
+        statistics.put("bloomFilterFalsePositives", falsePositives);
+        // Fraction of lookups of absent keys the filter did not rule out
+        statistics.put("bloomFilterFalsePositiveRate",
+                negatives + falsePositives == 0 ? 0.0
+                        : (double) falsePositives / (negatives +
+                        falsePositives));
+        ValueCompressor compressor = fileStorageOptions.getCompressor();
+        if (compressor.getCompression() != IKVServer.Compression.None) {
+            statistics.putAll(compressor.getStatistics());
+        }
+        return statistics;
+    }
+
     @Override
     public Integer getCurrentDeltaLogicalTime() {
-        lock.lock();
-        try {
+        synchronized (deltaLock) {
             if (delta == null) {
                 return null;
             } else {
                 return delta.getLogicalTime();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -193,14 +753,16 @@ public class KVStorage implements IKVStorage {
     public KVStorageDelta startNextDeltaRecording(int logicalTime,
                                                   String hashRangeStart,
                                                   String hashRangeEnd) {
-        lock.lock();
+        deltaLock.writeLock().lock();
         try {
-            KVStorageDelta lastDelta = delta;
-            delta = new KVStorageDelta(logicalTime, hashRangeStart,
-                    hashRangeEnd);
-            return lastDelta;
+            synchronized (deltaLock) {
+                KVStorageDelta lastDelta = delta;
+                delta = new KVStorageDelta(logicalTime, hashRangeStart,
+                        hashRangeEnd);
+                return lastDelta;
+            }
         } finally {
-            lock.unlock();
+            deltaLock.writeLock().unlock();
         }
     }
 
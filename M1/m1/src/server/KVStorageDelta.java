@@ -1,6 +1,6 @@
 package server;
 
-import shared.Metadata;
+import shared.RingPosition;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -31,16 +31,23 @@ public class KVStorageDelta {
     private Map<String, Value> values;
 
     private final int logicalTime;
-    private final String hashRangeStart;
-    private final String hashRangeEnd;
+    private final RingPosition hashRangeStart;
+    private final RingPosition hashRangeEnd;
 
     public KVStorageDelta(int logicalTime,
                           String hashRangeStart,
                           String hashRangeEnd) {
         this.values = new HashMap<>();
         this.logicalTime = logicalTime;
-        this.hashRangeStart = hashRangeStart;
-        this.hashRangeEnd = hashRangeEnd;
+        // Equal start and end mean the whole ring; null positions stand for
+        // that (the strings need not be valid ring positions then)
+        if (hashRangeStart.equals(hashRangeEnd)) {
+            this.hashRangeStart = null;
+            this.hashRangeEnd = null;
+        } else {
+            this.hashRangeStart = RingPosition.fromHex(hashRangeStart);
+            this.hashRangeEnd = RingPosition.fromHex(hashRangeEnd);
+        }
     }
 
     public int getLogicalTime() {
@@ -55,22 +62,8 @@ public class KVStorageDelta {
      * Record a write operation; value can be null to indicate a delete.
      */
     public void put(String key, String value) {
-        String keyHash = Metadata.getRingPosition(key);
-        boolean isResponsible = false;
-        int comp = hashRangeStart.compareTo(hashRangeEnd);
-        if (comp > 0) {
-            if (keyHash.compareTo(hashRangeStart) > 0 || keyHash
-                    .compareTo(hashRangeEnd) <= 0) {
-                isResponsible = true;
-            }
-        } else if (comp < 0) {
-            if (keyHash.compareTo(hashRangeStart) > 0 && keyHash
-                    .compareTo(hashRangeEnd) <= 0) {
-                isResponsible = true;
-            }
-        } else { // Hash range start and end are equal
-            isResponsible = true;
-        }
+        boolean isResponsible = hashRangeStart == null ||
+                RingPosition.of(key).isInRange(hashRangeStart, hashRangeEnd);
         if (!isResponsible) {
             return;
         }
@@ -10,4 +10,25 @@ public interface KeyHashStrategy {
      * be thread-safe.
      */
     String hashKey(String key);
+
+    /**
+     * Whether the file of the given hash value may contain keys whose ring
+     * positions are in the given range. The default assumes that hash values
+     * are prefixes of ring positions.
+     */
+    default boolean isBucketInRange(String hash,
+                                    String hashRangeStart,
+                                    String hashRangeEnd) {
+        int prefixLength = hash.length();
+        String startPrefix = hashRangeStart.substring(0, prefixLength);
+        String endPrefix = hashRangeEnd.substring(0, prefixLength);
+
+        if (hashRangeStart.compareTo(hashRangeEnd) > 0) {
+            return hash.compareTo(startPrefix) >= 0 ||
+                    hash.compareTo(endPrefix) <= 0;
+        } else {
+            return hash.compareTo(startPrefix) >= 0 &&
+                    hash.compareTo(endPrefix) <= 0;
+        }
+    }
 }
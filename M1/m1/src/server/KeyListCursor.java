@@ -0,0 +1,63 @@
+package server;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cursor over a list of keys, whose values are read from the storage in
+ * batches of {@link #BATCH_KEYS}. Keys deleted since the list was made are
+ * skipped.
+ */
+class KeyListCursor implements KVCursor {
+
+    private static final int BATCH_KEYS = 256;
+
+    private final IKVStorage storage;
+    private final List<String> keys;
+    private int nextIndex = 0;
+
+    private Iterator<Map.Entry<String, String>> batch = null;
+    private Map.Entry<String, String> current = null;
+
+    KeyListCursor(IKVStorage storage, List<String> keys) {
+        this.storage = storage;
+        this.keys = keys;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        while (true) {
+            while (batch != null && batch.hasNext()) {
+                current = batch.next();
+                if (current.getValue() != null) {
+                    return true;
+                }
+            }
+            if (nextIndex >= keys.size()) {
+                current = null;
+                return false;
+            }
+            int end = Math.min(nextIndex + BATCH_KEYS, keys.size());
+            batch = storage.getMany(keys.subList(nextIndex, end)).entrySet()
+                    .iterator();
+            nextIndex = end;
+        }
+    }
+
+    @Override
+    public String getKey() {
+        return current.getKey();
+    }
+
+    @Override
+    public String getValue() {
+        return current.getValue();
+    }
+
+    @Override
+    public void close() {
+        batch = null;
+    }
+}
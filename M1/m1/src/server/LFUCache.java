@@ -0,0 +1,303 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Evicts the least frequently used key, the least recently used one among
+ * keys of the same frequency. Every operation is O(1): keys are kept in a
+ * list of frequency buckets in increasing order of frequency, each bucket
+ * listing its keys from least to most recently used.
+ * <p>
+ * With aging, all frequencies are halved every given number of accesses, so
+ * that keys that were hot long ago do not stay cached forever; the halving
+ * is O(size), i.e. amortized O(1) as long as the period is not smaller than
+ * the capacity.
+ */
+public class LFUCache<K, V> implements Cache<K, V> {
+
+    private static class Node<K, V> {
+        public K key;
+        public V value;
+        public long weight;
+        public FrequencyBucket<K, V> bucket;
+        public Node<K, V> prev;
+        public Node<K, V> next;
+
+        public Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static class FrequencyBucket<K, V> {
+        public long frequency;
+        public Node<K, V> head = new Node<>(null, null);
+        public Node<K, V> tail = new Node<>(null, null);
+        public FrequencyBucket<K, V> prev;
+        public FrequencyBucket<K, V> next;
+
+        public FrequencyBucket(long frequency) {
+            this.frequency = frequency;
+            head.next = tail;
+            tail.prev = head;
+        }
+
+        public boolean isEmpty() {
+            return head.next == tail;
+        }
+    }
+
+    /**
+     * Sentinel of the list of buckets; its frequency is 0.
+     */
+    private final FrequencyBucket<K, V> buckets = new FrequencyBucket<>(0);
+    private final HashMap<K, Node<K, V>> dic = new HashMap<>();
+    private final int capacity;
+    private final long agingPeriod;
+    private long accesses = 0;
+    private final long maxWeight;
+    private final Weigher<? super K, ? super V> weigher;
+    private long weight = 0;
+    private long evictions = 0;
+
+    public LFUCache(int capacity) {
+        this(capacity, 0);
+    }
+
+    /**
+     * @param capacity    maximum number of entries.
+     * @param agingPeriod number of accesses after which the frequencies are
+     *                    halved; 0 to never age them.
+     */
+    public LFUCache(int capacity, long agingPeriod) {
+        this(capacity, agingPeriod, UNLIMITED_WEIGHT, Weigher.ENTRIES);
+    }
+
+    /**
+     * @param maxWeight maximum total weight of the entries.
+     * @param weigher   weight of an entry.
+     */
+    public LFUCache(int capacity, long agingPeriod, long maxWeight,
+                    Weigher<? super K, ? super V> weigher) {
+        this.capacity = capacity;
+        this.agingPeriod = agingPeriod;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        buckets.next = buckets;
+        buckets.prev = buckets;
+    }
+
+    @Override
+    public int getSize() {
+        return dic.size();
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public V get(K key) {
+        Node<K, V> node = dic.get(key);
+        if (node == null) {
+            return null;
+        }
+        touch(node);
+        return node.value;
+    }
+
+    /**
+     * @return the most frequently used keys first, the most recently used
+     * first among keys of the same frequency.
+     */
+    @Override
+    public List<K> getHotKeys(int limit) {
+        List<K> keys = new ArrayList<>();
+        for (FrequencyBucket<K, V> bucket = buckets.prev; bucket != buckets;
+             bucket = bucket.prev) {
+            for (Node<K, V> node = bucket.tail.prev; node != bucket.head;
+                 node = node.prev) {
+                if (keys.size() >= limit) {
+                    return keys;
+                }
+                keys.add(node.key);
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        long entryWeight = weigher.weigh(key, value);
+        Node<K, V> node = dic.get(key);
+        if (node != null && entryWeight <= maxWeight) {
+            weight += entryWeight - node.weight;
+            node.value = value;
+            node.weight = entryWeight;
+            touch(node);
+            evict(node);
+            return;
+        }
+        if (node != null) {
+            remove(node);
+        }
+        if (capacity <= 0 || entryWeight > maxWeight) {
+            return;
+        }
+        node = new Node<>(key, value);
+        node.weight = entryWeight;
+        dic.put(key, node);
+        addNode(node, bucketAfter(buckets, 1));
+        weight += entryWeight;
+        evict(node);
+        age();
+    }
+
+    @Override
+    public void remove(K key) {
+        Node<K, V> node = dic.get(key);
+        if (node != null) {
+            remove(node);
+        }
+    }
+
+    @Override
+    public void clear() {
+        dic.clear();
+        weight = 0;
+        buckets.next = buckets;
+        buckets.prev = buckets;
+        accesses = 0;
+    }
+
+    /**
+     * @return the number of uses of the key counted so far, or 0 if it is not
+     * cached.
+     */
+    public long getFrequency(K key) {
+        Node<K, V> node = dic.get(key);
+        return node == null ? 0 : node.bucket.frequency;
+    }
+
+    /**
+     * Evict the least recently used keys of the lowest frequency, other than
+     * the given one, until the cache is within its capacity and weight.
+     */
+    private void evict(Node<K, V> keep) {
+        while (dic.size() > capacity || weight > maxWeight) {
+            Node<K, V> victim = buckets.next.head.next;
+            if (victim == keep) {
+                victim = victim.next != victim.bucket.tail ? victim.next
+                        : victim.bucket.next.head.next;
+            }
+            remove(victim);
+            evictions++;
+        }
+    }
+
+    private void remove(Node<K, V> node) {
+        removeNode(node);
+        dic.remove(node.key);
+        weight -= node.weight;
+    }
+
+    /**
+     * Move the node to the bucket of the next frequency.
+     */
+    private void touch(Node<K, V> node) {
+        FrequencyBucket<K, V> bucket = node.bucket;
+        FrequencyBucket<K, V> next = bucketAfter(bucket,
+                bucket.frequency + 1);
+        removeNode(node);
+        addNode(node, next);
+        age();
+    }
+
+    /**
+     * @return the bucket of the given frequency, created right after the
+     * given bucket if it does not exist.
+     */
+    private FrequencyBucket<K, V> bucketAfter(FrequencyBucket<K, V> bucket,
+                                              long frequency) {
+        if (bucket.next != buckets && bucket.next.frequency == frequency) {
+            return bucket.next;
+        }
+        FrequencyBucket<K, V> created = new FrequencyBucket<>(frequency);
+        created.prev = bucket;
+        created.next = bucket.next;
+        bucket.next.prev = created;
+        bucket.next = created;
+        return created;
+    }
+
+    private void addNode(Node<K, V> node, FrequencyBucket<K, V> bucket) {
+        Node<K, V> prevNode = bucket.tail.prev;
+        prevNode.next = node;
+        node.prev = prevNode;
+        bucket.tail.prev = node;
+        node.next = bucket.tail;
+        node.bucket = bucket;
+    }
+
+    /**
+     * Unlink the node, dropping its bucket if it becomes empty.
+     */
+    private void removeNode(Node<K, V> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        FrequencyBucket<K, V> bucket = node.bucket;
+        if (bucket.isEmpty()) {
+            bucket.prev.next = bucket.next;
+            bucket.next.prev = bucket.prev;
+        }
+    }
+
+    /**
+     * Halve the frequencies every agingPeriod accesses, merging the buckets
+     * that end up with the same frequency in order.
+     */
+    private void age() {
+        if (agingPeriod <= 0 || ++accesses < agingPeriod) {
+            return;
+        }
+        accesses = 0;
+        FrequencyBucket<K, V> bucket = buckets.next;
+        buckets.next = buckets;
+        buckets.prev = buckets;
+        FrequencyBucket<K, V> last = buckets;
+        while (bucket != buckets) {
+            FrequencyBucket<K, V> nextBucket = bucket.next;
+            long frequency = Math.max(1, bucket.frequency / 2);
+            FrequencyBucket<K, V> target = last != buckets &&
+                    last.frequency == frequency ? last
+                    : bucketAfter(last, frequency);
+            // Keys of the lower frequency come first, i.e. count as older
+            Node<K, V> node = bucket.head.next;
+            while (node != bucket.tail) {
+                Node<K, V> nextNode = node.next;
+                addNode(node, target);
+                node = nextNode;
+            }
+            last = target;
+            bucket = nextBucket;
+        }
+    }
+}
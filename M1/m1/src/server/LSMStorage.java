@@ -0,0 +1,1158 @@
+package server;
+
+import app_kvServer.IKVServer;
+import org.apache.log4j.Logger;
+import shared.Metadata;
+import shared.messages.KVMessage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * A log-structured merge-tree storage engine. Writes go to a sorted in-memory
+ * memtable (backed by an append-only log so they survive a restart). Full
+ * memtables are flushed by a background thread into immutable SSTables, and
+ * SSTables of similar size are merged (size-tiered compaction) by the same
+ * thread. Reads check the memtables first and then the SSTables from newest to
+ * oldest.
+ * <p>
+ * Records are ordered by the ring position of their key (see
+ * {@link #sortKey(String)}), so a hash range of the ring is a contiguous run of
+ * each table and can be listed with a sequential scan, without rehashing every
+ * key.
+ */
+public class LSMStorage implements IKVStorage {
+
+    private static class MemTable {
+        final int id;
+        final File logFile;
+        final FileChannel log;
+        final ConcurrentSkipListMap<String, String> map =
+                new ConcurrentSkipListMap<>();
+        long logSize;
+        long sizeBytes = 0;
+
+        MemTable(int id, File logFile) throws IOException {
+            this.id = id;
+            this.logFile = logFile;
+            this.log = FileChannel.open(logFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.logSize = log.size();
+        }
+    }
+
+    private class Compactor extends Thread {
+        Compactor() {
+            super("LSMStorage compactor");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running.get()) {
+                try {
+                    while (flushOldestMemTable()) {
+                        // Flush all pending memtables before compacting
+                    }
+                    compactOnce();
+                } catch (Exception e) {
+                    logger.error("LSM background flush/compaction failed", e);
+                }
+
+                synchronized (signal) {
+                    try {
+                        signal.wait(COMPACTOR_WAIT_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private static final Logger logger = Logger.getRootLogger();
+
+    /**
+     * Marks a deleted key in memtables and SSTables; compared by identity.
+     */
+    public static final String TOMBSTONE = new String();
+
+    private static final String NULL_VALUE = Cache.ABSENT_VALUE;
+
+    public static final String TABLE_SUFFIX = ".sst";
+    public static final String LOG_SUFFIX = ".log";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    public static final long DEFAULT_MEMTABLE_BYTES = 4L * 1024 * 1024;
+
+    /**
+     * Writers block when this many full memtables are waiting to be flushed.
+     */
+    private static final int MAX_IMMUTABLE_MEMTABLES = 4;
+
+    /**
+     * Minimum number of similarly sized SSTables merged at once.
+     */
+    private static final int MIN_COMPACTION_TABLES = 4;
+
+    /**
+     * All SSTables are merged when there are more than this many.
+     */
+    private static final int MAX_TABLES = 16;
+
+    private static final long COMPACTOR_WAIT_MILLIS = 1000;
+
+    private static final int LOG_HEADER_BYTES = 12;
+    private static final int TOMBSTONE_LENGTH = -1;
+
+    /**
+     * Length of {@link Metadata#getRingPosition(String)}.
+     */
+    private static final int RING_POSITION_LENGTH = 32;
+
+    /**
+     * Estimated memory overhead of a memtable entry.
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    /**
+     * Maximum number of records and of (estimated) bytes of a page of a
+     * range scan.
+     */
+    private static final int SCAN_PAGE_ENTRIES = 256;
+    private static final long SCAN_PAGE_BYTES = 1024 * 1024;
+
+    private static final int maximumDeltaSize = 10000;
+
+    private final File root;
+    private final long memTableBytes;
+
+    private final ManagedCache cache;
+
+    /**
+     * Guards the memtable and table lists. Readers take the read lock; puts
+     * and swaps of flushed or compacted tables take the write lock.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private MemTable memTable;
+    /**
+     * Full memtables waiting to be flushed, oldest first.
+     */
+    private final List<MemTable> immutableMemTables = new ArrayList<>();
+    /**
+     * SSTables ordered from oldest to newest (by id).
+     */
+    private final List<SSTable> tables = new ArrayList<>();
+
+    private int nextId;
+
+    private final AtomicInteger pendingFlushes = new AtomicInteger(0);
+    /**
+     * Number of memtables flushed into SSTables. Puts look their key up
+     * before taking the write lock; they look it up again under the lock
+     * only if a flush happened in between and the key is in no memtable.
+     */
+    private volatile long flushCount = 0;
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final Object signal = new Object();
+    private final Compactor compactor;
+
+    private KVStorageDelta delta = null;
+
+    private final AtomicLong filterNegatives = new AtomicLong(0);
+    private final AtomicLong filterFalsePositives = new AtomicLong(0);
+
+    public LSMStorage(String rootPath,
+                      int cacheSize,
+                      IKVServer.CacheStrategy cacheStrategy) throws
+            IOException {
+        this(rootPath, cacheSize, cacheStrategy, DEFAULT_MEMTABLE_BYTES);
+    }
+
+    /**
+     * @param rootPath      directory holding the SSTables and memtable logs.
+     * @param cacheSize     specifies how many key-value pairs the server is
+     *                      allowed to keep in-memory
+     * @param cacheStrategy specifies the cache replacement strategy
+     * @param memTableBytes estimated memtable size after which it is flushed
+     *                      into an SSTable.
+     */
+    public LSMStorage(String rootPath,
+                      int cacheSize,
+                      IKVServer.CacheStrategy cacheStrategy,
+                      long memTableBytes) throws IOException {
+        this(rootPath, cacheSize, cacheStrategy, new CacheOptions(),
+                memTableBytes);
+    }
+
+    /**
+     * @param cacheOptions options of the cache
+     */
+    public LSMStorage(String rootPath,
+                      int cacheSize,
+                      IKVServer.CacheStrategy cacheStrategy,
+                      CacheOptions cacheOptions,
+                      long memTableBytes) throws IOException {
+        this.root = new File(rootPath);
+        if (!root.exists()) {
+            root.mkdirs();
+        }
+        this.memTableBytes = memTableBytes;
+
+        cache = new ManagedCache(cacheSize, cacheStrategy, cacheOptions);
+        logger.info("Cache strategy: " + cacheStrategy.toString());
+
+        recover();
+
+        compactor = new Compactor();
+        compactor.start();
+    }
+
+    @Override
+    public String get(String key) throws IOException {
+        lock.readLock().lock();
+        try {
+            String value = cache.get(key);
+            if (value == null) {
+                String sortKey = sortKey(key);
+                // Concurrent misses on the key share one lookup of the tables
+                value = cache.load(key, () -> {
+                    String found = lookup(sortKey);
+
+                    // Misses answered from memory do not take up cache
+                    // capacity
+                    if (found != null || needsTableRead(sortKey)) {
+                        cache.put(key, found == null ? NULL_VALUE : found);
+                    }
+                    return found == null ? NULL_VALUE : found;
+                });
+                logger.debug("Cache missed for key \"" + key + "\"");
+            }
+            return value == NULL_VALUE ? null : value;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public KVMessage.StatusType put(String key, String value) throws
+            IOException {
+        waitForFlushCapacity();
+
+        long flushes = flushCount;
+        Map<String, Boolean> existence =
+                lookupExistence(Collections.singleton(key));
+        lock.writeLock().lock();
+        try {
+            return putLocked(key, value, existence.get(key), flushes);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Apply all puts under one acquisition of the lock.
+     */
+    @Override
+    public Map<String, KVMessage.StatusType> putMany(
+            Map<String, String> entries) throws IOException {
+        waitForFlushCapacity();
+
+        long flushes = flushCount;
+        Map<String, Boolean> existence = lookupExistence(entries.keySet());
+        Map<String, KVMessage.StatusType> responses = new LinkedHashMap<>();
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                responses.put(entry.getKey(),
+                        putLocked(entry.getKey(), entry.getValue(),
+                                existence.get(entry.getKey()), flushes));
+            }
+            return responses;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Look up whether the keys exist, from the cache or else under the read
+     * lock, so that puts do not read SSTables while holding the write lock.
+     */
+    private Map<String, Boolean> lookupExistence(
+            Collection<String> keys) throws IOException {
+        Map<String, Boolean> existence = new HashMap<>();
+        List<String> misses = new ArrayList<>();
+        for (String key : keys) {
+            String cached = cache.get(key);
+            if (cached == null) {
+                misses.add(key);
+            } else {
+                existence.put(key, cached != NULL_VALUE);
+            }
+        }
+        if (misses.isEmpty()) {
+            return existence;
+        }
+        lock.readLock().lock();
+        try {
+            for (String key : misses) {
+                existence.put(key, lookup(sortKey(key)) != null);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return existence;
+    }
+
+    /**
+     * NOTE: Must hold the write lock.
+     *
+     * @param existed whether the key existed when looked up.
+     * @param flushes the flush count before the key was looked up.
+     */
+    private KVMessage.StatusType putLocked(String key, String value,
+                                           boolean existed,
+                                           long flushes) throws IOException {
+        String sortKey = sortKey(key);
+        boolean exists;
+        String current = lookupMemTables(sortKey);
+        if (current != null) {
+            // Possibly written since it was looked up
+            exists = current != TOMBSTONE;
+        } else if (flushes == flushCount) {
+            exists = existed;
+        } else {
+            exists = lookup(sortKey) != null;
+        }
+        KVMessage.StatusType response;
+        if (value == null) {
+            response = exists ? KVMessage.StatusType.DELETE_SUCCESS
+                    : KVMessage.StatusType.DELETE_ERROR;
+        } else {
+            response = exists ? KVMessage.StatusType.PUT_UPDATE
+                    : KVMessage.StatusType.PUT_SUCCESS;
+        }
+
+        if (value != null || exists) {
+            appendLog(memTable, key, value);
+            String previous = memTable.map.put(sortKey,
+                    value == null ? TOMBSTONE : value);
+            memTable.sizeBytes += entrySize(key, value);
+            if (previous != null) {
+                memTable.sizeBytes -= entrySize(key,
+                        previous == TOMBSTONE ? null : previous);
+            }
+            if (memTable.sizeBytes >= memTableBytes) {
+                rotateMemTable();
+            }
+        }
+
+        cache.put(key, value == null ? NULL_VALUE : value);
+
+        if (delta != null) {
+            delta.put(key, value);
+            if (delta.getEntryCount() > maximumDeltaSize) {
+                delta = null;
+            }
+        }
+
+        return response;
+    }
+
+    @Override
+    public void clearCache() {
+        cache.clear();
+    }
+
+    @Override
+    public List<String> getHotKeys(int limit) {
+        return cache.getHotKeys(limit);
+    }
+
+    @Override
+    public ManagedCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public List<String> getAllKeys(String hashRangeStart,
+                                   String hashRangeEnd) throws IOException {
+        lock.readLock().lock();
+        try {
+            ArrayList<String> keys = new ArrayList<>();
+            if (hashRangeStart.compareTo(hashRangeEnd) > 0) {
+                // The range wraps around the end of the ring
+                scanKeys(hashRangeStart, null, keys);
+                scanKeys("", hashRangeEnd, keys);
+            } else {
+                scanKeys(hashRangeStart, hashRangeEnd, keys);
+            }
+            return keys;
+        } catch (IllegalStateException e) {
+            // Thrown by SSTable iterators on read failure
+            throw new IOException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Merge the memtables and SSTables of the range in pages of bounded
+     * size, each read under one acquisition of the read lock; the next page
+     * resumes after the last key of the previous one.
+     */
+    @Override
+    public KVCursor scanRange(String hashRangeStart,
+                              String hashRangeEnd) {
+        if (hashRangeStart.compareTo(hashRangeEnd) > 0) {
+            // The range wraps around the end of the ring
+            return new PagingCursor(
+                    new String[]{hashRangeStart, ""},
+                    new String[]{null, hashRangeEnd});
+        } else {
+            return new PagingCursor(new String[]{hashRangeStart},
+                    new String[]{hashRangeEnd});
+        }
+    }
+
+    private class PagingCursor implements KVCursor {
+        /**
+         * The parts of the range: ring positions in (starts[i], ends[i]],
+         * where a null end is the end of the ring.
+         */
+        private final String[] starts;
+        private final String[] ends;
+        private int part = 0;
+        /**
+         * Sort key the next page starts at.
+         */
+        private String fromKey;
+
+        private final ArrayDeque<Map.Entry<String, String>> page =
+                new ArrayDeque<>();
+        private Map.Entry<String, String> current = null;
+
+        PagingCursor(String[] starts, String[] ends) {
+            this.starts = starts;
+            this.ends = ends;
+            this.fromKey = starts[0];
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (page.isEmpty() && part < starts.length) {
+                readPage();
+            }
+            current = page.poll();
+            return current != null;
+        }
+
+        private void readPage() throws IOException {
+            String start = starts[part];
+            String end = ends[part];
+            boolean partDone = true;
+            lock.readLock().lock();
+            try {
+                Iterator<Map.Entry<String, String>> records = mergedIterator(
+                        allSources(fromKey), false);
+                long bytes = 0;
+                while (records.hasNext()) {
+                    if (page.size() >= SCAN_PAGE_ENTRIES ||
+                            bytes >= SCAN_PAGE_BYTES) {
+                        partDone = false;
+                        break;
+                    }
+                    Map.Entry<String, String> record = records.next();
+                    String sortKey = record.getKey();
+                    String position = sortKey.substring(0,
+                            RING_POSITION_LENGTH);
+                    if (end != null && position.compareTo(end) > 0) {
+                        break;
+                    }
+                    // The smallest sort key after this one
+                    fromKey = sortKey + '\0';
+                    if (position.compareTo(start) > 0) {
+                        page.add(new AbstractMap.SimpleImmutableEntry<>(
+                                userKey(sortKey), record.getValue()));
+                        bytes += entrySize(sortKey, record.getValue());
+                    }
+                }
+            } catch (IllegalStateException e) {
+                // Thrown by SSTable iterators on read failure
+                throw new IOException(e);
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (partDone && ++part < starts.length) {
+                fromKey = starts[part];
+            }
+        }
+
+        @Override
+        public String getKey() {
+            return current.getKey();
+        }
+
+        @Override
+        public String getValue() {
+            return current.getValue();
+        }
+
+        @Override
+        public void close() {
+            page.clear();
+            part = starts.length;
+        }
+    }
+
+    @Override
+    public Integer getCurrentDeltaLogicalTime() {
+        lock.writeLock().lock();
+        try {
+            if (delta == null) {
+                return null;
+            } else {
+                return delta.getLogicalTime();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public KVStorageDelta startNextDeltaRecording(int logicalTime,
+                                                  String hashRangeStart,
+                                                  String hashRangeEnd) {
+        lock.writeLock().lock();
+        try {
+            KVStorageDelta lastDelta = delta;
+            delta = new KVStorageDelta(logicalTime, hashRangeStart,
+                    hashRangeEnd);
+            return lastDelta;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Number> getStatistics() {
+        long negatives = filterNegatives.get();
+        long falsePositives = filterFalsePositives.get();
+        Map<String, Number> statistics = new LinkedHashMap<>();
+        statistics.put("sstables", getSSTableCount());
+        statistics.put("bloomFilterNegatives", negatives);
+        statistics.put("bloomFilterFalsePositives", falsePositives);
+        // Fraction of SSTable lookups of absent keys the filters did not
+        // rule out
+        statistics.put("bloomFilterFalsePositiveRate",
+                negatives + falsePositives == 0 ? 0.0
+                        : (double) falsePositives / (negatives +
+                        falsePositives));
+        return statistics;
+    }
+
+    /**
+     * @return the number of SSTables currently on disk.
+     */
+    public int getSSTableCount() {
+        lock.readLock().lock();
+        try {
+            return tables.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Force the memtable logs to disk; SSTables are forced when written.
+     */
+    @Override
+    public void sync() throws IOException {
+        lock.readLock().lock();
+        try {
+            memTable.log.force(false);
+            for (MemTable table : immutableMemTables) {
+                table.log.force(false);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stop the background thread and close all files. Unflushed memtables
+     * are recovered from their logs when the storage is opened again. The
+     * storage must not be used afterwards.
+     */
+    public void close() throws IOException {
+        running.set(false);
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        try {
+            compactor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        lock.writeLock().lock();
+        try {
+            memTable.log.close();
+            for (MemTable table : immutableMemTables) {
+                table.log.close();
+            }
+            for (SSTable table : tables) {
+                table.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Open existing SSTables, turn leftover memtable logs into SSTables, and
+     * start a new memtable.
+     */
+    private void recover() throws IOException {
+        File[] tempFiles = root.listFiles(
+                (dir, name) -> name.endsWith(TEMP_SUFFIX));
+        File[] tableFiles = root.listFiles(
+                (dir, name) -> name.endsWith(TABLE_SUFFIX));
+        File[] logFiles = root.listFiles(
+                (dir, name) -> name.endsWith(LOG_SUFFIX));
+        if (tempFiles == null || tableFiles == null || logFiles == null) {
+            throw new IOException("Unable to list directory " + root);
+        }
+
+        // Unfinished flush or compaction output
+        for (File file : tempFiles) {
+            Files.delete(file.toPath());
+        }
+
+        int maxId = -1;
+        Arrays.sort(tableFiles, Comparator.comparingInt(LSMStorage::fileId));
+        for (File file : tableFiles) {
+            tables.add(SSTable.open(file));
+            maxId = Math.max(maxId, fileId(file));
+        }
+
+        Arrays.sort(logFiles, Comparator.comparingInt(LSMStorage::fileId));
+        for (File file : logFiles) {
+            int id = fileId(file);
+            maxId = Math.max(maxId, id);
+            File tableFile = tableFile(id);
+            if (!tableFile.exists()) {
+                MemTable recovered = new MemTable(id, file);
+                replayLog(recovered);
+                writeTable(recovered.map, tableFile);
+                tables.add(SSTable.open(tableFile));
+                recovered.log.close();
+            }
+            // The memtable has been flushed; its log is no longer needed
+            Files.delete(file.toPath());
+        }
+
+        nextId = maxId + 1;
+        memTable = newMemTable();
+        logger.info(String.format("Opened LSM storage with %d SSTables",
+                tables.size()));
+    }
+
+    private static int fileId(File file) {
+        String name = file.getName();
+        return Integer.parseInt(name.substring(0, name.indexOf('.')));
+    }
+
+    private File tableFile(int id) {
+        return new File(root, String.format("%010d%s", id, TABLE_SUFFIX));
+    }
+
+    private MemTable newMemTable() throws IOException {
+        int id = nextId++;
+        return new MemTable(id,
+                new File(root, String.format("%010d%s", id, LOG_SUFFIX)));
+    }
+
+    /**
+     * NOTE: Must hold the write lock.
+     */
+    private void rotateMemTable() throws IOException {
+        immutableMemTables.add(memTable);
+        pendingFlushes.incrementAndGet();
+        memTable = newMemTable();
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    private void waitForFlushCapacity() {
+        synchronized (signal) {
+            while (pendingFlushes.get() >= MAX_IMMUTABLE_MEMTABLES &&
+                    running.get()) {
+                try {
+                    signal.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * NOTE: Must hold the read or write lock.
+     *
+     * @return the current value of the key with the given sort key, or null
+     * if absent or deleted.
+     */
+    private String lookup(String sortKey) throws IOException {
+        String value = lookupMemTables(sortKey);
+        for (int i = tables.size() - 1; value == null && i >= 0; --i) {
+            SSTable table = tables.get(i);
+            if (!table.mightContain(sortKey)) {
+                filterNegatives.incrementAndGet();
+                continue;
+            }
+            value = table.get(sortKey);
+            if (value == null) {
+                filterFalsePositives.incrementAndGet();
+            }
+        }
+        return value == TOMBSTONE ? null : value;
+    }
+
+    /**
+     * NOTE: Must hold the read or write lock.
+     *
+     * @return the value of the key with the given sort key in the newest
+     * memtable that has it ({@link #TOMBSTONE} if deleted), or null if it is
+     * in none.
+     */
+    private String lookupMemTables(String sortKey) {
+        String value = memTable.map.get(sortKey);
+        for (int i = immutableMemTables.size() - 1;
+             value == null && i >= 0; --i) {
+            value = immutableMemTables.get(i).map.get(sortKey);
+        }
+        return value;
+    }
+
+    /**
+     * NOTE: Must hold the read or write lock.
+     *
+     * @return whether looking up the key reads an SSTable, i.e. the key is in
+     * no memtable and not ruled out by the Bloom filters of all SSTables.
+     */
+    private boolean needsTableRead(String sortKey) {
+        if (memTable.map.containsKey(sortKey)) {
+            return false;
+        }
+        for (MemTable table : immutableMemTables) {
+            if (table.map.containsKey(sortKey)) {
+                return false;
+            }
+        }
+        for (SSTable table : tables) {
+            if (table.mightContain(sortKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add the keys whose ring position is in (start, end] to the list, in
+     * ring order. NOTE: Must hold the read or write lock.
+     *
+     * @param end the end of the range, or null for the end of the ring.
+     */
+    private void scanKeys(String start, String end, List<String> keys) {
+        Iterator<Map.Entry<String, String>> records = mergedIterator(
+                allSources(start), false);
+        while (records.hasNext()) {
+            String sortKey = records.next().getKey();
+            String position = sortKey.substring(0, RING_POSITION_LENGTH);
+            if (end != null && position.compareTo(end) > 0) {
+                break;
+            }
+            if (position.compareTo(start) > 0) {
+                keys.add(userKey(sortKey));
+            }
+        }
+    }
+
+    /**
+     * NOTE: Must hold the read or write lock.
+     *
+     * @return iterators of all memtables and SSTables starting at the given
+     * sort key, newest first.
+     */
+    private List<Iterator<Map.Entry<String, String>>> allSources(
+            String fromKey) {
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+        sources.add(memTable.map.tailMap(fromKey).entrySet().iterator());
+        for (int i = immutableMemTables.size() - 1; i >= 0; --i) {
+            sources.add(immutableMemTables.get(i).map.tailMap(fromKey)
+                    .entrySet().iterator());
+        }
+        for (int i = tables.size() - 1; i >= 0; --i) {
+            sources.add(tables.get(i).iterator(fromKey));
+        }
+        return sources;
+    }
+
+    /**
+     * Records are sorted by the ring position of the key followed by the key
+     * itself, so that keys in a hash range are adjacent.
+     */
+    private static String sortKey(String key) {
+        return Metadata.getRingPosition(key) + key;
+    }
+
+    private static String userKey(String sortKey) {
+        return sortKey.substring(RING_POSITION_LENGTH);
+    }
+
+    /**
+     * Flush the oldest full memtable into an SSTable.
+     *
+     * @return false if there was nothing to flush.
+     */
+    private boolean flushOldestMemTable() throws IOException {
+        MemTable table;
+        lock.readLock().lock();
+        try {
+            if (immutableMemTables.isEmpty()) {
+                return false;
+            }
+            table = immutableMemTables.get(0);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // The memtable is immutable, so it can be written without the lock
+        File tableFile = tableFile(table.id);
+        writeTable(table.map, tableFile);
+        SSTable sstable = SSTable.open(tableFile);
+
+        lock.writeLock().lock();
+        try {
+            tables.add(sstable);
+            immutableMemTables.remove(0);
+            ++flushCount;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        table.log.close();
+        Files.delete(table.logFile.toPath());
+        pendingFlushes.decrementAndGet();
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        logger.debug("Flushed memtable into " + tableFile.getName());
+        return true;
+    }
+
+    /**
+     * Merge one run of similarly sized SSTables, if any. The output replaces
+     * the oldest table of the run, so that a crash before the other inputs
+     * are deleted leaves a consistent (if redundant) set of tables.
+     */
+    private void compactOnce() throws IOException {
+        List<SSTable> snapshot;
+        lock.readLock().lock();
+        try {
+            snapshot = new ArrayList<>(tables);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        int[] window = selectCompactionWindow(snapshot);
+        if (window == null) {
+            return;
+        }
+        int start = window[0];
+        int end = window[1];
+        List<SSTable> inputs = snapshot.subList(start, end + 1);
+
+        // Tombstones can be dropped only if nothing older may hold the key
+        boolean dropTombstones = start == 0;
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+        for (int i = inputs.size() - 1; i >= 0; --i) {
+            sources.add(inputs.get(i).iterator());
+        }
+
+        long expectedRecords = 0;
+        for (SSTable input : inputs) {
+            expectedRecords += input.getRecordCount();
+        }
+
+        File output = inputs.get(0).getFile();
+        File tempFile = new File(root, output.getName() + TEMP_SUFFIX);
+        try {
+            SSTable.write(tempFile, mergedIterator(sources, !dropTombstones),
+                    expectedRecords);
+        } catch (IllegalStateException e) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw new IOException(e);
+        }
+        Files.move(tempFile.toPath(), output.toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        SSTable merged = SSTable.open(output);
+
+        lock.writeLock().lock();
+        try {
+            tables.subList(start, end + 1).clear();
+            tables.add(start, merged);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        for (int i = 0; i < inputs.size(); ++i) {
+            inputs.get(i).close();
+            if (i > 0) {
+                Files.delete(inputs.get(i).getFile().toPath());
+            }
+        }
+        logger.debug(String.format("Compacted %d SSTables into %s",
+                inputs.size(), output.getName()));
+    }
+
+    /**
+     * @return the first and last index of the tables to merge, or null.
+     */
+    private static int[] selectCompactionWindow(List<SSTable> tables) {
+        if (tables.size() > MAX_TABLES) {
+            return new int[]{0, tables.size() - 1};
+        }
+        int end = tables.size() - 1;
+        while (end >= 0) {
+            int start = end;
+            long total = Math.max(tables.get(end).getSizeBytes(), 1);
+            while (start > 0) {
+                long size = Math.max(tables.get(start - 1).getSizeBytes(), 1);
+                long average = total / (end - start + 1);
+                if (size > average * 2 || size * 2 < average) {
+                    break;
+                }
+                total += size;
+                start--;
+            }
+            if (end - start + 1 >= MIN_COMPACTION_TABLES) {
+                return new int[]{start, end};
+            }
+            end = start - 1;
+        }
+        return null;
+    }
+
+    private static void writeTable(Map<String, String> records,
+                                   File file) throws IOException {
+        File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+        SSTable.write(tempFile, records.entrySet().iterator(),
+                records.size());
+        Files.move(tempFile.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Merge sorted sources, given newest first, into one sorted iterator in
+     * which each key appears once with its newest value.
+     *
+     * @param keepTombstones whether deleted keys are returned (with value
+     *                       {@link #TOMBSTONE}) or skipped.
+     */
+    private static Iterator<Map.Entry<String, String>> mergedIterator(
+            List<Iterator<Map.Entry<String, String>>> sources,
+            boolean keepTombstones) {
+        return new MergingIterator(sources, keepTombstones);
+    }
+
+    private static class MergingIterator implements
+            Iterator<Map.Entry<String, String>> {
+
+        private static class Head {
+            final Iterator<Map.Entry<String, String>> source;
+            final int rank;
+            Map.Entry<String, String> entry;
+
+            Head(Iterator<Map.Entry<String, String>> source, int rank) {
+                this.source = source;
+                this.rank = rank;
+                this.entry = source.next();
+            }
+        }
+
+        private final PriorityQueue<Head> heads = new PriorityQueue<>(
+                (a, b) -> {
+                    int comparison = a.entry.getKey().compareTo(
+                            b.entry.getKey());
+                    // Lower rank is newer
+                    return comparison != 0 ? comparison
+                            : Integer.compare(a.rank, b.rank);
+                });
+        private final boolean keepTombstones;
+        private Map.Entry<String, String> next = null;
+
+        MergingIterator(List<Iterator<Map.Entry<String, String>>> sources,
+                        boolean keepTombstones) {
+            this.keepTombstones = keepTombstones;
+            for (int i = 0; i < sources.size(); ++i) {
+                if (sources.get(i).hasNext()) {
+                    heads.add(new Head(sources.get(i), i));
+                }
+            }
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && !heads.isEmpty()) {
+                Head head = heads.poll();
+                Map.Entry<String, String> newest = head.entry;
+                advanceHead(head);
+                // Skip older versions of the same key
+                while (!heads.isEmpty() && heads.peek().entry.getKey()
+                        .equals(newest.getKey())) {
+                    advanceHead(heads.poll());
+                }
+                if (keepTombstones || newest.getValue() != TOMBSTONE) {
+                    next = newest;
+                }
+            }
+        }
+
+        private void advanceHead(Head head) {
+            if (head.source.hasNext()) {
+                head.entry = head.source.next();
+                heads.add(head);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> result = next;
+            advance();
+            return result;
+        }
+    }
+
+    private static long entrySize(String key, String value) {
+        return ENTRY_OVERHEAD_BYTES + 2L * key.length() +
+                (value == null ? 0 : 2L * value.length());
+    }
+
+    private static void appendLog(MemTable table, String key,
+                                  String value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value == null ? new byte[0]
+                : value.getBytes(StandardCharsets.UTF_8);
+        int valueLength = value == null ? TOMBSTONE_LENGTH : valueBytes.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(
+                LOG_HEADER_BYTES + keyBytes.length + valueBytes.length);
+        buffer.putInt(0); // crc, filled in below
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(valueLength);
+        buffer.put(keyBytes);
+        buffer.put(valueBytes);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, buffer.capacity() - 4);
+        buffer.putInt(0, (int) crc.getValue());
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            table.log.write(buffer, table.logSize + buffer.position());
+        }
+        table.logSize += buffer.capacity();
+    }
+
+    /**
+     * Load the records of a memtable log; a torn record at the end (e.g.
+     * after a crash) ends the replay.
+     */
+    private static void replayLog(MemTable table) throws IOException {
+        // NOTE: The stream is not closed, since that would close the channel.
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(table.log.position(0)), 1 << 16));
+        CRC32 crc = new CRC32();
+        long offset = 0;
+        while (offset < table.logSize) {
+            try {
+                int storedCrc = input.readInt();
+                int keyLength = input.readInt();
+                int valueLength = input.readInt();
+                if (keyLength < 0 || valueLength < TOMBSTONE_LENGTH ||
+                        offset + LOG_HEADER_BYTES + keyLength +
+                                Math.max(valueLength, 0) > table.logSize) {
+                    break;
+                }
+                byte[] record = new byte[8 + keyLength +
+                        Math.max(valueLength, 0)];
+                ByteBuffer.wrap(record).putInt(keyLength).putInt(valueLength);
+                input.readFully(record, 8, record.length - 8);
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != storedCrc) {
+                    break;
+                }
+                String key = new String(record, 8, keyLength,
+                        StandardCharsets.UTF_8);
+                table.map.put(sortKey(key), valueLength == TOMBSTONE_LENGTH ? TOMBSTONE
+                        : new String(record, 8 + keyLength, valueLength,
+                        StandardCharsets.UTF_8));
+                offset += 4 + record.length;
+            } catch (EOFException e) {
+                break;
+            }
+        }
+        if (offset < table.logSize) {
+            logger.warn(String.format(
+                    "Ignoring torn record at offset %d of %s", offset,
+                    table.logFile.getName()));
+        }
+    }
+}
@@ -7,19 +7,30 @@ import java.security.NoSuchAlgorithmException;
 
 public class MD5PrefixKeyHashStrategy implements KeyHashStrategy {
 
-    private final MessageDigest hashGenerator;
+    /**
+     * MessageDigest is not thread-safe, so each thread gets its own.
+     */
+    private final ThreadLocal<MessageDigest> hashGenerator;
     private final int numBytes;
 
     public MD5PrefixKeyHashStrategy(int numBytes) throws
             NoSuchAlgorithmException {
-        hashGenerator = MessageDigest.getInstance("MD5");
+        // Fail early if MD5 is unavailable
+        MessageDigest.getInstance("MD5");
+        hashGenerator = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        });
         this.numBytes = numBytes;
     }
 
     @Override
     public String hashKey(String key) {
         StringBuilder sb = new StringBuilder();
-        byte[] bytes = hashGenerator.digest(key.getBytes());
+        byte[] bytes = hashGenerator.get().digest(key.getBytes());
         int length = Math.min(bytes.length, numBytes);
         for (int i = 0; i < length; ++i) {
             byte b = bytes[i];
@@ -0,0 +1,172 @@
+package server;
+
+import app_kvServer.IKVServer;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The cache of a storage: counts its hits and misses, and can be replaced by
+ * a cache of another strategy or capacity while in use.
+ * <p>
+ * A replacement starts empty. Each operation goes to the cache current when
+ * it is called, so operations racing with a replacement may go to the old
+ * one; that only loses cached entries, as the storages hold the lock of a
+ * key between reading it and caching it.
+ * <p>
+ * Concurrent misses on a key can be coalesced through {@link #load}, so that
+ * the key is read from the storage once.
+ * <p>
+ * NOTE: Methods are thread-safe.
+ */
+public class ManagedCache implements Cache<String, String> {
+
+    private static final Logger logger = Logger.getRootLogger();
+
+    private final CacheOptions cacheOptions;
+
+    private volatile Cache<String, String> cache;
+    private volatile IKVServer.CacheStrategy cacheStrategy;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    /**
+     * Evictions of the caches replaced so far.
+     */
+    private final AtomicLong replacedEvictions = new AtomicLong(0);
+
+    private final SingleFlight<String, String> loads = new SingleFlight<>();
+
+    public ManagedCache(int cacheSize,
+                        IKVServer.CacheStrategy cacheStrategy,
+                        CacheOptions cacheOptions) {
+        this.cacheOptions = cacheOptions;
+        this.cache = CacheFactory.createStringCache(cacheSize,
+                cacheStrategy, cacheOptions);
+        this.cacheStrategy = cacheStrategy;
+    }
+
+    public IKVServer.CacheStrategy getCacheStrategy() {
+        return cacheStrategy;
+    }
+
+    /**
+     * Replace the cache by an empty one of the given strategy and capacity;
+     * the other options are kept.
+     */
+    public synchronized void reconfigure(IKVServer.CacheStrategy cacheStrategy,
+                                         int cacheSize) {
+        Cache<String, String> replacement = CacheFactory.createStringCache(
+                cacheSize, cacheStrategy, cacheOptions);
+        Cache<String, String> replaced = cache;
+        cache = replacement;
+        this.cacheStrategy = cacheStrategy;
+        replacedEvictions.addAndGet(replaced.getEvictions());
+        replaced.clear();
+        logger.info(String.format("Cache reconfigured: %s, %d entries",
+                cacheStrategy, cacheSize));
+    }
+
+    @Override
+    public int getSize() {
+        return cache.getSize();
+    }
+
+    @Override
+    public int getCapacity() {
+        return cache.getCapacity();
+    }
+
+    @Override
+    public long getWeight() {
+        return cache.getWeight();
+    }
+
+    @Override
+    public long getMaxWeight() {
+        return cache.getMaxWeight();
+    }
+
+    @Override
+    public long getEvictions() {
+        return replacedEvictions.get() + cache.getEvictions();
+    }
+
+    @Override
+    public String get(String key) {
+        String value = cache.get(key);
+        if (value == null) {
+            misses.increment();
+        } else if (value == ABSENT_VALUE) {
+            negativeHits.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Load a key that missed the cache, or wait for the load of the key in
+     * progress, if any; see {@link SingleFlight}. The loader is expected to
+     * cache the value.
+     */
+    public String load(String key, SingleFlight.Loader<String> loader)
+            throws IOException {
+        return loads.load(key, loader);
+    }
+
+    @Override
+    public List<String> getHotKeys(int limit) {
+        return cache.getHotKeys(limit);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        cache.put(key, value);
+    }
+
+    @Override
+    public void remove(String key) {
+        cache.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * @return the counters of the cache since it was created, across
+     * replacements, and its current size; hits do not include the hits on
+     * keys known to be absent (negative hits), and misses include the
+     * misses coalesced with the load of another.
+     */
+    public Map<String, Number> getStatistics() {
+        long hits = this.hits.sum();
+        long negativeHits = this.negativeHits.sum();
+        long misses = this.misses.sum();
+        long lookups = hits + negativeHits + misses;
+        Map<String, Number> statistics = new LinkedHashMap<>();
+        statistics.put("cacheHits", hits);
+        statistics.put("cacheNegativeHits", negativeHits);
+        statistics.put("cacheMisses", misses);
+        statistics.put("cacheHitRate", lookups == 0 ? 0.0
+                : (double) (hits + negativeHits) / lookups);
+        statistics.put("cacheCoalescedMisses", loads.getCoalesced());
+        statistics.put("cacheEvictions", getEvictions());
+        statistics.put("cacheSize", getSize());
+        statistics.put("cacheCapacity", getCapacity());
+        long maxWeight = getMaxWeight();
+        if (maxWeight != UNLIMITED_WEIGHT) {
+            statistics.put("cacheWeight", getWeight());
+            statistics.put("cacheMaxWeight", maxWeight);
+        }
+        return statistics;
+    }
+}
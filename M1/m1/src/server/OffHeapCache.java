@@ -0,0 +1,390 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of strings keeping the values off the heap, in direct buffers, so
+ * that a large cache adds little to the heap and to the pauses of the garbage
+ * collector; only the index (the keys and the location of their value) is on
+ * the heap.
+ * <p>
+ * Memory is allocated as needed in arenas of a configurable size, up to the
+ * maximum number of bytes, and split into pages of {@link #PAGE_BYTES}. A
+ * page is assigned to a size class and cut into chunks of that size (sizes
+ * grow by 25%), and a value is stored, in UTF-8, in a chunk of the smallest
+ * class it fits in. Freed chunks are reused by their class, and a page whose
+ * chunks are all free goes back to the pool for any class.
+ * <p>
+ * Eviction is LRU: while the class of a new value has no free chunk and no
+ * page is left, the least recently used entries are evicted.
+ * <p>
+ * NOTE: Methods are not thread-safe.
+ */
+public class OffHeapCache implements Cache<String, String> {
+
+    public static final int PAGE_BYTES = 1 << 20;
+
+    public static final long DEFAULT_ARENA_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Size of the cache when no maximum number of bytes is given.
+     */
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final int MIN_CHUNK_BYTES = 64;
+
+    /**
+     * Largest arena, so that it can be a single buffer.
+     */
+    private static final long MAX_ARENA_BYTES = 1L << 30;
+
+    private static final class Location {
+        /**
+         * -1 for {@link Cache#ABSENT_VALUE}, which takes no chunk.
+         */
+        final int page;
+        final int offset;
+        final int length;
+
+        Location(int page, int offset, int length) {
+            this.page = page;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A stack of chunk addresses, without boxing them.
+     */
+    private static final class AddressStack {
+        private long[] addresses = new long[16];
+        private int size = 0;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void push(long address) {
+            if (size == addresses.length) {
+                addresses = Arrays.copyOf(addresses, size * 2);
+            }
+            addresses[size++] = address;
+        }
+
+        long pop() {
+            return addresses[--size];
+        }
+
+        void removePage(int page) {
+            int kept = 0;
+            for (int i = 0; i < size; ++i) {
+                if (pageOf(addresses[i]) != page) {
+                    addresses[kept++] = addresses[i];
+                }
+            }
+            size = kept;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    private final int capacity;
+    private final long maxBytes;
+    private final long arenaBytes;
+
+    private final int[] chunkSizes;
+
+    /**
+     * Pages of the arenas allocated so far.
+     */
+    private final List<ByteBuffer> pages = new ArrayList<>();
+    private final int maxPages;
+    /**
+     * Size class of each page, -1 if free.
+     */
+    private final int[] pageClasses;
+    /**
+     * Number of chunks in use of each page.
+     */
+    private final int[] pageChunks;
+    private final ArrayDeque<Integer> freePages = new ArrayDeque<>();
+
+    /**
+     * Page of each class whose end was never used, and where the unused
+     * part starts; chunks are cut from it when the class has no free chunk.
+     */
+    private final int[] bumpPages;
+    private final int[] bumpOffsets;
+    private final AddressStack[] freeChunks;
+
+    /**
+     * In access order, i.e. the first key is the least recently used.
+     */
+    private final LinkedHashMap<String, Location> index = new LinkedHashMap<>(
+            16, 0.75f, true);
+    private long usedBytes = 0;
+    private long evictions = 0;
+
+    public OffHeapCache(int capacity) {
+        this(capacity, DEFAULT_MAX_BYTES, DEFAULT_ARENA_BYTES);
+    }
+
+    /**
+     * @param capacity   maximum number of entries.
+     * @param maxBytes   maximum size of the arenas; rounded up to pages.
+     * @param arenaBytes size of the buffers allocated at once; rounded up to
+     *                   pages.
+     */
+    public OffHeapCache(int capacity, long maxBytes, long arenaBytes) {
+        this.capacity = capacity;
+        this.maxPages = (int) Math.min(Integer.MAX_VALUE,
+                (maxBytes + PAGE_BYTES - 1) / PAGE_BYTES);
+        this.maxBytes = (long) maxPages * PAGE_BYTES;
+        this.arenaBytes = Math.min(MAX_ARENA_BYTES, Math.max(PAGE_BYTES,
+                (arenaBytes + PAGE_BYTES - 1) / PAGE_BYTES * PAGE_BYTES));
+
+        List<Integer> sizes = new ArrayList<>();
+        for (int size = MIN_CHUNK_BYTES; size < PAGE_BYTES;
+             size = (size + size / 4 + 7) / 8 * 8) {
+            sizes.add(size);
+        }
+        sizes.add(PAGE_BYTES);
+        chunkSizes = new int[sizes.size()];
+        for (int i = 0; i < chunkSizes.length; ++i) {
+            chunkSizes[i] = sizes.get(i);
+        }
+
+        pageClasses = new int[maxPages];
+        pageChunks = new int[maxPages];
+        bumpPages = new int[chunkSizes.length];
+        bumpOffsets = new int[chunkSizes.length];
+        freeChunks = new AddressStack[chunkSizes.length];
+        for (int i = 0; i < chunkSizes.length; ++i) {
+            freeChunks[i] = new AddressStack();
+        }
+        Arrays.fill(bumpPages, -1);
+    }
+
+    @Override
+    public int getSize() {
+        return index.size();
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of bytes of the chunks in use.
+     */
+    @Override
+    public long getWeight() {
+        return usedBytes;
+    }
+
+    @Override
+    public long getMaxWeight() {
+        return maxBytes;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of bytes of the arenas allocated so far.
+     */
+    public long getAllocatedBytes() {
+        return (long) pages.size() * PAGE_BYTES;
+    }
+
+    @Override
+    public String get(String key) {
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        if (location.page < 0) {
+            return ABSENT_VALUE;
+        }
+        byte[] bytes = new byte[location.length];
+        ByteBuffer page = pages.get(location.page).duplicate();
+        page.position(location.offset);
+        page.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public List<String> getHotKeys(int limit) {
+        List<String> keys = new ArrayList<>(index.keySet());
+        Collections.reverse(keys);
+        return keys.size() > limit ? new ArrayList<>(keys.subList(0, limit))
+                : keys;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        Location previous = index.remove(key);
+        if (previous != null) {
+            free(previous);
+        }
+        if (capacity <= 0) {
+            return;
+        }
+        while (index.size() >= capacity) {
+            evictEldest();
+        }
+        if (value == ABSENT_VALUE) {
+            index.put(key, new Location(-1, 0, 0));
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > PAGE_BYTES || maxPages == 0) {
+            return;
+        }
+        int sizeClass = getSizeClass(bytes.length);
+        long address;
+        while ((address = allocate(sizeClass)) < 0) {
+            if (index.isEmpty()) {
+                return;
+            }
+            evictEldest();
+        }
+
+        int page = pageOf(address);
+        int offset = (int) address;
+        ByteBuffer buffer = pages.get(page).duplicate();
+        buffer.position(offset);
+        buffer.put(bytes);
+        pageChunks[page]++;
+        usedBytes += chunkSizes[sizeClass];
+        index.put(key, new Location(page, offset, bytes.length));
+    }
+
+    @Override
+    public void remove(String key) {
+        Location location = index.remove(key);
+        if (location != null) {
+            free(location);
+        }
+    }
+
+    @Override
+    public void clear() {
+        index.clear();
+        freePages.clear();
+        for (int page = 0; page < pages.size(); ++page) {
+            pageClasses[page] = -1;
+            pageChunks[page] = 0;
+            freePages.add(page);
+        }
+        for (AddressStack stack : freeChunks) {
+            stack.clear();
+        }
+        Arrays.fill(bumpPages, -1);
+        usedBytes = 0;
+    }
+
+    private void evictEldest() {
+        Iterator<Map.Entry<String, Location>> iterator = index.entrySet()
+                .iterator();
+        Location eldest = iterator.next().getValue();
+        iterator.remove();
+        free(eldest);
+        evictions++;
+    }
+
+    /**
+     * @return the address of a chunk of the class, or -1 if none is left.
+     */
+    private long allocate(int sizeClass) {
+        AddressStack free = freeChunks[sizeClass];
+        if (!free.isEmpty()) {
+            return free.pop();
+        }
+        int size = chunkSizes[sizeClass];
+        int page = bumpPages[sizeClass];
+        if (page >= 0 && bumpOffsets[sizeClass] + size <= PAGE_BYTES) {
+            long address = addressOf(page, bumpOffsets[sizeClass]);
+            bumpOffsets[sizeClass] += size;
+            return address;
+        }
+
+        if (freePages.isEmpty() && !allocateArena()) {
+            return -1;
+        }
+        page = freePages.poll();
+        pageClasses[page] = sizeClass;
+        bumpPages[sizeClass] = page;
+        bumpOffsets[sizeClass] = size;
+        return addressOf(page, 0);
+    }
+
+    private void free(Location location) {
+        if (location.page < 0) {
+            return;
+        }
+        int page = location.page;
+        int sizeClass = pageClasses[page];
+        usedBytes -= chunkSizes[sizeClass];
+        if (--pageChunks[page] > 0) {
+            freeChunks[sizeClass].push(addressOf(page, location.offset));
+            return;
+        }
+
+        // The page is empty: give it back to all classes
+        freeChunks[sizeClass].removePage(page);
+        if (bumpPages[sizeClass] == page) {
+            bumpPages[sizeClass] = -1;
+        }
+        pageClasses[page] = -1;
+        freePages.add(page);
+    }
+
+    /**
+     * @return false if the maximum number of bytes is allocated.
+     */
+    private boolean allocateArena() {
+        int count = (int) Math.min(arenaBytes / PAGE_BYTES,
+                maxPages - pages.size());
+        if (count <= 0) {
+            return false;
+        }
+        ByteBuffer arena = ByteBuffer.allocateDirect(count * PAGE_BYTES);
+        for (int i = 0; i < count; ++i) {
+            arena.limit((i + 1) * PAGE_BYTES);
+            arena.position(i * PAGE_BYTES);
+            pageClasses[pages.size()] = -1;
+            freePages.add(pages.size());
+            pages.add(arena.slice());
+        }
+        return true;
+    }
+
+    private int getSizeClass(int length) {
+        int index = Arrays.binarySearch(chunkSizes, length);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private static long addressOf(int page, int offset) {
+        return ((long) page << 32) | offset;
+    }
+
+    private static int pageOf(long address) {
+        return (int) (address >>> 32);
+    }
+}
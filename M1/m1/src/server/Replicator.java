@@ -8,6 +8,7 @@ import server.KVStorageDelta.Value;
 import shared.*;
 import shared.messages.KVMessage;
 import shared.messages.KVMessageImpl;
+import shared.messages.PutBatchArgs;
 
 import java.io.IOException;
 import java.util.*;
@@ -50,11 +51,8 @@ public class Replicator extends Thread {
 
     private static final int MAX_TOTAL_DELTA_SIZE = 20000;
 
-    private static final Set<KVMessage.StatusType> REPLICATION_SUCCESS_STATUSES = new HashSet<>(
-            Arrays.asList(KVMessage.StatusType.PUT_UPDATE,
-                    KVMessage.StatusType.PUT_SUCCESS,
-                    KVMessage.StatusType.DELETE_SUCCESS,
-                    KVMessage.StatusType.DELETE_ERROR));
+    private static final Set<KVMessage.StatusType> ECS_SUCCESS_STATUSES =
+            Collections.singleton(KVMessage.StatusType.ECS_SUCCESS);
 
     private static Logger logger = Logger.getRootLogger();
 
@@ -370,21 +368,26 @@ public class Replicator extends Thread {
                 "Performing incremental replication (%d entries) to %s:%d",
                 delta.getEntryCount(), targetConnection.getAddress(),
                 targetConnection.getPort()));
+        PutBatchArgs batch = new PutBatchArgs();
         for (Map.Entry<String, Value> entry : delta.getEntrySet()) {
             if (!enabled.get()) {
                 logger.info("Incremental replication interrupted");
                 return false;
             }
             String key = entry.getKey();
-            Value value = entry.getValue();
-            boolean result = sendCommandToNode(targetConnection,
-                    new KVMessageImpl(key, value.get(),
-                            KVMessage.StatusType.ECS_PUT),
-                    REPLICATION_SUCCESS_STATUSES);
-            if (!result) {
-                logger.error("Incremental replication command failed");
-                return false;
+            String value = entry.getValue().get();
+            if (!batch.fits(key, value)) {
+                if (!sendBatchToNode(targetConnection, batch)) {
+                    logger.error("Incremental replication command failed");
+                    return false;
+                }
+                batch = new PutBatchArgs();
             }
+            batch.put(key, value);
+        }
+        if (!batch.isEmpty() && !sendBatchToNode(targetConnection, batch)) {
+            logger.error("Incremental replication command failed");
+            return false;
         }
         return true;
     }
@@ -395,54 +398,58 @@ public class Replicator extends Thread {
                 null, KVMessage.StatusType.ECS_DELETE_DATA,
                 new MoveDataArgs(rangeStart, rangeEnd, null, 0));
         return sendCommandToNode(targetConnection, msg,
-                new HashSet<>(
-                        Arrays.asList(KVMessage.StatusType.ECS_SUCCESS)));
+                ECS_SUCCESS_STATUSES);
     }
 
     public boolean copyDataTo(String hashRangeStart,
                               String hashRangeEnd,
                               ServerConnection targetConnection) {
-        List<String> keys = null;
-        try {
-            keys = storage.getAllKeys(hashRangeStart, hashRangeEnd);
-        } catch (IOException e) {
-            logger.error("Full replication failed to scan for local keys", e);
-            return false;
-        }
-
-
-        for (String key : keys) {
-            if (!enabled.get()) {
-                logger.info("Full replication interrupted");
-                return false;
-            }
-
-            String value;
-            try {
-                value = storage.get(key);
-            } catch (IOException e) {
-                logger.error(
-                        "Full replication failed: storage error: " +
-                                Util.getStackTraceString(e));
-                return false;
+        // Stream the range from the files, bypassing the cache
+        try (KVCursor cursor = storage.scanRange(hashRangeStart,
+                hashRangeEnd)) {
+            PutBatchArgs batch = new PutBatchArgs();
+            while (cursor.next()) {
+                if (!enabled.get()) {
+                    logger.info("Full replication interrupted");
+                    return false;
+                }
+                if (!batch.fits(cursor.getKey(), cursor.getValue())) {
+                    if (!sendBatchToNode(targetConnection, batch)) {
+                        logger.error(String.format(
+                                "Full replication failed: failed to send put batch (%d keys) to target server",
+                                batch.size()));
+                        return false;
+                    }
+                    batch = new PutBatchArgs();
+                }
+                batch.put(cursor.getKey(), cursor.getValue());
             }
-
-            KVMessage msg = new KVMessageImpl(key, value,
-                    KVMessage.StatusType.ECS_PUT);
-            boolean success = sendCommandToNode(targetConnection, msg,
-                    REPLICATION_SUCCESS_STATUSES);
-            if (!success) {
+            if (!batch.isEmpty() &&
+                    !sendBatchToNode(targetConnection, batch)) {
                 logger.error(String.format(
-                        "Full replication failed: failed to send put request (key: %s) to target server",
-                        key));
+                        "Full replication failed: failed to send put batch (%d keys) to target server",
+                        batch.size()));
                 return false;
             }
+        } catch (IOException e) {
+            logger.error(
+                    "Full replication failed: storage error: " +
+                            Util.getStackTraceString(e));
+            return false;
         }
 
         logger.info("Successfully copied all data to target server.");
         return true;
     }
 
+    private boolean sendBatchToNode(ServerConnection targetConnection,
+                                    PutBatchArgs batch) {
+        KVMessage msg = new KVMessageImpl(null, null, null,
+                KVMessage.StatusType.ECS_PUT_BATCH, batch);
+        return sendCommandToNode(targetConnection, msg,
+                ECS_SUCCESS_STATUSES);
+    }
+
     private boolean sendCommandToNode(ServerConnection targetConnection,
                                       KVMessage msg,
                                       Set<KVMessage.StatusType> successStatus) {
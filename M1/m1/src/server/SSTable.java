@@ -0,0 +1,376 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable file of key-value records sorted by key, with a sparse index
+ * kept in memory. Deleted keys are stored as tombstones, represented by
+ * {@link LSMStorage#TOMBSTONE} when read back.
+ * <p>
+ * File layout: the records (key length, value length or -1 for a tombstone,
+ * key bytes, value bytes), followed by the sparse index (entry count, then for
+ * every {@link #INDEX_INTERVAL}-th record its key length, key bytes and
+ * offset), followed by a Bloom filter of the keys, followed by a footer (index
+ * offset, filter offset, record count, magic number).
+ * <p>
+ * NOTE: Lookups and iterators may be used concurrently; close must not.
+ */
+public class SSTable {
+
+    public static final int INDEX_INTERVAL = 16;
+
+    private static final int MAGIC = 0x5354424d;
+    private static final int FOOTER_BYTES = 8 + 8 + 8 + 4;
+
+    private static final double BLOOM_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    private static final int TOMBSTONE_LENGTH = -1;
+
+    private final File file;
+    private final FileChannel channel;
+    private final long dataLength;
+    private final long recordCount;
+
+    private final String[] indexKeys;
+    private final long[] indexOffsets;
+
+    private final BloomFilter filter;
+
+    private SSTable(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < FOOTER_BYTES) {
+                throw new IOException("SSTable too short: " + file);
+            }
+            ByteBuffer footer = readFully(size - FOOTER_BYTES, FOOTER_BYTES);
+            dataLength = footer.getLong();
+            long filterOffset = footer.getLong();
+            recordCount = footer.getLong();
+            if (footer.getInt() != MAGIC || dataLength < 0 ||
+                    filterOffset < dataLength ||
+                    filterOffset > size - FOOTER_BYTES) {
+                throw new IOException("Invalid SSTable footer: " + file);
+            }
+
+            ByteBuffer index = readFully(dataLength,
+                    (int) (filterOffset - dataLength));
+            int count = index.getInt();
+            indexKeys = new String[count];
+            indexOffsets = new long[count];
+            for (int i = 0; i < count; ++i) {
+                byte[] key = new byte[index.getInt()];
+                index.get(key);
+                indexKeys[i] = new String(key, StandardCharsets.UTF_8);
+                indexOffsets[i] = index.getLong();
+            }
+
+            ByteBuffer filterBytes = readFully(filterOffset,
+                    (int) (size - FOOTER_BYTES - filterOffset));
+            filter = BloomFilter.readFrom(new DataInputStream(
+                    new ByteArrayInputStream(filterBytes.array())));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static SSTable open(File file) throws IOException {
+        return new SSTable(file);
+    }
+
+    /**
+     * Write the given records, which must be sorted by key, into a new
+     * SSTable file. Values equal (by identity) to {@link LSMStorage#TOMBSTONE}
+     * are written as tombstones.
+     *
+     * @param expectedRecords the number of records the Bloom filter is sized
+     *                        for.
+     */
+    public static void write(File file,
+                             Iterator<Map.Entry<String, String>> records,
+                             long expectedRecords) throws IOException {
+        try (FileOutputStream fileOutput = new FileOutputStream(file);
+             DataOutputStream output = new DataOutputStream(
+                     new BufferedOutputStream(fileOutput, 1 << 16))) {
+            ByteArrayIndexWriter index = new ByteArrayIndexWriter();
+            BloomFilter filter = BloomFilter.create(
+                    (int) Math.min(expectedRecords, Integer.MAX_VALUE),
+                    BLOOM_FILTER_FALSE_POSITIVE_RATE);
+            long offset = 0;
+            long count = 0;
+            while (records.hasNext()) {
+                Map.Entry<String, String> record = records.next();
+                byte[] key = record.getKey().getBytes(StandardCharsets.UTF_8);
+                String value = record.getValue();
+                byte[] valueBytes = value == LSMStorage.TOMBSTONE ? null
+                        : value.getBytes(StandardCharsets.UTF_8);
+                if (count % INDEX_INTERVAL == 0) {
+                    index.add(key, offset);
+                }
+                filter.add(record.getKey());
+                output.writeInt(key.length);
+                output.writeInt(valueBytes == null ? TOMBSTONE_LENGTH
+                        : valueBytes.length);
+                output.write(key);
+                if (valueBytes != null) {
+                    output.write(valueBytes);
+                }
+                offset += 8 + key.length +
+                        (valueBytes == null ? 0 : valueBytes.length);
+                count++;
+            }
+            long filterOffset = offset + index.writeTo(output);
+            filter.writeTo(output);
+            output.writeLong(offset);
+            output.writeLong(filterOffset);
+            output.writeLong(count);
+            output.writeInt(MAGIC);
+            output.flush();
+            fileOutput.getFD().sync();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getSizeBytes() {
+        return dataLength;
+    }
+
+    /**
+     * @return false if this table definitely has no record of the key.
+     */
+    public boolean mightContain(String key) {
+        return filter.mightContain(key);
+    }
+
+    /**
+     * NOTE: Does not check the Bloom filter; see {@link #mightContain}.
+     *
+     * @return the value of the key, {@link LSMStorage#TOMBSTONE} if the key
+     * was deleted, or null if this table has no record of the key.
+     */
+    public String get(String key) throws IOException {
+        int block = Arrays.binarySearch(indexKeys, key);
+        if (block < 0) {
+            block = -block - 2;
+            if (block < 0) {
+                return null;
+            }
+        }
+        long start = indexOffsets[block];
+        long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1]
+                : dataLength;
+        ByteBuffer buffer = readFully(start, (int) (end - start));
+        while (buffer.hasRemaining()) {
+            int keyLength = buffer.getInt();
+            int valueLength = buffer.getInt();
+            String recordKey = new String(buffer.array(), buffer.position(),
+                    keyLength, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + keyLength);
+            int comparison = recordKey.compareTo(key);
+            if (comparison == 0) {
+                if (valueLength == TOMBSTONE_LENGTH) {
+                    return LSMStorage.TOMBSTONE;
+                }
+                return new String(buffer.array(), buffer.position(),
+                        valueLength, StandardCharsets.UTF_8);
+            } else if (comparison > 0) {
+                return null;
+            }
+            buffer.position(buffer.position() + Math.max(valueLength, 0));
+        }
+        return null;
+    }
+
+    /**
+     * Iterate over all records in key order with a sequential read of the
+     * file. Tombstones are returned as {@link LSMStorage#TOMBSTONE}.
+     */
+    public Iterator<Map.Entry<String, String>> iterator() {
+        return new RecordIterator(0, 0);
+    }
+
+    /**
+     * Iterate over the records with keys greater than or equal to the given
+     * key, in key order. The sparse index is used to skip to the block
+     * containing the key.
+     */
+    public Iterator<Map.Entry<String, String>> iterator(String fromKey) {
+        int block = Arrays.binarySearch(indexKeys, fromKey);
+        if (block < 0) {
+            block = Math.max(-block - 2, 0);
+        }
+        if (block >= indexOffsets.length) {
+            return new RecordIterator(0, 0);
+        }
+        RecordIterator iterator = new RecordIterator(indexOffsets[block],
+                (long) block * INDEX_INTERVAL);
+        iterator.skipTo(fromKey);
+        return iterator;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer readFully(long position, int length) throws
+            IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of SSTable " + file);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private class RecordIterator implements
+            Iterator<Map.Entry<String, String>> {
+        private final DataInputStream input;
+        private long remaining;
+        private Map.Entry<String, String> next;
+
+        RecordIterator(long offset, long skippedRecords) {
+            InputStream stream = Channels.newInputStream(
+                    new PositionalChannel(offset));
+            input = new DataInputStream(
+                    new BufferedInputStream(stream, 1 << 16));
+            remaining = recordCount - skippedRecords;
+            next = readNext();
+        }
+
+        void skipTo(String key) {
+            while (next != null && next.getKey().compareTo(key) < 0) {
+                next = readNext();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> result = next;
+            next = readNext();
+            return result;
+        }
+
+        private Map.Entry<String, String> readNext() {
+            if (remaining <= 0) {
+                return null;
+            }
+            remaining--;
+            try {
+                byte[] key = new byte[input.readInt()];
+                int valueLength = input.readInt();
+                input.readFully(key);
+                String value = LSMStorage.TOMBSTONE;
+                if (valueLength != TOMBSTONE_LENGTH) {
+                    byte[] valueBytes = new byte[valueLength];
+                    input.readFully(valueBytes);
+                    value = new String(valueBytes, StandardCharsets.UTF_8);
+                }
+                return new AbstractMap.SimpleImmutableEntry<>(
+                        new String(key, StandardCharsets.UTF_8), value);
+            } catch (IOException e) {
+                throw new IllegalStateException(
+                        "Failed to read SSTable " + file, e);
+            }
+        }
+    }
+
+    /**
+     * A read-only view of the data region that uses positional reads, so
+     * several iterators can share the file channel.
+     */
+    private class PositionalChannel implements ReadableByteChannel {
+        private long position;
+
+        PositionalChannel(long position) {
+            this.position = position;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (position >= dataLength) {
+                return -1;
+            }
+            int limit = dst.limit();
+            if (dst.remaining() > dataLength - position) {
+                dst.limit(dst.position() + (int) (dataLength - position));
+            }
+            int read = channel.read(dst, position);
+            dst.limit(limit);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class ByteArrayIndexWriter {
+        private final ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream();
+        private final DataOutputStream output = new DataOutputStream(bytes);
+        private int count = 0;
+
+        void add(byte[] key, long offset) throws IOException {
+            output.writeInt(key.length);
+            output.write(key);
+            output.writeLong(offset);
+            count++;
+        }
+
+        /**
+         * @return the number of bytes written.
+         */
+        int writeTo(DataOutputStream target) throws IOException {
+            target.writeInt(count);
+            output.flush();
+            bytes.writeTo(target);
+            return 4 + bytes.size();
+        }
+    }
+}
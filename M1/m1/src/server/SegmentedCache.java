@@ -0,0 +1,345 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A thread-safe cache split into segments by key hash, each evicting on its
+ * own, so that writes to different segments do not contend and reads take no
+ * lock at all.
+ * <p>
+ * Recency is tracked with a clock per segment that only advances on writes: a
+ * hit stamps the entry with the current clock, which is a write to the entry
+ * at most once between two writes to the segment. On eviction, a sample of
+ * the entries of the segment is taken and the one with the oldest stamp is
+ * removed, which approximates LRU (or FIFO if hits do not stamp entries).
+ * Segments small enough are scanned entirely, i.e. evict exactly.
+ * <p>
+ * The capacity and maximum weight are split evenly between the segments, so
+ * there are only as many segments as leave room in each for the heaviest
+ * entry expected.
+ */
+public class SegmentedCache<K, V> implements Cache<K, V> {
+
+    public static final int MAX_SEGMENTS = 16;
+
+    /**
+     * Smallest capacity of a segment; smaller caches have fewer segments.
+     */
+    public static final int MIN_SEGMENT_CAPACITY = 64;
+
+    /**
+     * Number of entries compared to choose one to evict.
+     */
+    public static final int SAMPLE_SIZE = 8;
+
+    private static final class Entry<K, V> {
+        final K key;
+        volatile V value;
+        volatile long stamp;
+        /**
+         * Guarded by the segment.
+         */
+        long weight;
+        /**
+         * Position in the entries of the segment; guarded by the segment.
+         */
+        int slot;
+
+        Entry(K key, V value, long stamp) {
+            this.key = key;
+            this.value = value;
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * Writes hold the lock of the segment; reads only go through the map.
+     */
+    private static final class Segment<K, V> {
+        final ConcurrentHashMap<K, Entry<K, V>> map =
+                new ConcurrentHashMap<>();
+        /**
+         * The entries of the map, for sampling.
+         */
+        final ArrayList<Entry<K, V>> entries = new ArrayList<>();
+        final int capacity;
+        final long maxWeight;
+        /**
+         * Stamp of the next write; entries hit since the last write get it
+         * too.
+         */
+        volatile long clock = 0;
+        volatile long weight = 0;
+        volatile long evictions = 0;
+
+        Segment(int capacity, long maxWeight) {
+            this.capacity = capacity;
+            this.maxWeight = maxWeight;
+        }
+    }
+
+    private final Segment<K, V>[] segments;
+    private final int capacity;
+    private final long maxWeight;
+    private final boolean accessOrder;
+    private final Weigher<? super K, ? super V> weigher;
+
+    public SegmentedCache(int capacity) {
+        this(capacity, true);
+    }
+
+    /**
+     * @param capacity    maximum number of entries.
+     * @param accessOrder whether hits count as uses (LRU) or not (FIFO).
+     */
+    public SegmentedCache(int capacity, boolean accessOrder) {
+        this(capacity, accessOrder, UNLIMITED_WEIGHT, Weigher.ENTRIES);
+    }
+
+    /**
+     * Any entry that fits in the cache is cached, i.e. there is a single
+     * segment if the maximum weight is limited.
+     *
+     * @param maxWeight maximum total weight of the entries.
+     * @param weigher   weight of an entry.
+     */
+    public SegmentedCache(int capacity, boolean accessOrder, long maxWeight,
+                          Weigher<? super K, ? super V> weigher) {
+        this(capacity, accessOrder, maxWeight, weigher, maxWeight);
+    }
+
+    /**
+     * @param maxEntryWeight weight of the heaviest entry that must be cached;
+     *                       heavier ones may not fit in their segment.
+     */
+    @SuppressWarnings("unchecked")
+    public SegmentedCache(int capacity, boolean accessOrder, long maxWeight,
+                          Weigher<? super K, ? super V> weigher,
+                          long maxEntryWeight) {
+        this.capacity = capacity;
+        this.maxWeight = maxWeight;
+        this.accessOrder = accessOrder;
+        this.weigher = weigher;
+        int count = 1;
+        while (count * 2 <= MAX_SEGMENTS &&
+                capacity / (count * 2) >= MIN_SEGMENT_CAPACITY &&
+                (maxWeight == UNLIMITED_WEIGHT ||
+                        maxWeight / (count * 2) >= maxEntryWeight)) {
+            count *= 2;
+        }
+        segments = (Segment<K, V>[]) new Segment<?, ?>[count];
+        for (int i = 0; i < count; ++i) {
+            // The remainder goes to the first segments
+            segments[i] = new Segment<>(capacity / count +
+                    (i < capacity % count ? 1 : 0),
+                    maxWeight == UNLIMITED_WEIGHT ? UNLIMITED_WEIGHT
+                            : maxWeight / count);
+        }
+    }
+
+    /**
+     * @return the number of segments.
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    @Override
+    public int getSize() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.map.size();
+        }
+        return size;
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public long getWeight() {
+        long weight = 0;
+        for (Segment<K, V> segment : segments) {
+            weight += segment.weight;
+        }
+        return weight;
+    }
+
+    @Override
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    @Override
+    public long getEvictions() {
+        long evictions = 0;
+        for (Segment<K, V> segment : segments) {
+            evictions += segment.evictions;
+        }
+        return evictions;
+    }
+
+    @Override
+    public V get(K key) {
+        Segment<K, V> segment = getSegment(key);
+        Entry<K, V> entry = segment.map.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (accessOrder) {
+            long now = segment.clock;
+            if (entry.stamp < now) {
+                entry.stamp = now;
+            }
+        }
+        return entry.value;
+    }
+
+    /**
+     * @return the keys with the latest stamps first; the clocks of the
+     * segments advance at about the same rate, so the order is approximate.
+     */
+    @Override
+    public List<K> getHotKeys(int limit) {
+        List<Entry<K, V>> entries = new ArrayList<>();
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                entries.addAll(segment.entries);
+            }
+        }
+        // Hits may stamp the entries while sorting, so sort a copy of the
+        // stamps
+        long[] stamps = new long[entries.size()];
+        Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i < stamps.length; ++i) {
+            stamps[i] = entries.get(i).stamp;
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(stamps[b], stamps[a]));
+        List<K> keys = new ArrayList<>();
+        for (int i = 0; i < order.length && i < limit; ++i) {
+            keys.add(entries.get(order[i]).key);
+        }
+        return keys;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        Segment<K, V> segment = getSegment(key);
+        long entryWeight = weigher.weigh(key, value);
+        synchronized (segment) {
+            long now = segment.clock++;
+            Entry<K, V> entry = segment.map.get(key);
+            if (entry != null && entryWeight > segment.maxWeight) {
+                remove(segment, entry);
+                return;
+            }
+            if (entry != null) {
+                entry.value = value;
+                segment.weight += entryWeight - entry.weight;
+                entry.weight = entryWeight;
+                if (accessOrder) {
+                    entry.stamp = now;
+                }
+            } else {
+                if (segment.capacity == 0 ||
+                        entryWeight > segment.maxWeight) {
+                    return;
+                }
+                entry = new Entry<>(key, value, now);
+                entry.weight = entryWeight;
+                entry.slot = segment.entries.size();
+                segment.entries.add(entry);
+                segment.map.put(key, entry);
+                segment.weight += entryWeight;
+            }
+            while (segment.entries.size() > segment.capacity ||
+                    segment.weight > segment.maxWeight) {
+                evict(segment, entry);
+            }
+        }
+    }
+
+    @Override
+    public void remove(K key) {
+        Segment<K, V> segment = getSegment(key);
+        synchronized (segment) {
+            Entry<K, V> entry = segment.map.get(key);
+            if (entry != null) {
+                remove(segment, entry);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.map.clear();
+                segment.entries.clear();
+                segment.weight = 0;
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest of a sample of the entries, other than the one just
+     * written.
+     * <p>
+     * NOTE: Must hold the lock of the segment.
+     */
+    private void evict(Segment<K, V> segment, Entry<K, V> keep) {
+        ArrayList<Entry<K, V>> entries = segment.entries;
+        Entry<K, V> victim = null;
+        if (entries.size() <= SAMPLE_SIZE + 1) {
+            for (Entry<K, V> entry : entries) {
+                if (entry != keep) {
+                    victim = older(victim, entry);
+                }
+            }
+        } else {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < SAMPLE_SIZE; ++i) {
+                Entry<K, V> entry = entries.get(random.nextInt(
+                        entries.size()));
+                if (entry != keep) {
+                    victim = older(victim, entry);
+                }
+            }
+        }
+        if (victim != null) {
+            remove(segment, victim);
+            segment.evictions++;
+        }
+    }
+
+    /**
+     * NOTE: Must hold the lock of the segment.
+     */
+    private void remove(Segment<K, V> segment, Entry<K, V> entry) {
+        ArrayList<Entry<K, V>> entries = segment.entries;
+        segment.map.remove(entry.key, entry);
+        segment.weight -= entry.weight;
+        Entry<K, V> last = entries.remove(entries.size() - 1);
+        if (last != entry) {
+            entries.set(entry.slot, last);
+            last.slot = entry.slot;
+        }
+    }
+
+    private static <K, V> Entry<K, V> older(Entry<K, V> a, Entry<K, V> b) {
+        return a == null || b.stamp < a.stamp ? b : a;
+    }
+
+    private Segment<K, V> getSegment(K key) {
+        // Mix the bits, since the maps of the segments use the low ones
+        int hash = key.hashCode() * 0x9E3779B9;
+        return segments[(hash >>> 16) & (segments.length - 1)];
+    }
+}
@@ -0,0 +1,77 @@
+package server;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent loads of the same key: the first caller loads it,
+ * and callers arriving while it does wait for its result instead of loading
+ * the key again. A load that completed is forgotten, i.e. results are not
+ * cached here.
+ * <p>
+ * Callers must exclude writes of the key for the duration of the load and
+ * of the wait (e.g. by holding the read lock of the key), so that a result
+ * shared is as current as a result of their own.
+ * <p>
+ * NOTE: Methods are thread-safe.
+ */
+public class SingleFlight<K, V> {
+
+    public interface Loader<V> {
+        V load() throws IOException;
+    }
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> flights =
+            new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @return the result of the load of the key in progress if any, or else
+     * of the given loader.
+     */
+    public V load(K key, Loader<V> loader) throws IOException {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            coalesced.increment();
+            return await(existing);
+        }
+        try {
+            V value = loader.load();
+            flight.complete(value);
+            return value;
+        } catch (Throwable e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * @return the number of calls answered by the load of another caller.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    private static <V> V await(CompletableFuture<V> flight) throws
+            IOException {
+        try {
+            return flight.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            // Not rethrown as is, since the loader throws it too
+            throw new IOException("Coalesced load failed", cause);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * A key hash strategy whose buckets are split in two when their file grows
+ * past a size, so that the number of files follows the amount of data.
+ * <p>
+ * NOTE: Methods must be thread-safe.
+ */
+public interface SplittingKeyHashStrategy extends KeyHashStrategy {
+    /**
+     * @return the file size after which a bucket is split.
+     */
+    long getMaxBucketBytes();
+
+    /**
+     * @return whether the hash value is a current bucket, i.e. it was not
+     * split.
+     */
+    boolean isBucket(String hash);
+
+    /**
+     * @return the hash values of the two buckets the given bucket is split
+     * into; null if it can not be split any further.
+     */
+    String[] getSplitBuckets(String hash);
+
+    /**
+     * @return the index in {@link #getSplitBuckets} of the bucket the key
+     * goes to when the given bucket is split.
+     */
+    int getSplitIndex(String hash, String key);
+
+    /**
+     * Replace the bucket with the buckets of {@link #getSplitBuckets}, so
+     * that hashKey returns those from now on. The change is durable once this
+     * returns.
+     * <p>
+     * NOTE: The files of the new buckets must be written before, and no key
+     * of the bucket may be hashed concurrently.
+     */
+    void split(String hash) throws IOException;
+}
@@ -0,0 +1,65 @@
+package server;
+
+import java.util.List;
+
+/**
+ * A thread-safe view of a cache; every method holds the lock of this object.
+ */
+public class SynchronizedCache<K, V> implements Cache<K, V> {
+
+    private final Cache<K, V> cache;
+
+    public SynchronizedCache(Cache<K, V> cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public synchronized int getSize() {
+        return cache.getSize();
+    }
+
+    @Override
+    public synchronized int getCapacity() {
+        return cache.getCapacity();
+    }
+
+    @Override
+    public synchronized long getWeight() {
+        return cache.getWeight();
+    }
+
+    @Override
+    public synchronized long getMaxWeight() {
+        return cache.getMaxWeight();
+    }
+
+    @Override
+    public synchronized long getEvictions() {
+        return cache.getEvictions();
+    }
+
+    @Override
+    public synchronized V get(K key) {
+        return cache.get(key);
+    }
+
+    @Override
+    public synchronized List<K> getHotKeys(int limit) {
+        return cache.getHotKeys(limit);
+    }
+
+    @Override
+    public synchronized void put(K key, V value) {
+        cache.put(key, value);
+    }
+
+    @Override
+    public synchronized void remove(K key) {
+        cache.remove(key);
+    }
+
+    @Override
+    public synchronized void clear() {
+        cache.clear();
+    }
+}
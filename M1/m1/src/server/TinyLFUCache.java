@@ -0,0 +1,265 @@
+package server;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A W-TinyLFU cache: new keys enter a small LRU window, and a key leaving the
+ * window is only admitted into the main area if it was seen more often than
+ * the key it would evict, according to a {@link CountMinSketch} of recent
+ * accesses. Keys read once (e.g. by a scan) thus stay in the window and do
+ * not flush the keys used often.
+ * <p>
+ * The main area is a segmented LRU: admitted keys go to a probation segment
+ * and move to a protected one when hit again; keys demoted from the
+ * protected segment go back to probation, whose oldest key is the victim.
+ * <p>
+ * With a maximum weight, the oldest keys of probation (then of the protected
+ * segment, then of the window) are also evicted while the cache is too heavy.
+ * <p>
+ * NOTE: Methods are not thread-safe.
+ */
+public class TinyLFUCache<K, V> implements Cache<K, V> {
+
+    /**
+     * Fraction of the capacity used by the window.
+     */
+    public static final double WINDOW_RATIO = 0.01;
+
+    /**
+     * Fraction of the main area used by the protected segment.
+     */
+    public static final double PROTECTED_RATIO = 0.8;
+
+    private final int capacity;
+    private final int windowCapacity;
+    private final int protectedCapacity;
+    private final long maxWeight;
+    private final Weigher<? super K, ? super V> weigher;
+    private long weight = 0;
+    private long evictions = 0;
+
+    private final CountMinSketch sketch;
+
+    /**
+     * In access order, i.e. the first key is the least recently used.
+     */
+    private final LinkedHashMap<K, V> window = new LinkedHashMap<>(16, 0.75f,
+            true);
+    private final LinkedHashMap<K, V> probation = new LinkedHashMap<>(16,
+            0.75f, true);
+    private final LinkedHashMap<K, V> protectedSegment = new LinkedHashMap<>(
+            16, 0.75f, true);
+
+    public TinyLFUCache(int capacity) {
+        this(capacity, UNLIMITED_WEIGHT, Weigher.ENTRIES);
+    }
+
+    /**
+     * @param capacity  maximum number of entries.
+     * @param maxWeight maximum total weight of the entries.
+     * @param weigher   weight of an entry.
+     */
+    public TinyLFUCache(int capacity, long maxWeight,
+                        Weigher<? super K, ? super V> weigher) {
+        this.capacity = capacity;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.windowCapacity = capacity <= 1 ? capacity
+                : Math.max(1, (int) (capacity * WINDOW_RATIO));
+        this.protectedCapacity = (int) ((capacity - windowCapacity) *
+                PROTECTED_RATIO);
+        this.sketch = new CountMinSketch(capacity);
+    }
+
+    @Override
+    public int getSize() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public V get(K key) {
+        sketch.increment(key);
+        V value = window.get(key);
+        if (value != null) {
+            return value;
+        }
+        value = protectedSegment.get(key);
+        if (value != null) {
+            return value;
+        }
+        value = probation.remove(key);
+        if (value != null) {
+            promote(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * @return the keys of the protected segment first, then of probation,
+     * then of the window, the most recently used first in each.
+     */
+    @Override
+    public List<K> getHotKeys(int limit) {
+        List<K> keys = new ArrayList<>();
+        addMostRecent(keys, protectedSegment, limit);
+        addMostRecent(keys, probation, limit);
+        addMostRecent(keys, window, limit);
+        return keys;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        sketch.increment(key);
+        long entryWeight = weigher.weigh(key, value);
+        if (entryWeight > maxWeight) {
+            remove(key);
+            return;
+        }
+        V previous;
+        if (window.containsKey(key)) {
+            previous = window.put(key, value);
+        } else if (protectedSegment.containsKey(key)) {
+            previous = protectedSegment.put(key, value);
+        } else if ((previous = probation.remove(key)) != null) {
+            promote(key, value);
+        } else if (capacity > 0) {
+            window.put(key, value);
+            weight += entryWeight;
+            if (window.size() > windowCapacity) {
+                Map.Entry<K, V> candidate = removeEldest(window);
+                admit(candidate.getKey(), candidate.getValue());
+            }
+        }
+        if (previous != null) {
+            weight += entryWeight - weigher.weigh(key, previous);
+        }
+        boolean evicted = true;
+        while (weight > maxWeight && evicted) {
+            evicted = evictEldest(probation, key) ||
+                    evictEldest(protectedSegment, key) ||
+                    evictEldest(window, key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        sketch.clear();
+        weight = 0;
+    }
+
+    /**
+     * Move a key hit in probation to the protected segment.
+     */
+    private void promote(K key, V value) {
+        protectedSegment.put(key, value);
+        if (protectedSegment.size() > protectedCapacity) {
+            Map.Entry<K, V> demoted = removeEldest(protectedSegment);
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    /**
+     * Add a key leaving the window to the main area if there is room or if
+     * it is used more often than the victim of the main area.
+     */
+    private void admit(K key, V value) {
+        if (probation.size() + protectedSegment.size() <
+                capacity - windowCapacity) {
+            probation.put(key, value);
+            return;
+        }
+        LinkedHashMap<K, V> victimSegment = probation.isEmpty()
+                ? protectedSegment : probation;
+        K victim = victimSegment.isEmpty() ? null
+                : victimSegment.keySet().iterator().next();
+        if (victim != null &&
+                sketch.frequency(key) > sketch.frequency(victim)) {
+            weight -= weigher.weigh(victim, victimSegment.remove(victim));
+            probation.put(key, value);
+        } else {
+            weight -= weigher.weigh(key, value);
+        }
+        evictions++;
+    }
+
+    @Override
+    public void remove(K key) {
+        V value = window.remove(key);
+        if (value == null) {
+            value = probation.remove(key);
+        }
+        if (value == null) {
+            value = protectedSegment.remove(key);
+        }
+        if (value != null) {
+            weight -= weigher.weigh(key, value);
+        }
+    }
+
+    /**
+     * Evict the least recently used key of the segment other than the given
+     * one.
+     *
+     * @return false if there is none.
+     */
+    private boolean evictEldest(LinkedHashMap<K, V> segment, K keep) {
+        Iterator<Map.Entry<K, V>> iterator = segment.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<K, V> entry = iterator.next();
+            if (!entry.getKey().equals(keep)) {
+                weight -= weigher.weigh(entry.getKey(), entry.getValue());
+                iterator.remove();
+                evictions++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <K> void addMostRecent(List<K> keys,
+                                          LinkedHashMap<K, ?> segment,
+                                          int limit) {
+        List<K> segmentKeys = new ArrayList<>(segment.keySet());
+        for (int i = segmentKeys.size() - 1; i >= 0 && keys.size() < limit;
+             --i) {
+            keys.add(segmentKeys.get(i));
+        }
+    }
+
+    private static <K, V> Map.Entry<K, V> removeEldest(
+            LinkedHashMap<K, V> map) {
+        Iterator<Map.Entry<K, V>> iterator = map.entrySet().iterator();
+        Map.Entry<K, V> eldest = iterator.next();
+        Map.Entry<K, V> entry = new AbstractMap.SimpleEntry<>(eldest);
+        iterator.remove();
+        return entry;
+    }
+}
@@ -0,0 +1,177 @@
+package server;
+
+import app_kvServer.IKVServer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the values of records. A value is only compressed if it is at
+ * least {@link #getThresholdBytes()} long and compression makes it smaller;
+ * the record stores the id of the codec used, so that files mixing codecs
+ * (e.g. after the configuration changed) stay readable.
+ * <p>
+ * Compressed data is the length of the value (4 bytes) followed by the output
+ * of the codec.
+ * <p>
+ * NOTE: Methods are thread-safe.
+ */
+public class ValueCompressor {
+
+    public static final int CODEC_NONE = 0;
+    public static final int CODEC_DEFLATE = 1;
+
+    public static final int DEFAULT_THRESHOLD_BYTES = 256;
+
+    private static final ThreadMXBean threads =
+            ManagementFactory.getThreadMXBean();
+
+    /**
+     * Deflater and Inflater hold native memory, so each thread reuses its own.
+     */
+    private static final ThreadLocal<Deflater> deflater =
+            ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> inflater =
+            ThreadLocal.withInitial(Inflater::new);
+
+    private final IKVServer.Compression compression;
+    private final int thresholdBytes;
+
+    private final AtomicLong compressedValues = new AtomicLong(0);
+    private final AtomicLong uncompressedBytes = new AtomicLong(0);
+    private final AtomicLong compressedBytes = new AtomicLong(0);
+    private final AtomicLong compressionNanos = new AtomicLong(0);
+    private final AtomicLong decompressionNanos = new AtomicLong(0);
+
+    public ValueCompressor() {
+        this(IKVServer.Compression.None, DEFAULT_THRESHOLD_BYTES);
+    }
+
+    /**
+     * @param compression    codec of new records.
+     * @param thresholdBytes size of the smallest value to compress.
+     */
+    public ValueCompressor(IKVServer.Compression compression,
+                           int thresholdBytes) {
+        this.compression = compression;
+        this.thresholdBytes = thresholdBytes;
+    }
+
+    public IKVServer.Compression getCompression() {
+        return compression;
+    }
+
+    public int getThresholdBytes() {
+        return thresholdBytes;
+    }
+
+    /**
+     * @return the codec id of the value returned by {@link #compress}.
+     */
+    public int getCodec() {
+        return compression == IKVServer.Compression.Deflate ? CODEC_DEFLATE
+                : CODEC_NONE;
+    }
+
+    /**
+     * @return the compressed value, or null if it is stored as is.
+     */
+    public byte[] compress(byte[] value) {
+        if (compression == IKVServer.Compression.None ||
+                value.length < thresholdBytes) {
+            return null;
+        }
+        long startTime = cpuTime();
+        Deflater codec = deflater.get();
+        codec.reset();
+        codec.setInput(value);
+        codec.finish();
+        // Only worth it if smaller
+        byte[] output = new byte[4 + value.length];
+        ByteBuffer.wrap(output).putInt(value.length);
+        int length = 4;
+        while (!codec.finished() && length < output.length) {
+            length += codec.deflate(output, length, output.length - length);
+        }
+        boolean smaller = codec.finished() && length < value.length;
+        compressionNanos.addAndGet(cpuTime() - startTime);
+        if (!smaller) {
+            return null;
+        }
+        compressedValues.incrementAndGet();
+        uncompressedBytes.addAndGet(value.length);
+        compressedBytes.addAndGet(length);
+        return Arrays.copyOf(output, length);
+    }
+
+    /**
+     * @return the value stored in data[offset, offset + length) with the
+     * given codec.
+     */
+    public byte[] decompress(int codec, byte[] data, int offset,
+                             int length) throws IOException {
+        if (codec == CODEC_NONE) {
+            return Arrays.copyOfRange(data, offset, offset + length);
+        }
+        if (codec != CODEC_DEFLATE || length < 4) {
+            throw new IOException("Unknown value codec: " + codec);
+        }
+        long startTime = cpuTime();
+        byte[] value = new byte[ByteBuffer.wrap(data, offset, 4).getInt()];
+        Inflater codecInflater = inflater.get();
+        codecInflater.reset();
+        codecInflater.setInput(data, offset + 4, length - 4);
+        try {
+            int inflated = 0;
+            while (inflated < value.length && !codecInflater.finished()) {
+                int count = codecInflater.inflate(value, inflated,
+                        value.length - inflated);
+                if (count == 0 && codecInflater.needsInput()) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != value.length) {
+                throw new IOException("Truncated compressed value");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed value", e);
+        } finally {
+            decompressionNanos.addAndGet(cpuTime() - startTime);
+        }
+        return value;
+    }
+
+    public Map<String, Number> getStatistics() {
+        Map<String, Number> statistics = new LinkedHashMap<>();
+        long uncompressed = uncompressedBytes.get();
+        long compressed = compressedBytes.get();
+        statistics.put("compressedValues", compressedValues.get());
+        // Original size over stored size of the compressed values
+        statistics.put("compressionRatio",
+                compressed == 0 ? 1.0 : (double) uncompressed / compressed);
+        statistics.put("compressionCpuMillis",
+                compressionNanos.get() / 1_000_000);
+        statistics.put("decompressionCpuMillis",
+                decompressionNanos.get() / 1_000_000);
+        return statistics;
+    }
+
+    /**
+     * @return the CPU time of the current thread, or the wall-clock time if
+     * the JVM does not measure it.
+     */
+    private static long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported()
+                ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+}
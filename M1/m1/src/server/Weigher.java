@@ -0,0 +1,23 @@
+package server;
+
+/**
+ * Computes the weight of a cache entry, e.g. its size in bytes; caches evict
+ * entries while their total weight is over their maximum weight.
+ */
+@FunctionalInterface
+public interface Weigher<K, V> {
+
+    /**
+     * Every entry weighs 1, i.e. the weight is the number of entries.
+     */
+    Weigher<Object, Object> ENTRIES = (key, value) -> 1;
+
+    /**
+     * Approximate heap size in bytes of an entry of strings: two bytes per
+     * character of the key and value, plus the overhead of the objects.
+     */
+    Weigher<String, String> STRING_BYTES = (key, value) ->
+            Cache.ENTRY_OVERHEAD_BYTES + 2L * (key.length() + value.length());
+
+    long weigh(K key, V value);
+}
@@ -0,0 +1,264 @@
+package server;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of writes. Record layout: CRC32 of the rest of the
+ * record (4 bytes), key length (4 bytes), value length (4 bytes, -1 for a
+ * delete), then the key and the value in UTF-8.
+ * <p>
+ * Positions returned by {@link #append} are logical: they keep increasing
+ * when the log is truncated. {@link #sync} implements group commit: a thread
+ * waiting for its records to be durable either forces the file itself, which
+ * also covers the records of all threads that appended before, or finds that
+ * another thread's force already covered its records.
+ * <p>
+ * NOTE: Methods are thread-safe, except replay, truncate and close, which
+ * must be called exclusively.
+ */
+public class WriteAheadLog {
+
+    public interface RecordConsumer {
+        /**
+         * @param value null for a delete.
+         */
+        void accept(String key, String value) throws IOException;
+    }
+
+    private static final Logger logger = Logger.getRootLogger();
+
+    private static final int HEADER_BYTES = 12;
+    private static final int TOMBSTONE_LENGTH = -1;
+
+    private final File file;
+    private final FileChannel channel;
+
+    /**
+     * Logical position of the first byte of the file.
+     */
+    private long fileStart = 0;
+    /**
+     * Logical position of the end of the last appended record.
+     */
+    private long appendedPosition;
+    /**
+     * Logical position up to which the file is known to be durable.
+     */
+    private volatile long syncedPosition;
+
+    /**
+     * Held while forcing the file, so that concurrent syncs are combined.
+     */
+    private final Object syncLock = new Object();
+
+    private final AtomicLong appendCount = new AtomicLong(0);
+    private final AtomicLong syncCount = new AtomicLong(0);
+
+    public WriteAheadLog(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.appendedPosition = channel.size();
+        this.syncedPosition = appendedPosition;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Append a write; it is not durable until {@link #sync} is called.
+     *
+     * @param value null for a delete.
+     * @return the logical position after the record.
+     */
+    public long append(String key, String value) throws IOException {
+        return appendAll(Collections.singletonMap(key, value));
+    }
+
+    /**
+     * Append several writes with a single write to the file; they are not
+     * durable until {@link #sync} is called.
+     *
+     * @param writes values by key, null for a delete.
+     * @return the logical position after the last record.
+     */
+    public long appendAll(Map<String, String> writes) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (Map.Entry<String, String> write : writes.entrySet()) {
+            byte[] record = encode(write.getKey(), write.getValue());
+            records.write(record, 0, record.length);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+
+        synchronized (this) {
+            long offset = appendedPosition - fileStart;
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+            appendedPosition += buffer.capacity();
+            appendCount.addAndGet(writes.size());
+            return appendedPosition;
+        }
+    }
+
+    /**
+     * Make the records up to the given logical position durable.
+     */
+    public void sync(long position) throws IOException {
+        if (syncedPosition >= position) {
+            return;
+        }
+        synchronized (syncLock) {
+            // Another thread may have forced the file while this one waited
+            if (syncedPosition >= position) {
+                return;
+            }
+            long target = getAppendedPosition();
+            channel.force(false);
+            syncedPosition = target;
+            syncCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Make all appended records durable.
+     */
+    public void sync() throws IOException {
+        sync(getAppendedPosition());
+    }
+
+    public synchronized long getAppendedPosition() {
+        return appendedPosition;
+    }
+
+    /**
+     * @return the size of the file in bytes.
+     */
+    public synchronized long size() {
+        return appendedPosition - fileStart;
+    }
+
+    /**
+     * @return the number of records appended since the log was opened.
+     */
+    public long getAppendCount() {
+        return appendCount.get();
+    }
+
+    /**
+     * @return the number of times the file was forced to disk.
+     */
+    public long getSyncCount() {
+        return syncCount.get();
+    }
+
+    /**
+     * Pass the records of the log to the consumer, in order. A torn record at
+     * the end (e.g. after a crash) ends the replay and is cut off.
+     *
+     * @return the number of records replayed.
+     */
+    public int replay(RecordConsumer consumer) throws IOException {
+        long length = channel.size();
+        // NOTE: The stream is not closed, since that would close the channel.
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel.position(0)), 1 << 16));
+        CRC32 crc = new CRC32();
+        long offset = 0;
+        int count = 0;
+        while (offset < length) {
+            try {
+                int storedCrc = input.readInt();
+                int keyLength = input.readInt();
+                int valueLength = input.readInt();
+                if (keyLength < 0 || valueLength < TOMBSTONE_LENGTH ||
+                        offset + HEADER_BYTES + keyLength +
+                                Math.max(valueLength, 0) > length) {
+                    break;
+                }
+                byte[] record = new byte[8 + keyLength +
+                        Math.max(valueLength, 0)];
+                ByteBuffer.wrap(record).putInt(keyLength).putInt(valueLength);
+                input.readFully(record, 8, record.length - 8);
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != storedCrc) {
+                    break;
+                }
+                String key = new String(record, 8, keyLength,
+                        StandardCharsets.UTF_8);
+                consumer.accept(key, valueLength == TOMBSTONE_LENGTH ? null
+                        : new String(record, 8 + keyLength, valueLength,
+                        StandardCharsets.UTF_8));
+                offset += 4 + record.length;
+                count++;
+            } catch (EOFException e) {
+                break;
+            }
+        }
+        if (offset < length) {
+            logger.warn(String.format(
+                    "Ignoring torn record at offset %d of %s", offset,
+                    file.getName()));
+            channel.truncate(offset);
+        }
+        synchronized (this) {
+            appendedPosition = fileStart + offset;
+            syncedPosition = appendedPosition;
+        }
+        return count;
+    }
+
+    /**
+     * Remove all records, e.g. once they are durable in the storage.
+     */
+    public void truncate() throws IOException {
+        synchronized (this) {
+            channel.truncate(0);
+            channel.force(true);
+            fileStart = appendedPosition;
+            syncedPosition = appendedPosition;
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static byte[] encode(String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value == null ? new byte[0]
+                : value.getBytes(StandardCharsets.UTF_8);
+        int valueLength = value == null ? TOMBSTONE_LENGTH : valueBytes.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(
+                HEADER_BYTES + keyBytes.length + valueBytes.length);
+        buffer.putInt(0); // crc, filled in below
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(valueLength);
+        buffer.put(keyBytes);
+        buffer.put(valueBytes);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, buffer.capacity() - 4);
+        buffer.putInt(0, (int) crc.getValue());
+        return buffer.array();
+    }
+}
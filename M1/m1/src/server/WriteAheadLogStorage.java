@@ -0,0 +1,331 @@
+package server;
+
+import app_kvServer.IKVServer;
+import org.apache.log4j.Logger;
+import shared.messages.KVMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A storage which records every write in a {@link WriteAheadLog} before
+ * applying it to the underlying storage. When opened, the writes left in the
+ * log (e.g. after a crash) are replayed into the underlying storage.
+ * <p>
+ * When the log is forced depends on the sync policy: never (writes survive a
+ * crash of the process, but not of the machine), periodically in the
+ * background, or before every put returns. With the latter, concurrent puts
+ * share forces (group commit), so there is far less than one force per put
+ * under load.
+ */
+public class WriteAheadLogStorage implements IKVStorage {
+
+    private class IntervalSyncer extends Thread {
+        IntervalSyncer() {
+            super("WriteAheadLogStorage syncer");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running.get()) {
+                try {
+                    synchronized (signal) {
+                        signal.wait(SYNC_INTERVAL_MILLIS);
+                    }
+                    log.sync();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    logger.error("Unable to sync write-ahead log", e);
+                }
+            }
+        }
+    }
+
+    private static final Logger logger = Logger.getRootLogger();
+
+    public static final long SYNC_INTERVAL_MILLIS = 100;
+
+    /**
+     * Size of the log after which the underlying storage is forced and the
+     * log is emptied.
+     */
+    public static final long DEFAULT_CHECKPOINT_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Number of key locks; writes of the same key must reach the log and the
+     * storage in the same order.
+     */
+    private static final int NUM_KEY_LOCKS = 64;
+
+    private final IKVStorage storage;
+    private final WriteAheadLog log;
+    private final IKVServer.SyncPolicy syncPolicy;
+    private final long checkpointBytes;
+
+    private final Lock[] keyLocks = new Lock[NUM_KEY_LOCKS];
+
+    /**
+     * Held in shared mode by puts and in exclusive mode by checkpoints, so
+     * that the log is only emptied once all its writes are applied.
+     */
+    private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    /**
+     * NOTE: The syncer is woken through this rather than interrupted, since
+     * an interrupt would close the log's channel.
+     */
+    private final Object signal = new Object();
+    private final IntervalSyncer syncer;
+
+    public WriteAheadLogStorage(IKVStorage storage,
+                                File logFile,
+                                IKVServer.SyncPolicy syncPolicy) throws
+            IOException {
+        this(storage, logFile, syncPolicy, DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    /**
+     * @param storage         the storage the writes are applied to.
+     * @param logFile         file of the write-ahead log.
+     * @param syncPolicy      when the log is forced to disk.
+     * @param checkpointBytes size of the log after which it is emptied.
+     */
+    public WriteAheadLogStorage(IKVStorage storage,
+                                File logFile,
+                                IKVServer.SyncPolicy syncPolicy,
+                                long checkpointBytes) throws IOException {
+        this.storage = storage;
+        this.syncPolicy = syncPolicy;
+        this.checkpointBytes = checkpointBytes;
+        for (int i = 0; i < NUM_KEY_LOCKS; ++i) {
+            keyLocks[i] = new ReentrantLock();
+        }
+
+        log = new WriteAheadLog(logFile);
+        int count = log.replay(storage::put);
+        if (count > 0) {
+            logger.info(String.format(
+                    "Replayed %d writes from the write-ahead log", count));
+        }
+        checkpoint();
+
+        logger.info("Write-ahead log sync policy: " + syncPolicy.toString());
+        if (syncPolicy == IKVServer.SyncPolicy.Interval) {
+            syncer = new IntervalSyncer();
+            syncer.start();
+        } else {
+            syncer = null;
+        }
+    }
+
+    @Override
+    public String get(String key) throws IOException {
+        return storage.get(key);
+    }
+
+    @Override
+    public KVMessage.StatusType put(String key, String value) throws
+            IOException {
+        long position;
+        KVMessage.StatusType response;
+        checkpointLock.readLock().lock();
+        try {
+            Lock keyLock = keyLocks[keyLockIndex(key)];
+            keyLock.lock();
+            try {
+                position = log.append(key, value);
+                response = storage.put(key, value);
+            } finally {
+                keyLock.unlock();
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+
+        afterAppend(position);
+        return response;
+    }
+
+    /**
+     * Log all writes with one append and, under the Always policy, make them
+     * durable with one sync.
+     */
+    @Override
+    public Map<String, KVMessage.StatusType> putMany(
+            Map<String, String> values) throws IOException {
+        if (values.isEmpty()) {
+            return new LinkedHashMap<>();
+        }
+        // Lock the stripes in index order, so that batches don't deadlock
+        SortedSet<Integer> indices = new TreeSet<>();
+        for (String key : values.keySet()) {
+            indices.add(keyLockIndex(key));
+        }
+
+        long position;
+        Map<String, KVMessage.StatusType> responses;
+        checkpointLock.readLock().lock();
+        try {
+            List<Lock> locked = new ArrayList<>();
+            try {
+                for (int index : indices) {
+                    keyLocks[index].lock();
+                    locked.add(keyLocks[index]);
+                }
+                position = log.appendAll(values);
+                responses = storage.putMany(values);
+            } finally {
+                for (Lock keyLock : locked) {
+                    keyLock.unlock();
+                }
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+
+        afterAppend(position);
+        return responses;
+    }
+
+    @Override
+    public Map<String, String> getMany(Collection<String> keys) throws
+            IOException {
+        return storage.getMany(keys);
+    }
+
+    @Override
+    public void clearCache() {
+        storage.clearCache();
+    }
+
+    @Override
+    public List<String> getHotKeys(int limit) {
+        return storage.getHotKeys(limit);
+    }
+
+    @Override
+    public ManagedCache getCache() {
+        return storage.getCache();
+    }
+
+    @Override
+    public List<String> getAllKeys(String hashRangeStart,
+                                   String hashRangeEnd) throws IOException {
+        return storage.getAllKeys(hashRangeStart, hashRangeEnd);
+    }
+
+    @Override
+    public KVCursor scanRange(String hashRangeStart,
+                              String hashRangeEnd) throws IOException {
+        return storage.scanRange(hashRangeStart, hashRangeEnd);
+    }
+
+    @Override
+    public Integer getCurrentDeltaLogicalTime() {
+        return storage.getCurrentDeltaLogicalTime();
+    }
+
+    @Override
+    public KVStorageDelta startNextDeltaRecording(int logicalTime,
+                                                  String hashRangeStart,
+                                                  String hashRangeEnd) {
+        return storage.startNextDeltaRecording(logicalTime, hashRangeStart,
+                hashRangeEnd);
+    }
+
+    @Override
+    public Map<String, Number> getStatistics() {
+        Map<String, Number> statistics = new LinkedHashMap<>(
+                storage.getStatistics());
+        long appends = log.getAppendCount();
+        long syncs = log.getSyncCount();
+        statistics.put("walAppends", appends);
+        statistics.put("walSyncs", syncs);
+        // Average number of writes made durable by one force
+        statistics.put("walAppendsPerSync",
+                syncs == 0 ? 0.0 : (double) appends / syncs);
+        return statistics;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        log.sync();
+    }
+
+    public IKVStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Force the log and stop the background syncer. The underlying storage is
+     * not closed. The storage must not be used afterwards.
+     */
+    public void close() throws IOException {
+        running.set(false);
+        if (syncer != null) {
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+            try {
+                syncer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.sync();
+        log.close();
+    }
+
+    private static int keyLockIndex(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % NUM_KEY_LOCKS;
+    }
+
+    /**
+     * Sync the log according to the policy, and checkpoint it if it is full.
+     * <p>
+     * NOTE: Called outside of the locks, so that concurrent puts join the
+     * same force.
+     */
+    private void afterAppend(long position) throws IOException {
+        if (syncPolicy == IKVServer.SyncPolicy.Always) {
+            log.sync(position);
+        }
+
+        if (log.size() >= checkpointBytes) {
+            checkpointLock.writeLock().lock();
+            try {
+                if (log.size() >= checkpointBytes) {
+                    checkpoint();
+                }
+            } finally {
+                checkpointLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Force the underlying storage to disk and empty the log.
+     * <p>
+     * NOTE: Must hold the checkpoint write lock, or be called before the
+     * storage is used.
+     */
+    private void checkpoint() throws IOException {
+        storage.sync();
+        log.truncate();
+    }
+}
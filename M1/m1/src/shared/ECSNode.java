@@ -12,6 +12,11 @@ public class ECSNode implements Comparable<ECSNode>, IECSNode, Serializable {
     private int port;
     private String name;
     private String position;
+    /**
+     * The parsed position; computed when first needed, since only the string
+     * is sent.
+     */
+    private transient RingPosition ringPosition;
 
     public ECSNode(String name, String host, int port, String position) {
         this.name = name;
@@ -26,7 +31,13 @@ public class ECSNode implements Comparable<ECSNode>, IECSNode, Serializable {
 
     @Override
     public int compareTo(ECSNode o) {
-        return this.position.compareTo(((ECSNode) o).position);
+        // NOTE: Both orders are the same for valid ring positions
+        RingPosition thisPosition = getRingPosition();
+        RingPosition otherPosition = o.getRingPosition();
+        if (thisPosition != null && otherPosition != null) {
+            return thisPosition.compareTo(otherPosition);
+        }
+        return this.position.compareTo(o.position);
     }
 
     @Override
@@ -48,6 +59,19 @@ public class ECSNode implements Comparable<ECSNode>, IECSNode, Serializable {
         return position;
     }
 
+    /**
+     * @return the parsed position; null if the position is not a valid ring
+     * position.
+     */
+    public RingPosition getRingPosition() {
+        RingPosition result = ringPosition;
+        if (result == null && RingPosition.isHex(position)) {
+            result = RingPosition.fromHex(position);
+            ringPosition = result;
+        }
+        return result;
+    }
+
     @Override
     public String toString() {
         return String
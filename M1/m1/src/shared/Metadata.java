@@ -1,7 +1,6 @@
 package shared;
 
 import java.io.Serializable;
-import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -119,15 +118,39 @@ public class Metadata implements Serializable {
         return servers.get(left);
     }
 
-    public static String getRingPosition(String key) {
-        MessageDigest hashGenerator;
-        try {
-            hashGenerator = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new Error(Util.getStackTraceString(e));
+    /**
+     * Find the server responsible for a ring position, without converting it
+     * to a string (unless a server has a position which is not a valid ring
+     * position).
+     */
+    public ECSNode getServer(RingPosition ringPosition) {
+        if (servers.size() == 0) {
+            return null;
+        }
+        // The first server at or after the position, wrapping around
+        int left = 0;
+        int right = servers.size();
+        while (left < right) {
+            int mid = (left + right) >>> 1;
+            RingPosition position = servers.get(mid).getRingPosition();
+            if (position == null) {
+                return binarySearch(ringPosition.toString());
+            }
+            if (position.compareTo(ringPosition) < 0) {
+                left = mid + 1;
+            } else {
+                right = mid;
+            }
         }
-        byte[] bytes = hashGenerator.digest(key.getBytes());
-        return String.format("%032x", new BigInteger(1, bytes));
+        return servers.get(left == servers.size() ? 0 : left);
+    }
+
+    /**
+     * @return the hexadecimal string of {@link RingPosition#of}; use that
+     * directly unless a string is needed.
+     */
+    public static String getRingPosition(String key) {
+        return RingPosition.of(key).toString();
     }
 
     @Override
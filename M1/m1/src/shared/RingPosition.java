@@ -0,0 +1,145 @@
+package shared;
+
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A position on the hash ring: the 128-bit MD5 hash of a key, held as two
+ * longs and compared as an unsigned number. The hexadecimal string of
+ * {@link #toString()} (32 lowercase digits, as returned by {@link
+ * Metadata#getRingPosition}) orders the same way, and is only used on the
+ * wire and for display.
+ */
+public final class RingPosition implements Comparable<RingPosition>,
+        Serializable {
+
+    private static final long serialVersionUID = 6018513237415360341L;
+
+    public static final int HEX_LENGTH = 32;
+
+    /**
+     * MessageDigest is not thread-safe, so each thread gets its own.
+     */
+    private static final ThreadLocal<MessageDigest> hashGenerator =
+            ThreadLocal.withInitial(() -> {
+                try {
+                    return MessageDigest.getInstance("MD5");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new Error(Util.getStackTraceString(e));
+                }
+            });
+
+    private final long high;
+    private final long low;
+
+    public RingPosition(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * @return the ring position of the given key.
+     */
+    public static RingPosition of(String key) {
+        // NOTE: Same encoding as Metadata.getRingPosition always used
+        byte[] bytes = hashGenerator.get().digest(key.getBytes());
+        return new RingPosition(toLong(bytes, 0), toLong(bytes, 8));
+    }
+
+    /**
+     * Parse the hexadecimal string of a ring position.
+     *
+     * @throws IllegalArgumentException if the string is not 32 hexadecimal
+     *                                  digits.
+     */
+    public static RingPosition fromHex(String hex) {
+        if (!isHex(hex)) {
+            throw new IllegalArgumentException(
+                    "Invalid ring position: " + hex);
+        }
+        return new RingPosition(
+                Long.parseUnsignedLong(hex.substring(0, 16), 16),
+                Long.parseUnsignedLong(hex.substring(16), 16));
+    }
+
+    /**
+     * @return whether the string is the hexadecimal string of a ring
+     * position, i.e. 32 lowercase hexadecimal digits.
+     */
+    public static boolean isHex(String hex) {
+        if (hex == null || hex.length() != HEX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HEX_LENGTH; ++i) {
+            char c = hex.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    /**
+     * Whether this position is in the range (start, end] of the ring, which
+     * wraps around the end of the ring if start is greater than end. The
+     * range is empty if start equals end.
+     */
+    public boolean isInRange(RingPosition start, RingPosition end) {
+        if (start.compareTo(end) > 0) {
+            return compareTo(start) > 0 || compareTo(end) <= 0;
+        } else {
+            return compareTo(start) > 0 && compareTo(end) <= 0;
+        }
+    }
+
+    @Override
+    public int compareTo(RingPosition o) {
+        int result = Long.compareUnsigned(high, o.high);
+        return result != 0 ? result : Long.compareUnsigned(low, o.low);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RingPosition)) {
+            return false;
+        }
+        RingPosition other = (RingPosition) o;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(high) * 31 + Long.hashCode(low);
+    }
+
+    @Override
+    public String toString() {
+        char[] chars = new char[HEX_LENGTH];
+        for (int i = 0; i < 16; ++i) {
+            chars[i] = Util.hexToChar[(int) (high >>> (60 - 4 * i)) & 0x0F];
+            chars[16 + i] = Util.hexToChar[(int) (low >>> (60 - 4 * i)) &
+                    0x0F];
+        }
+        return new String(chars);
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; ++i) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+}
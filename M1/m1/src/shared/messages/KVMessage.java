@@ -25,6 +25,11 @@ public interface KVMessage {
          * requested tuple (i.e. value) found
          */
         GET_SUCCESS,
+        /**
+         * requested tuple (i.e. value) unchanged since the version given in
+         * the request, with a LeaseArgs argument renewing the lease
+         */
+        GET_NOT_MODIFIED,
         /**
          * Put - request
          */
@@ -66,6 +71,10 @@ public interface KVMessage {
          * lock and write lock
          */
         ECS_PUT,
+        /**
+         * Several ECS_PUTs in one message, with a PutBatchArgs argument
+         */
+        ECS_PUT_BATCH,
         /**
          * ECS: signal to ECS that the last command was successful
          */
@@ -110,6 +119,15 @@ public interface KVMessage {
          * ECS: stop replicator
          */
         ECS_STOP_REPLICATION,
+        /**
+         * ECS: report the statistics of the cache; the response has the cache
+         * strategy as value and the statistics by name as argument
+         */
+        ECS_GET_CACHE_STATISTICS,
+        /**
+         * ECS: replace the cache, with a CacheConfigArgs argument
+         */
+        ECS_RECONFIGURE_CACHE,
         /**
          * Transaction: Start Transaction
          */
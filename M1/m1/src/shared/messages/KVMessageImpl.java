@@ -85,6 +85,8 @@ public class KVMessageImpl implements KVMessage, Serializable {
                 return statusName + "<" + key + ">";
             case GET_SUCCESS:
                 return statusName + "<" + key + "," + value + ">";
+            case GET_NOT_MODIFIED:
+                return statusName + "<" + key + ">";
             case PUT:
                 return statusName + "<" + key + "," + value + ">";
             case PUT_SUCCESS:
@@ -105,6 +107,9 @@ public class KVMessageImpl implements KVMessage, Serializable {
                 return statusName;
             case ECS_PUT:
                 return statusName + "<" + key + "," + value + ">";
+            case ECS_PUT_BATCH:
+                return statusName + "<(" + Util
+                        .safeToString(ecsCommandArg) + ")>";
             case ECS_SUCCESS:
                 return statusName;
             case ECS_START_SERVING:
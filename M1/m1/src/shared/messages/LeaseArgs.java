@@ -0,0 +1,63 @@
+package shared.messages;
+
+import java.io.Serializable;
+
+/**
+ * Argument of the GET messages of near caches: a client asks for a lease by
+ * sending one with its GET, and the server grants with the value a lease,
+ * during which the client may serve the value from its near cache, and the
+ * version of the value. Once the lease expires, the client sends the version
+ * with its GET; if the value did not change, the server answers
+ * GET_NOT_MODIFIED with a new lease instead of the value.
+ * <p>
+ * The version is a hash of the value, so that the server keeps no state for
+ * it and it survives restarts and data transfers.
+ */
+public class LeaseArgs implements Serializable {
+    private static final long serialVersionUID = 7351908826617024593L;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Long version;
+    private final long leaseMillis;
+
+    /**
+     * @param version     null in requests for a value not cached.
+     * @param leaseMillis duration of the lease; 0 in requests.
+     */
+    public LeaseArgs(Long version, long leaseMillis) {
+        this.version = version;
+        this.leaseMillis = leaseMillis;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /**
+     * @return the version of a value: its 64-bit FNV-1a hash.
+     */
+    public static long versionOf(String value) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "LeaseArgs{" +
+                "version=" + (version == null ? "none"
+                : Long.toHexString(version)) +
+                ", leaseMillis=" + leaseMillis +
+                '}';
+    }
+}
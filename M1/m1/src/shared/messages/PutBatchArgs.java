@@ -0,0 +1,79 @@
+package shared.messages;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Argument of an ECS_PUT_BATCH message: several writes applied together by
+ * the receiving server. Batches are kept well under the maximum message size
+ * of the protocol.
+ */
+public class PutBatchArgs implements Serializable {
+    private static final long serialVersionUID = 2290637116042836524L;
+
+    /**
+     * Maximum total size of the keys and values of a batch, leaving room for
+     * the serialization overhead under Protocol.MAX_BODY_BYTES.
+     */
+    public static final int MAX_BATCH_BYTES = 150_000;
+
+    private final LinkedHashMap<String, String> values = new LinkedHashMap<>();
+    private int bytes = 0;
+
+    /**
+     * @return whether the write can be added without making the batch too
+     * large. A single write always fits in an empty batch.
+     */
+    public boolean fits(String key, String value) {
+        return values.isEmpty() || bytes + size(key, value) <= MAX_BATCH_BYTES;
+    }
+
+    /**
+     * @param value null for a delete.
+     */
+    public void put(String key, String value) {
+        // A delete maps to null, so ask the map whether the key was there
+        if (values.containsKey(key)) {
+            bytes -= size(key, values.get(key));
+        }
+        values.put(key, value);
+        bytes += size(key, value);
+    }
+
+    /**
+     * @return values by key, null for a delete.
+     */
+    public Map<String, String> getValues() {
+        return values;
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * @return the total size of the keys and values in bytes.
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    public boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "PutBatchArgs{" +
+                "size=" + values.size() +
+                ", bytes=" + bytes +
+                '}';
+    }
+
+    private static int size(String key, String value) {
+        return key.getBytes(StandardCharsets.UTF_8).length + (value == null ? 0
+                : value.getBytes(StandardCharsets.UTF_8).length);
+    }
+}
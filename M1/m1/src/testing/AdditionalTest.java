@@ -3,7 +3,9 @@ package testing;
 import app_kvServer.IKVServer;
 import app_kvServer.KVServer;
 import client.KVStore;
+import client.NearCache;
 import client.ServerConnection;
+import ecs.CacheConfigArgs;
 import ecs.ECSController;
 import org.junit.Rule;
 import org.junit.Test;
@@ -12,17 +14,23 @@ import server.*;
 import shared.ECSNode;
 import shared.Metadata;
 import shared.Protocol;
+import shared.RingPosition;
 import shared.Util;
 import shared.messages.KVMessage;
 import shared.messages.KVMessageImpl;
 import shared.messages.KVMessageSerializer;
+import shared.messages.PutBatchArgs;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
@@ -42,9 +50,25 @@ public class AdditionalTest {
         assertEquals(m.getStatus(), m2.getStatus());
     }
 
+    @Test
+    public void testPutBatchBytes() {
+        PutBatchArgs batch = new PutBatchArgs();
+        batch.put("key", "value");
+        assertEquals(8, batch.getBytes());
+        // Replacing a write, then a delete, counts the key once
+        batch.put("key", null);
+        assertEquals(3, batch.getBytes());
+        batch.put("key", "value");
+        assertEquals(8, batch.getBytes());
+        batch.put("other", null);
+        batch.put("other", null);
+        assertEquals(13, batch.getBytes());
+        assertEquals(2, batch.size());
+    }
+
     @Test
     public void testLRUCache() throws IOException, ClassNotFoundException {
-        LRUCache LRU = new LRUCache(2);
+        SegmentedCache<String, String> LRU = new SegmentedCache<>(2);
         LRU.put("address", "toronto");
         LRU.put("name", "Alice");
         assertEquals(LRU.get("address"), "toronto");
@@ -57,7 +81,7 @@ public class AdditionalTest {
 
     @Test
     public void testFIFOCache() throws IOException, ClassNotFoundException {
-        FIFOCache FIFO = new FIFOCache(2);
+        SegmentedCache<String, String> FIFO = new SegmentedCache<>(2, false);
         FIFO.put("address", "toronto");
         assertEquals(FIFO.get("address"), "toronto");
         FIFO.put("name", "Alice");
@@ -68,6 +92,626 @@ public class AdditionalTest {
 
     }
 
+    @Test
+    public void testLFUCache() {
+        LFUCache<String, String> LFU = new LFUCache<>(2);
+        LFU.put("address", "toronto");
+        LFU.put("name", "Alice");
+        assertEquals("toronto", LFU.get("address"));
+        assertEquals("toronto", LFU.get("address"));
+        assertEquals("Alice", LFU.get("name"));
+        LFU.put("age", "20");
+        assertNull(LFU.get("name"));
+        assertEquals(3, LFU.getFrequency("address"));
+        // The least recently used of the least frequently used goes
+        LFU.put("city", "Paris");
+        assertNull(LFU.get("age"));
+        assertEquals("toronto", LFU.get("address"));
+        assertEquals("Paris", LFU.get("city"));
+
+        // A scan does not evict a hot key
+        LFUCache<Integer, Integer> cache = new LFUCache<>(10);
+        for (int i = 0; i < 5; ++i) {
+            cache.put(-1, -1);
+        }
+        for (int i = 0; i < 1000; ++i) {
+            cache.put(i, i);
+        }
+        assertEquals(10, cache.getSize());
+        assertEquals(Integer.valueOf(-1), cache.get(-1));
+
+        // Unless it is only hot in the past, with aging
+        cache = new LFUCache<>(10, 20);
+        for (int i = 0; i < 5; ++i) {
+            cache.put(-1, -1);
+        }
+        assertEquals(5, cache.getFrequency(-1));
+        for (int i = 0; i < 1000; ++i) {
+            cache.put(i, i);
+            cache.get(i);
+        }
+        assertNull(cache.get(-1));
+        cache.clear();
+        assertEquals(0, cache.getSize());
+
+        assertEquals(IKVServer.CacheStrategy.LFU,
+                IKVServer.CacheStrategy.fromString("LFU"));
+        assertEquals(10, CacheFactory.createCache(10,
+                IKVServer.CacheStrategy.LFU).getCapacity());
+    }
+
+    @Test
+    public void testTinyLFUCache() {
+        TinyLFUCache<String, String> small = new TinyLFUCache<>(2);
+        small.put("address", "toronto");
+        small.put("name", "Alice");
+        assertEquals("toronto", small.get("address"));
+        assertEquals("Alice", small.get("name"));
+        assertTrue(small.getSize() <= 2);
+
+        // Zipf-like reads: a few hot keys among many read once
+        TinyLFUCache<Integer, Integer> tinyLFU = new TinyLFUCache<>(100);
+        SegmentedCache<Integer, Integer> lru = new SegmentedCache<>(100);
+        Random random = new Random(0);
+        int tinyLFUHits = 0;
+        int lruHits = 0;
+        for (int i = 0; i < 100000; ++i) {
+            int key = random.nextInt(4) == 0 ? random.nextInt(1000000)
+                    : random.nextInt(80);
+            if (tinyLFU.get(key) != null) {
+                ++tinyLFUHits;
+            } else {
+                tinyLFU.put(key, key);
+            }
+            if (lru.get(key) != null) {
+                ++lruHits;
+            } else {
+                lru.put(key, key);
+            }
+        }
+        assertTrue(tinyLFU.getSize() <= 100);
+        assertTrue(tinyLFUHits > lruHits);
+        assertTrue(tinyLFUHits > 70000);
+
+        assertEquals(IKVServer.CacheStrategy.TinyLFU,
+                IKVServer.CacheStrategy.fromString("TinyLFU"));
+    }
+
+    @Test
+    public void testARCCache() {
+        ARCCache<String, String> ARC = new ARCCache<>(2);
+        ARC.put("address", "toronto");
+        ARC.put("name", "Alice");
+        assertEquals("toronto", ARC.get("address"));
+        ARC.put("age", "20");
+        assertNull(ARC.get("name"));
+        assertEquals("toronto", ARC.get("address"));
+        assertEquals("20", ARC.get("age"));
+        // A miss on a key evicted from the recency list favors recency
+        ARC.put("name", "Alice");
+        assertTrue(ARC.getTarget() > 0);
+        assertEquals("Alice", ARC.get("name"));
+        assertEquals(2, ARC.getSize());
+
+        // A scan does not evict keys read more than once
+        ARCCache<Integer, Integer> cache = new ARCCache<>(100);
+        for (int i = 0; i < 50; ++i) {
+            cache.put(i, i);
+            cache.get(i);
+        }
+        for (int i = 1000; i < 11000; ++i) {
+            if (cache.get(i) == null) {
+                cache.put(i, i);
+            }
+        }
+        assertEquals(100, cache.getSize());
+        for (int i = 0; i < 50; ++i) {
+            assertEquals(Integer.valueOf(i), cache.get(i));
+        }
+        cache.clear();
+        assertEquals(0, cache.getSize());
+
+        assertEquals(IKVServer.CacheStrategy.ARC,
+                IKVServer.CacheStrategy.fromString("ARC"));
+    }
+
+    @Test
+    public void testCacheWeight() {
+        SegmentedCache<String, String> LRU = new SegmentedCache<>(100, true,
+                10, (key, value) -> value.length());
+        LRU.put("a", "1234");
+        LRU.put("b", "1234");
+        assertEquals(8, LRU.getWeight());
+        assertEquals("1234", LRU.get("a"));
+        // Evicts the least recently used until light enough
+        LRU.put("c", "12345");
+        assertNull(LRU.get("b"));
+        assertEquals("1234", LRU.get("a"));
+        assertEquals(9, LRU.getWeight());
+        // Too heavy to be cached at all, replacing the previous value
+        LRU.put("a", "12345678901");
+        assertNull(LRU.get("a"));
+        assertEquals(5, LRU.getWeight());
+
+        char[] large = new char[10000];
+        Arrays.fill(large, 'x');
+        String value = new String(large);
+        long entryBytes = Weigher.STRING_BYTES.weigh("key000", value);
+        for (IKVServer.CacheStrategy strategy :
+                IKVServer.CacheStrategy.values()) {
+            if (strategy == IKVServer.CacheStrategy.OffHeap) {
+                // Sized in pages, see testOffHeapCache
+                continue;
+            }
+            Cache<String, String> cache = CacheFactory.createStringCache(
+                    1000, strategy, new CacheOptions()
+                            .setMaxBytes(entryBytes * 10));
+            for (int i = 0; i < 100; ++i) {
+                String key = String.format("key%03d", i);
+                cache.put(key, value);
+                cache.get(key);
+                assertTrue(strategy.toString(),
+                        cache.getWeight() <= cache.getMaxWeight());
+            }
+            if (strategy != IKVServer.CacheStrategy.None) {
+                assertTrue(strategy.toString(), cache.getSize() >= 5);
+                assertTrue(strategy.toString(), cache.getSize() <= 10);
+                // Small values still fill the entries
+                cache.clear();
+                assertEquals(0, cache.getWeight());
+                for (int i = 0; i < 2000; ++i) {
+                    cache.put(Integer.toString(i), "v");
+                }
+                assertEquals(strategy.toString(), 1000, cache.getSize());
+
+                // Removing a key is not an eviction
+                cache.put("x", "v");
+                assertEquals(strategy.toString(), "v", cache.get("x"));
+                long evictions = cache.getEvictions();
+                cache.remove("x");
+                assertNull(cache.get("x"));
+                assertEquals(strategy.toString(), 999, cache.getSize());
+                assertEquals(evictions, cache.getEvictions());
+            }
+        }
+
+        // The largest values fit in their segment even under a small limit
+        char[] largest = new char[Protocol.MAX_BODY_BYTES - 10];
+        Arrays.fill(largest, 'x');
+        String largestValue = new String(largest);
+        for (IKVServer.CacheStrategy strategy : new IKVServer.CacheStrategy[]{
+                IKVServer.CacheStrategy.LRU, IKVServer.CacheStrategy.FIFO}) {
+            SegmentedCache<String, String> cache =
+                    (SegmentedCache<String, String>) CacheFactory
+                            .createStringCache(10000, strategy,
+                                    new CacheOptions().setMaxBytes(1048576));
+            assertEquals(2, cache.getSegmentCount());
+            for (int i = 0; i < 10; ++i) {
+                String key = "key" + i;
+                cache.put(key, largestValue);
+                assertEquals(largestValue, cache.get(key));
+                assertTrue(cache.getWeight() <= cache.getMaxWeight());
+            }
+            // Unlimited in bytes, the cache is fully segmented
+            assertEquals(SegmentedCache.MAX_SEGMENTS, ((SegmentedCache<?, ?>)
+                    CacheFactory.createStringCache(10000, strategy,
+                            new CacheOptions())).getSegmentCount());
+        }
+    }
+
+    @Test
+    public void testOffHeapCache() {
+        // Two pages
+        OffHeapCache cache = new OffHeapCache(1000,
+                2 * OffHeapCache.PAGE_BYTES, OffHeapCache.PAGE_BYTES);
+        cache.put("name", "Alice");
+        cache.put("city", "Zürich ☃");
+        cache.put("empty", "");
+        assertEquals("Alice", cache.get("name"));
+        assertEquals("Zürich ☃", cache.get("city"));
+        assertEquals("", cache.get("empty"));
+        cache.remove("empty");
+        assertNull(cache.get("empty"));
+        assertEquals("Alice", cache.get("name"));
+        cache.put("name", "Bob");
+        assertEquals("Bob", cache.get("name"));
+        assertNull(cache.get("missing"));
+        // Absent keys keep their identity and take no memory
+        cache.put("missing", Cache.ABSENT_VALUE);
+        assertSame(Cache.ABSENT_VALUE, cache.get("missing"));
+        assertEquals(OffHeapCache.PAGE_BYTES, cache.getAllocatedBytes());
+
+        // Too large for a page
+        char[] chars = new char[OffHeapCache.PAGE_BYTES + 1];
+        Arrays.fill(chars, 'x');
+        cache.put("huge", new String(chars));
+        assertNull(cache.get("huge"));
+
+        // Values of 600 KB use a page each, evicting the least recently used
+        String large = new String(chars, 0, 600 * 1024);
+        cache.put("a", large);
+        cache.put("b", large);
+        assertEquals(large, cache.get("a"));
+        cache.put("c", large);
+        assertNull(cache.get("b"));
+        assertEquals(large, cache.get("a"));
+        assertEquals(large, cache.get("c"));
+        assertTrue(cache.getWeight() <= cache.getMaxWeight());
+        assertEquals(2 * OffHeapCache.PAGE_BYTES, cache.getAllocatedBytes());
+
+        // Pages freed by a class are reused by another
+        for (int i = 0; i < 1000; ++i) {
+            cache.put(Integer.toString(i), "v" + i);
+        }
+        assertEquals(1000, cache.getSize());
+        assertNull(cache.get("a"));
+        assertEquals("v999", cache.get("999"));
+        cache.put("d", large);
+        assertEquals(large, cache.get("d"));
+
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getWeight());
+        cache.put("name", "Alice");
+        assertEquals("Alice", cache.get("name"));
+        assertEquals(2 * OffHeapCache.PAGE_BYTES, cache.getAllocatedBytes());
+
+        assertEquals(IKVServer.CacheStrategy.OffHeap,
+                IKVServer.CacheStrategy.fromString("OffHeap"));
+    }
+
+    @Test
+    public void testCacheWarmer() throws Exception {
+        // Hot keys come most worth keeping first
+        SegmentedCache<String, String> LRU = new SegmentedCache<>(10);
+        LRU.put("a", "1");
+        LRU.put("b", "2");
+        LRU.put("c", "3");
+        LRU.get("a");
+        assertEquals(Arrays.asList("a", "c", "b"), LRU.getHotKeys(10));
+        assertEquals(Arrays.asList("a", "c"), LRU.getHotKeys(2));
+        LFUCache<String, String> LFU = new LFUCache<>(10);
+        LFU.put("a", "1");
+        LFU.put("b", "2");
+        LFU.get("a");
+        LFU.get("a");
+        LFU.get("b");
+        assertEquals(Arrays.asList("a", "b"), LFU.getHotKeys(10));
+        for (IKVServer.CacheStrategy strategy :
+                IKVServer.CacheStrategy.values()) {
+            Cache<String, String> cache = CacheFactory.createStringCache(
+                    100, strategy, new CacheOptions());
+            for (int i = 0; i < 50; ++i) {
+                cache.put(Integer.toString(i), "v");
+            }
+            int expected = strategy == IKVServer.CacheStrategy.None ? 0 : 20;
+            assertEquals(strategy.toString(), expected,
+                    new HashSet<>(cache.getHotKeys(20)).size());
+        }
+
+        String rootDir = folder.newFolder("warmtest").toString();
+        File file = new File(rootDir, "hotkeys");
+        // Small enough for the segmented LRU cache to evict exactly
+        KVStorage storage = new KVStorage(rootDir,
+                new MD5PrefixKeyHashStrategy(1), 8,
+                IKVServer.CacheStrategy.LRU);
+        for (int i = 0; i < 50; ++i) {
+            storage.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 8; ++i) {
+            storage.get("key" + i);
+        }
+        CacheWarmer warmer = new CacheWarmer(storage, file, 8, 0,
+                CacheWarmer.DEFAULT_INTERVAL_MILLIS);
+        warmer.save();
+        List<String> hotKeys = new ArrayList<>();
+        for (int i = 7; i >= 0; --i) {
+            hotKeys.add("key" + i);
+        }
+        assertEquals(hotKeys, warmer.load());
+
+        // The keys are loaded back in the same order, as filtered
+        storage = new KVStorage(rootDir, new MD5PrefixKeyHashStrategy(1), 8,
+                IKVServer.CacheStrategy.LRU);
+        warmer = new CacheWarmer(storage, file, 8, 0,
+                CacheWarmer.DEFAULT_INTERVAL_MILLIS);
+        assertEquals(7, warmer.warmUp(key -> !key.equals("key0")));
+        assertEquals(hotKeys.subList(0, 7), storage.getHotKeys(8));
+
+        // In the background
+        storage.clearCache();
+        warmer.requestWarmUp(key -> true);
+        warmer.start();
+        long startMs = System.currentTimeMillis();
+        while (warmer.getStatistics().get("cacheWarmedKeys").longValue() <
+                15 && System.currentTimeMillis() - startMs < 5000) {
+            Thread.sleep(10);
+        }
+        warmer.shutdown();
+        assertEquals(hotKeys, storage.getHotKeys(8));
+        assertEquals(hotKeys, new CacheWarmer(storage, file, 8).load());
+    }
+
+    @Test
+    public void testManagedCache() {
+        ManagedCache cache = new ManagedCache(2,
+                IKVServer.CacheStrategy.LRU, new CacheOptions());
+        cache.put("a", "1");
+        cache.put("b", Cache.ABSENT_VALUE);
+        assertEquals("1", cache.get("a"));
+        assertSame(Cache.ABSENT_VALUE, cache.get("b"));
+        assertNull(cache.get("c"));
+        cache.put("c", "3");
+        cache.put("d", "4");
+        Map<String, Number> statistics = cache.getStatistics();
+        assertEquals(1L, statistics.get("cacheHits"));
+        assertEquals(1L, statistics.get("cacheNegativeHits"));
+        assertEquals(1L, statistics.get("cacheMisses"));
+        assertEquals(2L, statistics.get("cacheEvictions"));
+        assertEquals(2, statistics.get("cacheSize"));
+        assertEquals(2, statistics.get("cacheCapacity"));
+
+        // The replacement starts empty, the counters carry over
+        cache.reconfigure(IKVServer.CacheStrategy.LFU, 10);
+        assertEquals(IKVServer.CacheStrategy.LFU, cache.getCacheStrategy());
+        assertNull(cache.get("c"));
+        cache.put("c", "3");
+        assertEquals("3", cache.get("c"));
+        statistics = cache.getStatistics();
+        assertEquals(2L, statistics.get("cacheHits"));
+        assertEquals(2L, statistics.get("cacheMisses"));
+        assertEquals(2L, statistics.get("cacheEvictions"));
+        assertEquals(1, statistics.get("cacheSize"));
+        assertEquals(10, statistics.get("cacheCapacity"));
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        CountDownLatch release = new CountDownLatch(1);
+        int[] loads = new int[1];
+        String[] results = new String[4];
+        Thread[] threads = new Thread[results.length];
+        for (int t = 0; t < threads.length; ++t) {
+            int index = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    results[index] = flights.load("a", () -> {
+                        synchronized (loads) {
+                            loads[0]++;
+                        }
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        return "1";
+                    });
+                } catch (IOException e) {
+                    results[index] = "failed";
+                }
+            });
+            threads[t].start();
+        }
+        // Wait for all but the first caller to join its load
+        while (flights.getCoalesced() < threads.length - 1) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, loads[0]);
+        for (String result : results) {
+            assertEquals("1", result);
+        }
+
+        // Completed loads are not reused
+        assertEquals("2", flights.load("a", () -> "2"));
+        assertEquals(3, flights.getCoalesced());
+
+        // Failures are reported to the caller
+        try {
+            flights.load("b", () -> {
+                throw new IOException("read failed");
+            });
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals("read failed", e.getMessage());
+        }
+        assertEquals("3", flights.load("b", () -> "3"));
+    }
+
+    @Test
+    public void testCacheCommands() throws Exception {
+        KVServer server = null;
+        ServerConnection connection = null;
+        try {
+            KVStorage storage = new KVStorage(folder.newFolder().toString(),
+                    new MD5PrefixKeyHashStrategy(1), 16,
+                    IKVServer.CacheStrategy.FIFO);
+            server = new KVServer(storage, new Protocol(),
+                    new KVMessageSerializer(), 50005, "testServer", null);
+            server.start();
+            Thread.sleep(1000);
+            storage.put("a", "1");
+            storage.get("a");
+
+            connection = new ServerConnection(new Protocol(),
+                    new KVMessageSerializer(), "127.0.0.1", 50005);
+            connection.connect();
+            int id = connection.sendRequest(new KVMessageImpl(null, null,
+                    KVMessage.StatusType.ECS_GET_CACHE_STATISTICS));
+            KVMessage message = connection.receiveMessage(id);
+            assertEquals(KVMessage.StatusType.ECS_SUCCESS,
+                    message.getStatus());
+            assertEquals("FIFO", message.getValue());
+            Map<?, ?> statistics = (Map<?, ?>) message.getECSCommandArg();
+            assertEquals(1L, statistics.get("cacheHits"));
+            assertEquals(0L, statistics.get("cacheCoalescedMisses"));
+            assertEquals(16, statistics.get("cacheCapacity"));
+
+            id = connection.sendRequest(new KVMessageImpl(null, null, null,
+                    KVMessage.StatusType.ECS_RECONFIGURE_CACHE,
+                    new CacheConfigArgs("TinyLFU", 64)));
+            message = connection.receiveMessage(id);
+            assertEquals(KVMessage.StatusType.ECS_SUCCESS,
+                    message.getStatus());
+            assertEquals(IKVServer.CacheStrategy.TinyLFU,
+                    storage.getCache().getCacheStrategy());
+            assertEquals(64, storage.getCache().getCapacity());
+            assertEquals("1", storage.get("a"));
+
+            id = connection.sendRequest(new KVMessageImpl(null, null, null,
+                    KVMessage.StatusType.ECS_RECONFIGURE_CACHE,
+                    new CacheConfigArgs("Unknown", 64)));
+            message = connection.receiveMessage(id);
+            assertEquals(KVMessage.StatusType.FAILED, message.getStatus());
+            assertEquals(IKVServer.CacheStrategy.TinyLFU,
+                    storage.getCache().getCacheStrategy());
+        } finally {
+            if (connection != null) {
+                connection.disconnect(true);
+            }
+            if (server != null) {
+                server.shutDown();
+            }
+        }
+    }
+
+    @Test
+    public void testNearCache() throws Exception {
+        KVServer server = null;
+        KVStore reader = null;
+        KVStore writer = null;
+        try {
+            KVStorage storage = new KVStorage(folder.newFolder().toString(),
+                    new MD5PrefixKeyHashStrategy(1), 16,
+                    IKVServer.CacheStrategy.LRU);
+            server = new KVServer(storage, new Protocol(),
+                    new KVMessageSerializer(), 50006, "testServer", null);
+            server.setLeaseMillis(500);
+            server.start();
+            server.startServing();
+            server.updateMetadata(new Metadata(Arrays.asList(
+                    new ECSNode("testServer", "127.0.0.1", 50006,
+                            "92eb5ffee6ae2fec3ad71c777531578f"))));
+            Thread.sleep(1000);
+
+            reader = new KVStore("127.0.0.1", 50006, 16);
+            reader.connect();
+            writer = new KVStore("127.0.0.1", 50006);
+            writer.connect();
+            NearCache nearCache = reader.getNearCache();
+
+            writer.put("a", "1");
+            assertEquals("1", reader.get("a").getValue());
+            assertEquals("1", reader.get("a").getValue());
+            assertEquals(1, nearCache.getHits());
+            assertEquals(1, nearCache.getMisses());
+            // Leases are only granted to clients asking for one
+            assertNull(writer.get("a").getECSCommandArg());
+
+            // Writes of other clients are seen once the lease expires
+            writer.put("a", "2");
+            assertEquals("1", reader.get("a").getValue());
+            Thread.sleep(600);
+            assertEquals("2", reader.get("a").getValue());
+            assertEquals(0, nearCache.getRevalidations());
+
+            // An unchanged value only renews the lease
+            Thread.sleep(600);
+            KVMessage message = reader.get("a");
+            assertEquals(KVMessage.StatusType.GET_SUCCESS,
+                    message.getStatus());
+            assertEquals("2", message.getValue());
+            assertEquals(1, nearCache.getRevalidations());
+            assertEquals(2, nearCache.getHits());
+            assertEquals(3, nearCache.getMisses());
+
+            // Own writes invalidate the cached value
+            reader.put("a", "3");
+            assertEquals("3", reader.get("a").getValue());
+            assertEquals(KVMessage.StatusType.GET_ERROR,
+                    reader.get("b").getStatus());
+
+            // Transactions read from the server
+            writer.put("a", "4");
+            long hits = nearCache.getHits();
+            String[] value = new String[1];
+            reader.runTransaction(store ->
+                    value[0] = store.transactionGet("a").getValue());
+            assertEquals("4", value[0]);
+            assertEquals(hits, nearCache.getHits());
+        } finally {
+            if (reader != null) {
+                reader.disconnect();
+            }
+            if (writer != null) {
+                writer.disconnect();
+            }
+            if (server != null) {
+                server.shutDown();
+            }
+        }
+    }
+
+    @Test
+    public void testSegmentedCache() throws InterruptedException {
+        // Small caches have a single segment and evict exactly
+        SegmentedCache<String, String> LRU = new SegmentedCache<>(2);
+        LRU.put("address", "toronto");
+        LRU.put("name", "Alice");
+        assertEquals("toronto", LRU.get("address"));
+        LRU.put("age", "20");
+        assertNull(LRU.get("name"));
+        assertEquals("toronto", LRU.get("address"));
+        assertEquals("20", LRU.get("age"));
+
+        SegmentedCache<String, String> FIFO = new SegmentedCache<>(2, false);
+        FIFO.put("address", "toronto");
+        assertEquals("toronto", FIFO.get("address"));
+        FIFO.put("name", "Alice");
+        FIFO.put("age", "20");
+        assertNull(FIFO.get("address"));
+        assertEquals("Alice", FIFO.get("name"));
+        assertEquals("20", FIFO.get("age"));
+
+        // Hot keys survive the sampled eviction of a segmented cache
+        SegmentedCache<Integer, Integer> cache = new SegmentedCache<>(4096);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 50000; ++i) {
+                    int key = i % 8 == 0 ? (i / 8) % 256
+                            : 1000 + i * 4 + offset;
+                    Integer value = cache.get(key);
+                    if (value == null) {
+                        cache.put(key, key);
+                    } else {
+                        assertEquals(key, value.intValue());
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4096, cache.getSize());
+        int hot = 0;
+        for (int i = 0; i < 256; ++i) {
+            if (cache.get(i) != null) {
+                ++hot;
+            }
+        }
+        assertTrue(hot > 200);
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertNull(cache.get(0));
+    }
+
     @Test
     public void testCSVStringEscape() {
         {
@@ -144,6 +788,602 @@ public class AdditionalTest {
         assertEquals(storage.read(",,,,"), "//\\/\\/\\/\\/");
     }
 
+    @Test
+    public void testKVStorageConcurrentAccess() throws Exception {
+        String rootDir = folder.newFolder("concurrenttest").toString();
+        KVStorage storage = new KVStorage(rootDir,
+                new MD5PrefixKeyHashStrategy(1), 10,
+                IKVServer.CacheStrategy.LRU);
+        final int numThreads = 8;
+        final int numKeys = 50;
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; ++t) {
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < numKeys; ++i) {
+                        String key = id + "-" + i;
+                        storage.put(key, "v" + i);
+                        if (!("v" + i).equals(storage.get(key))) {
+                            errors.add("Wrong value for " + key);
+                        }
+                        // Reads of other threads' keys must not fail
+                        storage.get(((id + 1) % numThreads) + "-" + i);
+                    }
+                } catch (IOException e) {
+                    errors.add(e.toString());
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+
+        storage.clearCache();
+        for (int t = 0; t < numThreads; ++t) {
+            for (int i = 0; i < numKeys; ++i) {
+                assertEquals("v" + i, storage.get(t + "-" + i));
+            }
+        }
+        assertEquals(numThreads * numKeys, storage.getAllKeys(
+                "ffffffffffffffffffffffffffffffff",
+                "fffffffffffffffffffffffffffffffe").size());
+    }
+
+    @Test
+    public void testBloomFilter() {
+        BloomFilter filter = BloomFilter.create(1000, 0.01);
+        for (int i = 0; i < 1000; ++i) {
+            filter.add("key" + i);
+        }
+        for (int i = 0; i < 1000; ++i) {
+            assertTrue(filter.mightContain("key" + i));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; ++i) {
+            if (filter.mightContain("absent" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 300);
+    }
+
+    @Test
+    public void testKVStorageBloomFilter() throws IOException,
+            NoSuchAlgorithmException {
+        String rootDir = folder.newFolder("bloomtest").toString();
+        KVStorage storage = new KVStorage(rootDir,
+                new MD5PrefixKeyHashStrategy(1), 10,
+                IKVServer.CacheStrategy.LRU);
+        for (int i = 0; i < 200; ++i) {
+            storage.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 200; ++i) {
+            assertNull(storage.get("absent" + i));
+        }
+        assertEquals(KVMessage.StatusType.DELETE_ERROR,
+                storage.put("absent", null));
+        Map<String, Number> statistics = storage.getStatistics();
+        assertTrue(statistics.get("bloomFilterNegatives").longValue() > 150);
+        assertTrue(statistics.get("bloomFilterFalsePositiveRate")
+                .doubleValue() < 0.2);
+
+        // The filters saved beside the buckets are not listed as data
+        assertEquals(200, storage.getAllKeys(
+                "ffffffffffffffffffffffffffffffff",
+                "fffffffffffffffffffffffffffffffe").size());
+
+        // A new instance loads the saved filters
+        storage = new KVStorage(rootDir, new MD5PrefixKeyHashStrategy(1), 10,
+                IKVServer.CacheStrategy.LRU);
+        storage.put("key200", "value200");
+        for (int i = 0; i <= 200; ++i) {
+            assertEquals("value" + i, storage.get("key" + i));
+        }
+        assertNull(storage.get("absent"));
+    }
+
+    @Test
+    public void testKVFileStorageMemoryMapped() throws IOException {
+        File createdFile = folder.newFile("testKVFileStorageMapped.txt");
+        FileStorageOptions options = new FileStorageOptions()
+                .setMemoryMappedReads(true);
+        KVFileStorage storage = new KVFileStorage(createdFile.getPath(),
+                options);
+        storage.write("address", "\ntoronto");
+        storage.write("name", "Alice, Wang");
+        assertEquals("\ntoronto", storage.read("address"));
+
+        // Appends after the file was mapped are read by remapping
+        for (int i = 0; i < 100; ++i) {
+            storage.write(Integer.toString(i), "value" + i);
+            assertEquals("value" + i, storage.read(Integer.toString(i)));
+        }
+        storage.write("name", "Jo,e");
+        assertEquals("Jo,e", storage.read("name"));
+        storage.write("address", null);
+        assertNull(storage.read("address"));
+
+        storage.write("5", null);
+        assertNull(storage.read("5"));
+        storage.write("6", "changed");
+        assertEquals("changed", storage.read("6"));
+
+        // The file is indexed again when reopened
+        KVFileStorage reopened = new KVFileStorage(createdFile.getPath(),
+                options);
+        assertNull(reopened.read("5"));
+        assertEquals("changed", reopened.read("6"));
+        assertEquals("Jo,e", reopened.read("name"));
+    }
+
+    @Test
+    public void testKVFileStorageSplit() throws IOException {
+        File createdFile = folder.newFile("testKVFileStorageSplit.txt");
+        KVFileStorage storage = new KVFileStorage(createdFile.getPath());
+        for (int i = 0; i < 100; ++i) {
+            storage.write(Integer.toString(i), "value" + i);
+        }
+        String[] filenames = {createdFile.getPath() + "0",
+                createdFile.getPath() + "1"};
+        ToIntFunction<String> selector = key -> Integer.parseInt(key) % 2;
+
+        // Writes made before and during the copy are carried over
+        KVFileStorage.Split split = storage.startSplit(filenames);
+        storage.write("1", "before");
+        storage.write("2", null);
+        storage.copyInto(split, selector);
+        storage.write("3", "during");
+        storage.write("4", null);
+        storage.write("100", "new");
+        storage.finishSplit(split, selector);
+
+        KVFileStorage even = new KVFileStorage(filenames[0]);
+        KVFileStorage odd = new KVFileStorage(filenames[1]);
+        assertEquals("before", odd.read("1"));
+        assertNull(even.read("2"));
+        assertEquals("during", odd.read("3"));
+        assertNull(even.read("4"));
+        assertEquals("new", even.read("100"));
+        assertEquals("value99", odd.read("99"));
+        assertNull(odd.read("98"));
+        List<String> keys = even.readKeys(
+                "00000000000000000000000000000000",
+                "ffffffffffffffffffffffffffffffff");
+        assertEquals(49, keys.size());
+        // The file being split is left as is
+        assertEquals("during", storage.read("3"));
+
+        KVFileStorage.abortSplit(split);
+        assertFalse(new File(filenames[0]).exists());
+        assertFalse(new File(filenames[1]).exists());
+    }
+
+    @Test
+    public void testExtendibleKeyHashStrategy() throws Exception {
+        String rootDir = folder.newFolder("extendibletest").toString();
+        ExtendibleKeyHashStrategy strategy = new ExtendibleKeyHashStrategy(
+                rootDir, 2048);
+        assertEquals(Collections.singletonList("x"), strategy.getBuckets());
+
+        KVStorage storage = new KVStorage(rootDir, strategy, 10,
+                IKVServer.CacheStrategy.LRU);
+        for (int i = 0; i < 500; ++i) {
+            assertEquals(KVMessage.StatusType.PUT_SUCCESS,
+                    storage.put("key" + i, "value" + i));
+        }
+        for (int i = 0; i < 500; i += 5) {
+            assertEquals(KVMessage.StatusType.DELETE_SUCCESS,
+                    storage.put("key" + i, null));
+        }
+        List<String> buckets = strategy.getBuckets();
+        assertTrue(buckets.size() > 4);
+        for (String bucket : buckets) {
+            File file = new File(rootDir, bucket);
+            assertTrue(!file.exists() || file.length() <= 2048 + 64);
+        }
+        assertFalse(new File(rootDir, "x").exists());
+
+        // Every key is hashed to the bucket holding it
+        storage.clearCache();
+        Set<String> expectedKeys = new HashSet<>();
+        Set<String> expectedLowKeys = new HashSet<>();
+        for (int i = 0; i < 500; ++i) {
+            String key = "key" + i;
+            assertEquals(i % 5 == 0 ? null : "value" + i, storage.get(key));
+            if (i % 5 != 0) {
+                expectedKeys.add(key);
+                if (Metadata.getRingPosition(key).compareTo(
+                        "40000000000000000000000000000000") <= 0) {
+                    expectedLowKeys.add(key);
+                }
+            }
+        }
+        assertEquals(expectedKeys, new HashSet<>(storage.getAllKeys(
+                "ffffffffffffffffffffffffffffffff",
+                "fffffffffffffffffffffffffffffffe")));
+        assertEquals(expectedLowKeys, new HashSet<>(storage.getAllKeys(
+                "00000000000000000000000000000000",
+                "40000000000000000000000000000000")));
+
+        // The directory is persisted; files of unknown buckets are leftovers
+        // of an interrupted split
+        new File(rootDir, buckets.get(0) + "0").createNewFile();
+        ExtendibleKeyHashStrategy reopened = new ExtendibleKeyHashStrategy(
+                rootDir, 2048);
+        assertEquals(new HashSet<>(buckets),
+                new HashSet<>(reopened.getBuckets()));
+        assertFalse(new File(rootDir, buckets.get(0) + "0").exists());
+        storage = new KVStorage(rootDir, reopened, 10,
+                IKVServer.CacheStrategy.LRU);
+        assertEquals("value499", storage.get("key499"));
+        assertNull(storage.get("key495"));
+
+        // Writes made while buckets are split are kept
+        String concurrentDir = folder.newFolder("extendibleconcurrent")
+                .toString();
+        KVStorage concurrentStorage = new KVStorage(concurrentDir,
+                new ExtendibleKeyHashStrategy(concurrentDir, 2048), 0,
+                IKVServer.CacheStrategy.None);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; ++t) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 200; ++i) {
+                        String key = "key" + thread + "-" + i;
+                        concurrentStorage.put(key, "value" + i);
+                        assertEquals("value" + i, concurrentStorage.get(key));
+                    }
+                } catch (Exception | AssertionError e) {
+                    failure.set(new Exception(e));
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        for (int t = 0; t < 4; ++t) {
+            for (int i = 0; i < 200; ++i) {
+                assertEquals("value" + i,
+                        concurrentStorage.get("key" + t + "-" + i));
+            }
+        }
+    }
+
+    @Test
+    public void testWriteAheadLogStorage() throws Exception {
+        File logFile = new File(folder.getRoot(), "test.wal");
+        WriteAheadLogStorage storage = new WriteAheadLogStorage(
+                new FakeKVStorage(), logFile, IKVServer.SyncPolicy.Always);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; ++t) {
+            int offset = t * 50;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = offset; i < offset + 50; ++i) {
+                        storage.put("key" + i, "value" + i);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(KVMessage.StatusType.DELETE_SUCCESS,
+                storage.put("key7", null));
+        Map<String, Number> statistics = storage.getStatistics();
+        assertEquals(401L, statistics.get("walAppends"));
+        assertTrue((long) statistics.get("walSyncs") <= 401L);
+
+        // Simulate a crash: a torn record at the end, and the writes lost
+        // from the underlying storage
+        try (FileWriter writer = new FileWriter(logFile, true)) {
+            writer.write("torn");
+        }
+        FakeKVStorage recovered = new FakeKVStorage();
+        WriteAheadLogStorage reopened = new WriteAheadLogStorage(recovered,
+                logFile, IKVServer.SyncPolicy.None);
+        for (int i = 0; i < 400; ++i) {
+            assertEquals(i == 7 ? null : "value" + i,
+                    recovered.get("key" + i));
+        }
+        // The replayed writes are checkpointed
+        assertEquals(0, logFile.length());
+        reopened.close();
+
+        // The log is emptied once it grows past the checkpoint size
+        WriteAheadLogStorage small = new WriteAheadLogStorage(
+                new FakeKVStorage(), logFile, IKVServer.SyncPolicy.Interval,
+                1024);
+        for (int i = 0; i < 200; ++i) {
+            small.put("key" + i, "value" + i);
+        }
+        assertTrue(logFile.length() < 1024);
+        assertEquals("value199", small.get("key199"));
+        small.close();
+    }
+
+    @Test
+    public void testKVFileStorageCompression() throws IOException,
+            NoSuchAlgorithmException {
+        File createdFile = folder.newFile("testKVFileStorageCompressed.txt");
+        ValueCompressor compressor = new ValueCompressor(
+                IKVServer.Compression.Deflate, 64);
+        KVFileStorage storage = new KVFileStorage(createdFile.getPath(),
+                new FileStorageOptions().setCompressor(compressor));
+        StringBuilder document = new StringBuilder();
+        for (int i = 0; i < 200; ++i) {
+            document.append("The quick brown fox jumps over the lazy dog. ");
+        }
+        String value = document.toString();
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS,
+                storage.write("document", value));
+        storage.write("short", "short value");
+        assertTrue(createdFile.length() < value.length() / 4);
+        assertEquals(value, storage.read("document"));
+        assertEquals("short value", storage.read("short"));
+        assertEquals(KVMessage.StatusType.PUT_UPDATE,
+                storage.write("document", value));
+        assertEquals(KVMessage.StatusType.DELETE_SUCCESS,
+                storage.write("document", null));
+        assertNull(storage.read("document"));
+        assertEquals(1L, compressor.getStatistics().get("compressedValues"));
+        assertTrue(compressor.getStatistics().get("compressionRatio")
+                .doubleValue() > 4);
+
+        // Compressed records stay readable once compression is turned off
+        storage.write("document", value);
+        storage = new KVFileStorage(createdFile.getPath());
+        assertEquals(value, storage.read("document"));
+        assertEquals(new HashSet<>(Arrays.asList("document", "short")),
+                new HashSet<>(storage.readKeys(
+                        "ffffffffffffffffffffffffffffffff",
+                        "fffffffffffffffffffffffffffffffe")));
+
+        String rootDir = folder.newFolder("compressiontest").toString();
+        KVStorage bucketStorage = new KVStorage(rootDir,
+                new MD5PrefixKeyHashStrategy(1), 10,
+                IKVServer.CacheStrategy.LRU, new FileStorageOptions()
+                .setCompressor(new ValueCompressor(
+                        IKVServer.Compression.Deflate, 64)));
+        bucketStorage.put("document", value);
+        bucketStorage.clearCache();
+        assertEquals(value, bucketStorage.get("document"));
+        assertTrue(bucketStorage.getStatistics()
+                .containsKey("compressionRatio"));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        File createdFile = folder.newFile("testCompaction.txt");
+        KVFileStorage storage = new KVFileStorage(createdFile.getPath());
+        for (int i = 0; i < 100; ++i) {
+            storage.write(Integer.toString(i), "value" + i);
+        }
+        for (int i = 0; i < 80; ++i) {
+            storage.write(Integer.toString(i), i % 2 == 0 ? null : "new" + i);
+        }
+        assertTrue(storage.getGarbageRatio() > 0.5);
+
+        // Writes made during the copy are carried over
+        KVFileStorage.Compaction compaction = storage.startCompaction();
+        storage.write("1", "during");
+        storage.write("3", null);
+        storage.copyLiveRecords(compaction, new IOThrottle(0));
+        storage.write("5", "after");
+        storage.write("7", null);
+        storage.write("new", "key");
+        long length = createdFile.length();
+        assertTrue(storage.finishCompaction(compaction) > 0);
+        assertTrue(createdFile.length() < length);
+        // Only the copies of the keys written after the copy are garbage
+        assertTrue(storage.getGarbageRatio() < 0.1);
+
+        for (KVFileStorage s : Arrays.asList(storage,
+                new KVFileStorage(createdFile.getPath()))) {
+            assertEquals("during", s.read("1"));
+            assertNull(s.read("3"));
+            assertEquals("after", s.read("5"));
+            assertNull(s.read("7"));
+            assertEquals("key", s.read("new"));
+            assertNull(s.read("10"));
+            assertEquals("new11", s.read("11"));
+            assertEquals("value90", s.read("90"));
+        }
+
+        // Through the storage, with the service
+        String rootDir = folder.newFolder("compactiontest").toString();
+        KVStorage bucketStorage = new KVStorage(rootDir,
+                new MD5PrefixKeyHashStrategy(1), 10,
+                IKVServer.CacheStrategy.LRU);
+        for (int round = 0; round < 5; ++round) {
+            for (int i = 0; i < 100; ++i) {
+                bucketStorage.put(Integer.toString(i), "value" + round);
+            }
+        }
+        CompactionService service = new CompactionService(bucketStorage,
+                0.5, 0, 1000);
+        assertFalse(bucketStorage.getCompactionCandidates(0.5).isEmpty());
+        service.compactAll();
+        assertTrue(bucketStorage.getCompactionCandidates(0.5).isEmpty());
+        assertTrue(service.getStatistics().get("compactions").longValue() > 0);
+        assertTrue(service.getStatistics().get("compactionReclaimedBytes")
+                .longValue() > 0);
+        bucketStorage.clearCache();
+        for (int i = 0; i < 100; ++i) {
+            assertEquals("value4", bucketStorage.get(Integer.toString(i)));
+        }
+        bucketStorage = new KVStorage(rootDir,
+                new MD5PrefixKeyHashStrategy(1), 10,
+                IKVServer.CacheStrategy.LRU);
+        for (int i = 0; i < 100; ++i) {
+            assertEquals("value4", bucketStorage.get(Integer.toString(i)));
+        }
+    }
+
+    @Test
+    public void testIOThrottle() throws InterruptedException {
+        IOThrottle throttle = new IOThrottle(100_000);
+        long startTime = System.nanoTime();
+        // 1.5 seconds worth of bytes
+        for (int i = 0; i < 15; ++i) {
+            throttle.acquire(10_000);
+        }
+        assertTrue(System.nanoTime() - startTime >= 400_000_000L);
+        assertTrue(throttle.getThrottledMillis() > 0);
+
+        IOThrottle unlimited = new IOThrottle(0);
+        unlimited.acquire(Long.MAX_VALUE);
+        assertEquals(0, unlimited.getThrottledMillis());
+    }
+
+    @Test
+    public void testKVFileStorageIndex() throws Exception {
+        File createdFile = folder.newFile("testKVFileStorageIndex.txt");
+        KVFileStorage storage = new KVFileStorage(createdFile.getPath());
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(KVMessage.StatusType.PUT_SUCCESS,
+                    storage.write(Integer.toString(i), "value" + i));
+        }
+        // Records after an updated or deleted one are shifted
+        storage.write("10", "a much longer value than before");
+        storage.write("20", "");
+        assertEquals(KVMessage.StatusType.DELETE_SUCCESS,
+                storage.write("30", null));
+        assertEquals(KVMessage.StatusType.DELETE_ERROR,
+                storage.write("30", null));
+        assertEquals("a much longer value than before", storage.read("10"));
+        assertEquals("", storage.read("20"));
+        assertNull(storage.read("30"));
+        for (int i = 31; i < 100; ++i) {
+            assertEquals("value" + i, storage.read(Integer.toString(i)));
+        }
+
+        // The file is indexed again when reopened
+        storage.write("5", "changed");
+        storage.write("6", null);
+        KVFileStorage reopened = new KVFileStorage(createdFile.getPath());
+        assertEquals("changed", reopened.read("5"));
+        assertEquals("value99", reopened.read("99"));
+        assertNull(reopened.read("6"));
+        assertEquals(KVMessage.StatusType.DELETE_ERROR,
+                reopened.write("6", null));
+        // Each live key once, although some have several records
+        List<String> keys = reopened.readKeys(
+                "00000000000000000000000000000000",
+                "ffffffffffffffffffffffffffffffff");
+        assertEquals(98, keys.size());
+        assertTrue(keys.contains("5"));
+        assertFalse(keys.contains("6"));
+    }
+
+    @Test
+    public void testKVFileStorageFailedUpdate() throws Exception {
+        File createdFile = folder.newFile("testKVFileStorageFailed.txt");
+        KVFileStorage storage = new KVFileStorage(createdFile.getPath());
+        storage.write("a", "1");
+        storage.write("b", "2");
+        byte[] before = Files.readAllBytes(createdFile.toPath());
+        storage.write("a", "new");
+        byte[] after = Files.readAllBytes(createdFile.toPath());
+
+        // A crash after the new record was appended, before the old one was
+        // marked deleted: the records as before, then the new one
+        byte[] crashed = Arrays.copyOf(before, after.length);
+        System.arraycopy(after, before.length, crashed, before.length,
+                after.length - before.length);
+        Files.write(createdFile.toPath(), crashed);
+        KVFileStorage reopened = new KVFileStorage(createdFile.getPath());
+        assertEquals("new", reopened.read("a"));
+        assertEquals("2", reopened.read("b"));
+
+        // The old record is marked deleted by the next write, so that it
+        // does not come back once the key is deleted
+        reopened.write("a", null);
+        assertNull(reopened.read("a"));
+        reopened = new KVFileStorage(createdFile.getPath());
+        assertNull(reopened.read("a"));
+        assertEquals("2", reopened.read("b"));
+
+        // A failed write drops the cached value, which may be stale
+        String rootDir = folder.newFolder("failedwritetest").toString();
+        KVStorage bucketStorage = new KVStorage(rootDir,
+                new MD5PrefixKeyHashStrategy(1), 10,
+                IKVServer.CacheStrategy.LRU);
+        bucketStorage.put("a", "1");
+        assertEquals("1", bucketStorage.get("a"));
+        assertEquals("1", bucketStorage.getCache().get("a"));
+        File bucket = new File(rootDir,
+                new MD5PrefixKeyHashStrategy(1).hashKey("a"));
+        File moved = new File(rootDir, "moved");
+        assertTrue(bucket.renameTo(moved));
+        // The bucket cannot be opened for writing
+        assertTrue(bucket.mkdir());
+        try {
+            bucketStorage.put("a", "2");
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertNull(bucketStorage.getCache().get("a"));
+        assertTrue(bucket.delete());
+        assertTrue(moved.renameTo(bucket));
+        assertEquals("1", bucketStorage.get("a"));
+    }
+
+    @Test
+    public void testBucketFormatMigrator() throws IOException {
+        File dataDir = folder.newFolder("migratortest");
+        File bucket = new File(dataDir, "0a");
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(bucket))) {
+            bw.write(Util.escapeCSVString("address") + "," +
+                    Util.escapeCSVString("\ntoronto") + "\n");
+            bw.write(Util.escapeCSVString("na,me") + "," +
+                    Util.escapeCSVString("Alice, Wang") + "\n");
+            // Enough records for the Bloom filter to be saved
+            for (int i = 0; i < 2000; ++i) {
+                bw.write("key" + i + ",value" + i + "\n");
+            }
+        }
+        // Left over from an interrupted run
+        new File(dataDir, "0b.migrating").createNewFile();
+        new File(dataDir, "0b.migrating.bloom").createNewFile();
+
+        Exception ex = null;
+        try {
+            new KVFileStorage(bucket.getPath()).read("address");
+        } catch (IOException e) {
+            ex = e;
+        }
+        assertNotNull(ex);
+
+        assertEquals(1, BucketFormatMigrator.migrateDirectory(
+                dataDir.toPath()));
+        // The filter of the temporary file is kept as that of the bucket
+        assertEquals(new HashSet<>(Arrays.asList("0a", "0a.bloom")),
+                new HashSet<>(Arrays.asList(dataDir.list())));
+        KVFileStorage storage = new KVFileStorage(bucket.getPath());
+        assertEquals("\ntoronto", storage.read("address"));
+        assertEquals("Alice, Wang", storage.read("na,me"));
+        assertEquals("value1999", storage.read("key1999"));
+
+        // Converted files are left alone
+        assertEquals(0, BucketFormatMigrator.migrateDirectory(
+                dataDir.toPath()));
+    }
+
     @Test
     public void testMetadataGetServer() {
         ECSNode s1 = new ECSNode("s1", "ip", 0, "apple");
@@ -192,6 +1432,52 @@ public class AdditionalTest {
         }
     }
 
+    @Test
+    public void testRingPosition() {
+        assertEquals("0cc175b9c0f1b6a831c399e269772661",
+                RingPosition.of("a").toString());
+        assertEquals(RingPosition.of("ece419"), RingPosition.fromHex(
+                "e2a0f12f0779da1e546a8ff3720d74ac"));
+        assertFalse(RingPosition.isHex("apple"));
+        assertFalse(RingPosition.isHex("E2A0F12F0779DA1E546A8FF3720D74AC"));
+
+        // Unsigned comparison orders like the hexadecimal strings
+        for (int i = 0; i < 200; ++i) {
+            String a = Integer.toString(i);
+            String b = Integer.toString(i * 7 + 3);
+            assertEquals(Integer.signum(Metadata.getRingPosition(a)
+                            .compareTo(Metadata.getRingPosition(b))),
+                    Integer.signum(RingPosition.of(a)
+                            .compareTo(RingPosition.of(b))));
+        }
+
+        RingPosition low = RingPosition.fromHex(
+                "10000000000000000000000000000000");
+        RingPosition high = RingPosition.fromHex(
+                "f0000000000000000000000000000000");
+        assertTrue(high.isInRange(low, high));
+        assertFalse(low.isInRange(low, high));
+        assertTrue(low.isInRange(high, low));
+        assertTrue(RingPosition.fromHex("ff000000000000000000000000000000")
+                .isInRange(high, low));
+        assertFalse(low.isInRange(low, low));
+
+        // Same server as the string lookup
+        List<ECSNode> servers = new ArrayList<>();
+        for (int i = 0; i < 5; ++i) {
+            servers.add(new ECSNode("s" + i, "localhost", 5000 + i));
+        }
+        Metadata metadata = new Metadata(servers);
+        for (int i = 0; i < 200; ++i) {
+            String key = "key" + i;
+            assertSame(metadata.getServer(Metadata.getRingPosition(key)),
+                    metadata.getServer(RingPosition.of(key)));
+        }
+        for (ECSNode server : servers) {
+            assertSame(server, metadata.getServer(server.getRingPosition()));
+        }
+    }
+
     @Test
     public void testMetadataGetPredecessor() {
         ECSNode s1 = new ECSNode("s1", "ip", 0, "apple");
@@ -318,6 +1604,377 @@ public class AdditionalTest {
                 new HashSet<String>(Arrays.asList("b", "c")));
     }
 
+    @Test
+    public void testBitcaskStorage() throws IOException {
+        String rootDir = folder.newFolder("bitcasktest").toString();
+        BitcaskStorage storage = new BitcaskStorage(rootDir, 100,
+                IKVServer.CacheStrategy.LRU, 64);
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS,
+                storage.put("a", "\ntoronto"));
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS,
+                storage.put("b", "Alice, Wang"));
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, storage.put("c", ""));
+        assertEquals(KVMessage.StatusType.PUT_UPDATE,
+                storage.put("b", "Jo,e"));
+        assertEquals(KVMessage.StatusType.DELETE_SUCCESS,
+                storage.put("a", null));
+        assertEquals(KVMessage.StatusType.DELETE_ERROR,
+                storage.put("a", null));
+        storage.put("ece419", "3");
+        storage.clearCache();
+        assertNull(storage.get("a"));
+        assertEquals("Jo,e", storage.get("b"));
+        assertEquals("", storage.get("c"));
+        storage.close();
+
+        // Reopening rebuilds the key directory from the segments
+        storage = new BitcaskStorage(rootDir, 100,
+                IKVServer.CacheStrategy.LRU, 64);
+        assertNull(storage.get("a"));
+        assertEquals("Jo,e", storage.get("b"));
+        assertEquals("", storage.get("c"));
+        assertEquals(new HashSet<>(Arrays.asList("ece419")),
+                new HashSet<>(storage.getAllKeys(
+                        "a0000000000000000000000000000000",
+                        "10000000000000000000000000000000")));
+        storage.close();
+    }
+
+    @Test
+    public void testBitcaskCompaction() throws Exception {
+        String rootDir = folder.newFolder("bitcaskcompactiontest").toString();
+        // Small segments so that most of them are closed
+        BitcaskStorage storage = new BitcaskStorage(rootDir, 0,
+                IKVServer.CacheStrategy.None, 1024);
+        Map<String, String> expected = new HashMap<>();
+        for (int round = 0; round < 5; ++round) {
+            for (int i = 0; i < 200; ++i) {
+                storage.put("key" + i, "value" + round);
+                expected.put("key" + i, "value" + round);
+            }
+        }
+        for (int i = 0; i < 200; i += 5) {
+            storage.put("key" + i, null);
+            expected.remove("key" + i);
+        }
+        assertFalse(storage.getCompactionCandidates(0.5).isEmpty());
+        long size = getDirectorySize(rootDir);
+
+        // Reads and writes made during the merge see the current values
+        CompactionService service = new CompactionService(storage, 0.5,
+                20_000, 1000);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread compaction = new Thread(() -> {
+            try {
+                service.compactAll();
+            } catch (Exception e) {
+                failure.set(e);
+            }
+        });
+        compaction.start();
+        int reads = 0;
+        for (int i = 0; compaction.isAlive(); ++i) {
+            String key = "key" + (i % 200);
+            assertEquals(expected.get(key), storage.get(key));
+            ++reads;
+            if (i % 50 == 0) {
+                storage.put(key, "during" + i);
+                expected.put(key, "during" + i);
+            }
+        }
+        compaction.join();
+        assertNull(failure.get());
+        assertTrue(reads > 0);
+        assertTrue(service.getStatistics().get("compactionReclaimedBytes")
+                .longValue() > 0);
+        // The writes made during the merge may have left garbage behind
+        service.compactAll();
+        assertTrue(storage.getCompactionCandidates(0.5).isEmpty());
+        assertTrue(getDirectorySize(rootDir) < size / 2);
+        for (int i = 0; i < 200; ++i) {
+            assertEquals(expected.get("key" + i), storage.get("key" + i));
+        }
+        storage.close();
+
+        // Deleted keys stay deleted once the segments are reloaded
+        storage = new BitcaskStorage(rootDir, 0,
+                IKVServer.CacheStrategy.None, 1024);
+        for (int i = 0; i < 200; ++i) {
+            assertEquals(expected.get("key" + i), storage.get("key" + i));
+        }
+        storage.close();
+    }
+
+    private static long getDirectorySize(String path) {
+        long size = 0;
+        for (File file : new File(path).listFiles()) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    @Test
+    public void testLSMStorage() throws IOException, InterruptedException {
+        String rootDir = folder.newFolder("lsmtest").toString();
+        // Tiny memtables so that flushes and compactions happen
+        LSMStorage storage = new LSMStorage(rootDir, 10,
+                IKVServer.CacheStrategy.LRU, 1024);
+        for (int i = 0; i < 500; ++i) {
+            assertEquals(KVMessage.StatusType.PUT_SUCCESS,
+                    storage.put("key" + i, "value" + i));
+        }
+        for (int i = 0; i < 500; i += 2) {
+            assertEquals(KVMessage.StatusType.PUT_UPDATE,
+                    storage.put("key" + i, "new value" + i));
+        }
+        for (int i = 0; i < 500; i += 5) {
+            assertEquals(KVMessage.StatusType.DELETE_SUCCESS,
+                    storage.put("key" + i, null));
+        }
+        assertEquals(KVMessage.StatusType.DELETE_ERROR,
+                storage.put("key0", null));
+
+        // Wait for the background compaction to merge the flushed tables
+        for (int i = 0; i < 100 && storage.getSSTableCount() >= 8; ++i) {
+            Thread.sleep(50);
+        }
+        assertTrue(storage.getSSTableCount() < 8);
+
+        storage.clearCache();
+        for (int i = 0; i < 500; ++i) {
+            String expected = i % 5 == 0 ? null
+                    : (i % 2 == 0 ? "new value" : "value") + i;
+            assertEquals(expected, storage.get("key" + i));
+        }
+        storage.close();
+
+        // Reopening replays the memtable log
+        storage = new LSMStorage(rootDir, 10, IKVServer.CacheStrategy.LRU,
+                1024);
+        assertNull(storage.get("key5"));
+        assertEquals("value499", storage.get("key499"));
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS,
+                storage.put("key5", "back"));
+        Set<String> expectedKeys = new HashSet<>();
+        for (int i = 0; i < 500; ++i) {
+            String key = "key" + i;
+            if ((i % 5 != 0 || i == 5) && Metadata.getRingPosition(key)
+                    .compareTo("80000000000000000000000000000000") <= 0) {
+                expectedKeys.add(key);
+            }
+        }
+        List<String> keys = storage.getAllKeys(
+                "00000000000000000000000000000000",
+                "80000000000000000000000000000000");
+        assertEquals(expectedKeys, new HashSet<>(keys));
+        // Keys are listed in ring order
+        List<String> positions = keys.stream()
+                .map(Metadata::getRingPosition).collect(Collectors.toList());
+        List<String> sortedPositions = new ArrayList<>(positions);
+        Collections.sort(sortedPositions);
+        assertEquals(sortedPositions, positions);
+
+        // A range wrapping around the end of the ring
+        Set<String> wrappedKeys = new HashSet<>(storage.getAllKeys(
+                "80000000000000000000000000000000",
+                "00000000000000000000000000000000"));
+        assertEquals(401, expectedKeys.size() + wrappedKeys.size());
+        assertTrue(Collections.disjoint(expectedKeys, wrappedKeys));
+        storage.close();
+    }
+
+    @Test
+    public void testLSMStorageConcurrentPuts() throws Exception {
+        // Tiny memtables, so that flushes happen between the lookups made
+        // before the write lock and the writes
+        LSMStorage storage = new LSMStorage(
+                folder.newFolder("lsmputtest").toString(), 0,
+                IKVServer.CacheStrategy.None, 512);
+        int threadCount = 4;
+        int keyCount = 300;
+        int[] created = new int[keyCount];
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; ++t) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < keyCount; ++i) {
+                        KVMessage.StatusType status = storage.put("key" + i,
+                                "value" + thread);
+                        if (status == KVMessage.StatusType.PUT_SUCCESS) {
+                            synchronized (created) {
+                                created[i]++;
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        // Each key was created by exactly one of the puts
+        for (int i = 0; i < keyCount; ++i) {
+            assertEquals(1, created[i]);
+        }
+
+        Map<String, String> deletes = new LinkedHashMap<>();
+        for (int i = 0; i < keyCount; ++i) {
+            deletes.put("key" + i, null);
+        }
+        for (KVMessage.StatusType status : storage.putMany(deletes).values()) {
+            assertEquals(KVMessage.StatusType.DELETE_SUCCESS, status);
+        }
+        for (KVMessage.StatusType status : storage.putMany(deletes).values()) {
+            assertEquals(KVMessage.StatusType.DELETE_ERROR, status);
+        }
+        storage.close();
+    }
+
+    @Test
+    public void testScanRange() throws Exception {
+        String rootDir = folder.newFolder("scantest").toString();
+        ExtendibleKeyHashStrategy strategy = new ExtendibleKeyHashStrategy(
+                rootDir, 4096);
+        List<IKVStorage> storages = Arrays.asList(
+                new KVStorage(rootDir, strategy, 10,
+                        IKVServer.CacheStrategy.LRU),
+                new BitcaskStorage(folder.newFolder("scanbitcask")
+                        .toString(), 100, IKVServer.CacheStrategy.LRU, 1024),
+                new LSMStorage(folder.newFolder("scanlsm").toString(), 10,
+                        IKVServer.CacheStrategy.LRU, 1024));
+        String[][] ranges = {
+                {"ffffffffffffffffffffffffffffffff",
+                        "fffffffffffffffffffffffffffffffe"},
+                {"40000000000000000000000000000000",
+                        "c0000000000000000000000000000000"},
+                {"c0000000000000000000000000000000",
+                        "40000000000000000000000000000000"}};
+        for (IKVStorage storage : storages) {
+            for (int i = 0; i < 300; ++i) {
+                storage.put("key" + i, "value" + i);
+            }
+            for (int i = 0; i < 300; i += 3) {
+                storage.put("key" + i, "new value" + i);
+            }
+            for (int i = 0; i < 300; i += 7) {
+                storage.put("key" + i, null);
+            }
+
+            for (String[] range : ranges) {
+                Map<String, String> scanned = new HashMap<>();
+                try (KVCursor cursor = storage.scanRange(range[0],
+                        range[1])) {
+                    while (cursor.next()) {
+                        assertNull(scanned.put(cursor.getKey(),
+                                cursor.getValue()));
+                    }
+                }
+                assertEquals(new HashSet<>(storage.getAllKeys(range[0],
+                        range[1])), scanned.keySet());
+                for (Map.Entry<String, String> entry : scanned.entrySet()) {
+                    assertEquals(storage.get(entry.getKey()),
+                            entry.getValue());
+                }
+            }
+        }
+
+        // Buckets split while a cursor is open are scanned through the
+        // buckets they were split into
+        IKVStorage bucketStorage = storages.get(0);
+        Set<String> scanned = new HashSet<>();
+        try (KVCursor cursor = bucketStorage.scanRange(ranges[0][0],
+                ranges[0][1])) {
+            assertTrue(cursor.next());
+            scanned.add(cursor.getKey());
+            int buckets = strategy.getBuckets().size();
+            for (int i = 300; strategy.getBuckets().size() == buckets; ++i) {
+                bucketStorage.put("key" + i, "value" + i);
+            }
+            while (cursor.next()) {
+                scanned.add(cursor.getKey());
+            }
+        }
+        for (int i = 0; i < 300; ++i) {
+            assertEquals(i % 7 != 0, scanned.contains("key" + i));
+        }
+
+        ((BitcaskStorage) storages.get(1)).close();
+        ((LSMStorage) storages.get(2)).close();
+    }
+
+    @Test
+    public void testGetManyPutMany() throws Exception {
+        String rootDir = folder.newFolder("batchtest").toString();
+        // Small buckets, so that a batch makes them split
+        ExtendibleKeyHashStrategy strategy = new ExtendibleKeyHashStrategy(
+                rootDir, 2048);
+        KVStorage bucketStorage = new KVStorage(rootDir, strategy, 10,
+                IKVServer.CacheStrategy.LRU);
+        List<IKVStorage> storages = Arrays.asList(bucketStorage,
+                new BitcaskStorage(folder.newFolder("batchbitcask")
+                        .toString(), 100, IKVServer.CacheStrategy.LRU, 1024),
+                new LSMStorage(folder.newFolder("batchlsm").toString(), 10,
+                        IKVServer.CacheStrategy.LRU, 1024),
+                new WriteAheadLogStorage(new FakeKVStorage(),
+                        new File(folder.getRoot(), "batch.wal"),
+                        IKVServer.SyncPolicy.Always));
+        for (IKVStorage storage : storages) {
+            storage.put("key0", "old");
+            Map<String, String> values = new LinkedHashMap<>();
+            for (int i = 0; i < 200; ++i) {
+                values.put("key" + i, "value" + i);
+            }
+            values.put("absent", null);
+            Map<String, KVMessage.StatusType> responses =
+                    storage.putMany(values);
+            assertEquals(new ArrayList<>(values.keySet()),
+                    new ArrayList<>(responses.keySet()));
+            assertEquals(KVMessage.StatusType.PUT_UPDATE,
+                    responses.get("key0"));
+            assertEquals(KVMessage.StatusType.PUT_SUCCESS,
+                    responses.get("key199"));
+            assertEquals(KVMessage.StatusType.DELETE_ERROR,
+                    responses.get("absent"));
+
+            Map<String, String> deletes = new LinkedHashMap<>();
+            deletes.put("key1", null);
+            deletes.put("key2", "updated");
+            responses = storage.putMany(deletes);
+            assertEquals(KVMessage.StatusType.DELETE_SUCCESS,
+                    responses.get("key1"));
+            assertEquals(KVMessage.StatusType.PUT_UPDATE,
+                    responses.get("key2"));
+
+            storage.clearCache();
+            List<String> keys = new ArrayList<>();
+            for (int i = 199; i >= 0; --i) {
+                keys.add("key" + i);
+            }
+            keys.add("absent");
+            Map<String, String> read = storage.getMany(keys);
+            assertEquals(keys, new ArrayList<>(read.keySet()));
+            for (int i = 0; i < 200; ++i) {
+                String expected = i == 1 ? null
+                        : (i == 2 ? "updated" : "value" + i);
+                assertEquals(expected, read.get("key" + i));
+                assertEquals(expected, storage.get("key" + i));
+            }
+            assertNull(read.get("absent"));
+        }
+        assertTrue(strategy.getBuckets().size() > 1);
+        ((BitcaskStorage) storages.get(1)).close();
+        ((LSMStorage) storages.get(2)).close();
+        ((WriteAheadLogStorage) storages.get(3)).close();
+    }
+
     @Test
     public void testKVServerShutdown() throws IOException,
             NoSuchAlgorithmException {